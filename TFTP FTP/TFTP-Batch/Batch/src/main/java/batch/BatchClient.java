@@ -0,0 +1,186 @@
+package batch;
+
+import client.UDPSocketClient;
+import tcpclient.TCPClient;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs every transfer of a manifest (see {@link ManifestEntry}) without prompting, several at a time, and ends with
+ * a summary of each file's outcome, time and throughput.
+ * <p>
+ * {@code java -Dbatch.concurrency=8 -jar target/tftp-batch.jar manifest.txt}
+ * <p>
+ * Each transfer uses the real client for its transport. UDP transfers honour the client's {@code tftp.*} options;
+ * TCP transfers use one framed session each, so an existing partial download is resumed. The exit status is 0 when
+ * every transfer succeeded and 1 otherwise, so the batch can gate a maintenance script; it is 2 when the manifest
+ * cannot be read or parsed.
+ * <p>
+ * Settings, as system properties:
+ * <ul>
+ * <li>{@code batch.concurrency}: how many transfers run at once, default 4.</li>
+ * <li>{@code batch.csv}: also write the per-file results to this CSV file.</li>
+ * </ul>
+ */
+public final class BatchClient {
+    private static final int CONCURRENCY = Math.max(1, Integer.getInteger("batch.concurrency", 4));
+    private static final String CSV = System.getProperty("batch.csv");
+
+    private BatchClient() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: java [-Dbatch.concurrency=N] [-Dbatch.csv=results.csv] -jar tftp-batch.jar <manifest>");
+            System.exit(2);
+        }
+        List<ManifestEntry> entries;
+        try {
+            entries = ManifestEntry.read(Paths.get(args[0]));
+        } catch (IllegalArgumentException e) {
+            System.err.println(args[0] + ": " + e.getMessage());
+            System.exit(2);
+            return;
+        } catch (IOException e) {
+            System.err.println("Cannot read " + args[0] + ": " + e);
+            System.exit(2);
+            return;
+        }
+
+        long start = System.nanoTime();
+        List<Result> results = run(entries);
+        long wallNanos = System.nanoTime() - start;
+
+        report(System.out, results, wallNanos);
+        if (CSV != null) {
+            writeCsv(Paths.get(CSV), results);
+        }
+        System.exit(results.stream().allMatch(result -> result.ok) ? 0 : 1);
+    }
+
+    // Runs the entries CONCURRENCY at a time and returns their results in manifest order
+    private static List<Result> run(List<ManifestEntry> entries) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(CONCURRENCY);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (ManifestEntry entry : entries) {
+                futures.add(pool.submit(() -> transfer(entry)));
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("transfer() reports failures itself", e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Runs one transfer on the calling thread; a failure of any kind is recorded rather than thrown
+    private static Result transfer(ManifestEntry entry) {
+        long start = System.nanoTime();
+        String failure = null;
+        try {
+            InetAddress address = InetAddress.getByName(entry.host);
+            boolean ok;
+            if (entry.tcp) {
+                TCPClient client = new TCPClient(address, entry.port);
+                List<String> file = Collections.singletonList(entry.fileName);
+                ok = (entry.write ? client.writeFiles(file) : client.readFiles(file)) == 1;
+            } else {
+                UDPSocketClient client = new UDPSocketClient(address, entry.port);
+                ok = entry.write ? client.writeFile(entry.fileName) : client.readFile(entry.fileName);
+            }
+            if (!ok) {
+                failure = "refused or incomplete, see the client output above";
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = e.toString();
+        }
+        long nanos = System.nanoTime() - start;
+        long bytes = 0;
+        try {
+            bytes = failure == null ? Files.size(entry.localPath()) : 0;
+        } catch (IOException e) {
+            failure = "transferred, but " + entry.localPath() + " is unreadable: " + e.getMessage();
+        }
+        return new Result(entry, failure == null, failure, bytes, nanos);
+    }
+
+    private static void report(PrintStream out, List<Result> results, long wallNanos) {
+        out.println();
+        out.printf(Locale.ROOT, "%-6s %-40s %12s %9s %9s%n", "status", "transfer", "bytes", "seconds", "MB/s");
+        long bytes = 0;
+        int failed = 0;
+        for (Result result : results) {
+            out.printf(Locale.ROOT, "%-6s %-40s %12d %9.3f %9.2f%n", result.ok ? "ok" : "FAILED", result.entry,
+                    result.bytes, result.nanos / 1e9, result.megabytesPerSecond());
+            if (!result.ok) {
+                out.println("       line " + result.entry.line + ": " + result.failure);
+                failed++;
+            }
+            bytes += result.bytes;
+        }
+        out.printf(Locale.ROOT, "%d of %d transfers succeeded, %d bytes in %.3f s (%.2f MB/s), %d at a time%n",
+                results.size() - failed, results.size(), bytes, wallNanos / 1e9, bytes / (wallNanos / 1e9) / 1e6, CONCURRENCY);
+    }
+
+    private static void writeCsv(Path path, List<Result> results) throws IOException {
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8))) {
+            csv.println("line,transport,host,port,op,file,status,bytes,seconds,mb_per_s,error");
+            for (Result result : results) {
+                ManifestEntry entry = result.entry;
+                csv.printf(Locale.ROOT, "%d,%s,%s,%d,%s,%s,%s,%d,%.6f,%.3f,%s%n", entry.line, entry.tcp ? "tcp" : "udp",
+                        entry.host, entry.port, entry.write ? "put" : "get", quote(entry.fileName), result.ok ? "ok" : "failed",
+                        result.bytes, result.nanos / 1e9, result.megabytesPerSecond(), quote(result.failure == null ? "" : result.failure));
+            }
+        }
+    }
+
+    // RFC 4180 quoting, only when needed
+    static String quote(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+            return field;
+        }
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+
+    private static final class Result {
+        final ManifestEntry entry;
+        final boolean ok;
+        final String failure;
+        final long bytes;
+        final long nanos;
+
+        Result(ManifestEntry entry, boolean ok, String failure, long bytes, long nanos) {
+            this.entry = entry;
+            this.ok = ok;
+            this.failure = failure;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        double megabytesPerSecond() {
+            return nanos > 0 ? bytes / (nanos / 1e9) / 1e6 : 0;
+        }
+    }
+}
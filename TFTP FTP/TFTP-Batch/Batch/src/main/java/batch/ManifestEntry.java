@@ -0,0 +1,101 @@
+package batch;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One transfer of a batch manifest. A manifest has one entry per line:
+ * <pre>
+ * # transport host port op file
+ * udp 10.0.0.5 69   get firmware/router.bin
+ * tcp 10.0.0.5 2000 put configs/switch-01.cfg
+ * </pre>
+ * The transport is {@code udp} or {@code tcp} and the op is {@code get} (an RRQ) or {@code put} (a WRQ). Blank lines
+ * and lines starting with {@code #} are skipped.
+ */
+final class ManifestEntry {
+    final int line;
+    final boolean tcp;
+    final String host;
+    final int port;
+    final boolean write;
+    final String fileName;
+
+    private ManifestEntry(int line, boolean tcp, String host, int port, boolean write, String fileName) {
+        this.line = line;
+        this.tcp = tcp;
+        this.host = host;
+        this.port = port;
+        this.write = write;
+        this.fileName = fileName;
+    }
+
+    /**
+     * @param manifest The manifest file.
+     * @return Its entries, in order.
+     * @throws IOException If the manifest cannot be read.
+     * @throws IllegalArgumentException If a line is malformed; the message names the line.
+     */
+    static List<ManifestEntry> read(Path manifest) throws IOException {
+        List<ManifestEntry> entries = new ArrayList<>();
+        List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            entries.add(parse(i + 1, line));
+        }
+        return entries;
+    }
+
+    /**
+     * @param line The line's number in the manifest, for error messages.
+     * @param text The line, trimmed, neither blank nor a comment.
+     * @return The entry it describes.
+     * @throws IllegalArgumentException If the line is malformed; the message names the line.
+     */
+    static ManifestEntry parse(int line, String text) {
+        String[] fields = text.split("\\s+", 5);
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("Line " + line + ": expected 'transport host port op file', got '" + text + "'");
+        }
+        String transport = fields[0].toLowerCase(Locale.ROOT);
+        String op = fields[3].toLowerCase(Locale.ROOT);
+        if (!transport.equals("udp") && !transport.equals("tcp")) {
+            throw new IllegalArgumentException("Line " + line + ": unknown transport '" + fields[0] + "', expected udp or tcp");
+        }
+        if (!op.equals("get") && !op.equals("put")) {
+            throw new IllegalArgumentException("Line " + line + ": unknown op '" + fields[3] + "', expected get or put");
+        }
+        int port;
+        try {
+            port = Integer.parseInt(fields[2]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Line " + line + ": invalid port '" + fields[2] + "'");
+        }
+        return new ManifestEntry(line, transport.equals("tcp"), fields[1], port, op.equals("put"), fields[4]);
+    }
+
+    /**
+     * @return Where the file is read from or written to locally. The UDP client keeps uploads under
+     * "Sending Files" and downloads under "Receiving Files"; the TCP client uses the path as given.
+     */
+    Path localPath() {
+        if (tcp) {
+            return Paths.get(fileName);
+        }
+        return Paths.get(write ? "Sending Files" : "Receiving Files", fileName);
+    }
+
+    @Override
+    public String toString() {
+        return (tcp ? "tcp " : "udp ") + host + ":" + port + " " + (write ? "put " : "get ") + fileName;
+    }
+}
@@ -0,0 +1,23 @@
+package batch;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BatchClientTest {
+
+    @Test
+    void plainFieldsAreLeftAsTheyAre() {
+        assertEquals("firmware/router.bin", BatchClient.quote("firmware/router.bin"));
+        assertEquals("", BatchClient.quote(""));
+    }
+
+    @Test
+    void fieldsWithCommasQuotesOrNewlinesAreQuoted() {
+        assertEquals("\"a,b.bin\"", BatchClient.quote("a,b.bin"));
+        assertEquals("\"Error: \"\"x\"\" not found\"", BatchClient.quote("Error: \"x\" not found"));
+        assertEquals("\"two\nlines\"", BatchClient.quote("two\nlines"));
+        assertEquals("\"two\r\nlines\"", BatchClient.quote("two\r\nlines"));
+        assertEquals("\"a\rb\"", BatchClient.quote("a\rb"));
+    }
+}
@@ -0,0 +1,79 @@
+package batch;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ManifestEntryTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void lineNamesTransportHostPortOpAndFile() {
+        ManifestEntry entry = ManifestEntry.parse(3, "tcp 10.0.0.5 2000 put configs/switch-01.cfg");
+
+        assertEquals(3, entry.line);
+        assertTrue(entry.tcp);
+        assertEquals("10.0.0.5", entry.host);
+        assertEquals(2000, entry.port);
+        assertTrue(entry.write);
+        assertEquals("configs/switch-01.cfg", entry.fileName);
+    }
+
+    @Test
+    void transportAndOpAreCaseInsensitiveAndFieldsMayBeSpacedOut() {
+        ManifestEntry entry = ManifestEntry.parse(1, "UDP\thost   69  GET firmware/router.bin");
+
+        assertFalse(entry.tcp);
+        assertFalse(entry.write);
+        assertEquals(69, entry.port);
+        assertEquals("firmware/router.bin", entry.fileName);
+    }
+
+    @Test
+    void fileNameKeepsItsSpaces() {
+        assertEquals("release notes v2.txt", ManifestEntry.parse(1, "udp host 69 get release notes v2.txt").fileName);
+    }
+
+    @Test
+    void malformedLinesNameTheirLineNumber() {
+        for (String text : Arrays.asList("udp host 69 get", "ftp host 69 get a.bin", "udp host 69 delete a.bin", "udp host port get a.bin")) {
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> ManifestEntry.parse(7, text));
+            assertTrue(e.getMessage().startsWith("Line 7: "), e.getMessage());
+        }
+    }
+
+    @Test
+    void blankLinesAndCommentsAreSkipped() throws IOException {
+        Path manifest = directory.resolve("manifest.txt");
+        Files.write(manifest, Arrays.asList("# transport host port op file", "", "udp a 69 get one.bin", "   ", "  # indented comment",
+                "tcp b 2000 put two.bin"), StandardCharsets.UTF_8);
+
+        List<ManifestEntry> entries = ManifestEntry.read(manifest);
+
+        assertEquals(2, entries.size());
+        assertEquals(3, entries.get(0).line);
+        assertEquals(6, entries.get(1).line);
+        assertEquals("tcp b:2000 put two.bin", entries.get(1).toString());
+    }
+
+    @Test
+    void localPathFollowsEachClientsLayout() {
+        assertEquals(Paths.get("Sending Files", "a.bin"), ManifestEntry.parse(1, "udp h 69 put a.bin").localPath());
+        assertEquals(Paths.get("Receiving Files", "a.bin"), ManifestEntry.parse(1, "udp h 69 get a.bin").localPath());
+        assertEquals(Paths.get("dir/a.bin"), ManifestEntry.parse(1, "tcp h 2000 get dir/a.bin").localPath());
+    }
+}
@@ -0,0 +1,122 @@
+package benchmarks;
+
+import mttcpserver.MTTCPServer;
+import server.UDPSocketServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Servers and files shared by the transfer benchmarks of one forked JVM.
+ * <p>
+ * The servers run in the benchmark JVM itself, on daemon threads, so {@code -prof gc} counts their allocations
+ * together with the client's. The UDP server serves from {@code user.dir}, which is pointed at a temporary
+ * directory before it starts; engine, executor, cache and mmap settings are picked up from the usual system
+ * properties, for example {@code -jvmArgsAppend -Dtftp.engine=nio}. The servers log every transfer to
+ * System.out, so it is discarded unless {@code -Dbench.serverLog=true}.
+ */
+final class Fixtures {
+    static final int UDP_PORT = Integer.getInteger("bench.udpPort", 16969);
+    private static final boolean SERVER_LOG = Boolean.getBoolean("bench.serverLog");
+
+    private static Path directory;
+    private static boolean udpStarted;
+    private static boolean tcpStarted;
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return The working directory of this JVM's servers, with "Sending Files" and "Receiving Files" in it.
+     */
+    static synchronized Path directory() throws IOException {
+        if (directory == null) {
+            directory = Files.createTempDirectory("tftp-bench");
+            Files.createDirectories(directory.resolve("Sending Files"));
+            Files.createDirectories(directory.resolve("Receiving Files"));
+            Path created = directory;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(created)));
+        }
+        return directory;
+    }
+
+    /**
+     * Creates (once) a file of random bytes in "Sending Files".
+     *
+     * @param size The file size in bytes.
+     * @return The file's name.
+     */
+    static synchronized String sendingFile(int size) throws IOException {
+        String fileName = "bench-" + size + ".bin";
+        Path file = directory().resolve("Sending Files").resolve(fileName);
+        if (!Files.exists(file)) {
+            byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+            Files.write(file, data);
+        }
+        return fileName;
+    }
+
+    /**
+     * Starts the UDP server on {@link #UDP_PORT} unless it is already running.
+     *
+     * @return The server's listen address.
+     */
+    static synchronized InetSocketAddress udpServer() throws IOException {
+        if (!udpStarted) {
+            System.setProperty("user.dir", directory().toString());
+            startDaemon("tftp-udp-server", () -> UDPSocketServer.serve(UDP_PORT));
+            udpStarted = true;
+        }
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), UDP_PORT);
+    }
+
+    /**
+     * Starts the TCP server on its fixed port unless it is already running.
+     *
+     * @return The server's listen address.
+     */
+    static synchronized InetSocketAddress tcpServer() throws IOException {
+        if (!tcpStarted) {
+            startDaemon("tftp-tcp-server", () -> new MTTCPServer().run());
+            tcpStarted = true;
+        }
+        return new InetSocketAddress(InetAddress.getLocalHost(), 2000);
+    }
+
+    private static void startDaemon(String name, IoTask task) {
+        if (!SERVER_LOG) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void delete(Path root) {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("Failed to delete " + root + ": " + e.getMessage());
+        }
+    }
+
+    private interface IoTask {
+        void run() throws IOException;
+    }
+}
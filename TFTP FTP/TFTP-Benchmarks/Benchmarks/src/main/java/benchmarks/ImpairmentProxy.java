@@ -0,0 +1,392 @@
+package benchmarks;
+
+import codec.TftpPacket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * UDP proxy that puts a simulated WAN link between a TFTP client and server on one machine.
+ * <p>
+ * Clients send their requests to the proxy's port instead of the server's. Every datagram, in both directions,
+ * can be dropped, duplicated, delayed with jitter, or held back so that later datagrams overtake it. TFTP's
+ * transfer IDs survive the proxy: each client gets its own upstream socket towards the server, and each server
+ * TID gets its own socket towards the client, so both ends still see one peer port per transfer.
+ * <p>
+ * The proxy also watches each client's transfer as a flow. It records when the request arrived and when the
+ * last datagram passed, how many distinct DATA bytes went through, and how many DATA blocks were sent again.
+ * The timings are taken on the wire, so they leave out the client's JVM start-up.
+ * <p>
+ * One thread runs the whole proxy: a selector for arriving datagrams and a queue, ordered by due time, for the
+ * ones being delayed.
+ * <p>
+ * Standalone use: {@code java -cp target/benchmarks.jar -Dproxy.loss=0.02 benchmarks.ImpairmentProxy 7000 6969}.
+ */
+public final class ImpairmentProxy implements Runnable, Closeable {
+    private final DatagramChannel listenChannel;
+    private final InetSocketAddress server;
+    private final Impairment impairment;
+    private final Random random;
+    private final Selector selector;
+    private final ByteBuffer buffer = ByteBuffer.allocate(65536);
+    private final PriorityQueue<Pending> pending = new PriorityQueue<>();
+    private final Map<SocketAddress, Flow> flowsByClient = new HashMap<>();
+    private final List<Flow> flows = new ArrayList<>();
+    private long sequence; // keeps equal due times in arrival order
+    private long forwarded;
+    private long dropped;
+    private long duplicated;
+    private long reordered;
+    private volatile boolean closed;
+
+    /**
+     * Binds the proxy's listen port.
+     *
+     * @param listenPort The port clients send their requests to.
+     * @param server The server's listen address.
+     * @param impairment What to do to each datagram.
+     * @param seed Seed for the impairment decisions, so runs can be repeated.
+     * @throws IOException If a socket cannot be opened.
+     */
+    public ImpairmentProxy(int listenPort, InetSocketAddress server, Impairment impairment, long seed) throws IOException {
+        this.server = server;
+        this.impairment = impairment;
+        this.random = new Random(seed);
+        this.selector = Selector.open();
+        this.listenChannel = open(new InetSocketAddress(InetAddress.getLoopbackAddress(), listenPort));
+        listenChannel.register(selector, SelectionKey.OP_READ);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: ImpairmentProxy <listen port> <server port>");
+            return;
+        }
+        Impairment impairment = Impairment.fromSystemProperties();
+        InetSocketAddress server = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[1]));
+        System.out.println("Forwarding port " + args[0] + " to " + server + " with " + impairment);
+        new ImpairmentProxy(Integer.parseInt(args[0]), server, impairment, System.nanoTime()).run();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                Pending next = pending.peek();
+                long waitNanos = next == null ? 0 : next.dueNanos - System.nanoTime();
+                if (next == null) {
+                    selector.select();
+                } else if (waitNanos > 0) {
+                    selector.select(Math.max(waitNanos / 1_000_000, 1));
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        drain(key);
+                    }
+                }
+                sendDue();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closed) {
+                System.err.println("Proxy failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return A snapshot of every flow seen so far, in the order the clients first appeared.
+     */
+    public synchronized List<Flow.Snapshot> flows() {
+        List<Flow.Snapshot> snapshots = new ArrayList<>(flows.size());
+        for (Flow flow : flows) {
+            snapshots.add(flow.snapshot());
+        }
+        return snapshots;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "proxy: " + forwarded + " forwarded, " + dropped + " dropped, " + duplicated + " duplicated, " + reordered + " reordered";
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    // Reads every queued datagram from one of the proxy's sockets and works out where it goes
+    private void drain(SelectionKey key) throws IOException {
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        while (true) {
+            buffer.clear();
+            SocketAddress source = channel.receive(buffer);
+            if (source == null) {
+                return;
+            }
+            buffer.flip();
+            long now = System.nanoTime();
+            synchronized (this) {
+                if (channel == listenChannel) {
+                    // A request: the client's upstream socket carries it to the server's listen port
+                    Flow flow = flowsByClient.get(source);
+                    if (flow == null) {
+                        flow = new Flow(source, requestedFile(buffer), open(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)), now);
+                        flow.upstream.register(selector, SelectionKey.OP_READ, flow);
+                        flowsByClient.put(source, flow);
+                        flows.add(flow);
+                    }
+                    flow.observe(buffer, now);
+                    impair(flow, true, flow.upstream, server, now);
+                } else if (key.attachment() instanceof Flow) {
+                    // From the server to the client: relay through the socket that stands in for this server TID
+                    Flow flow = (Flow) key.attachment();
+                    DatagramChannel downstream = flow.downstreamByTid.get(source);
+                    if (downstream == null) {
+                        downstream = open(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                        downstream.register(selector, SelectionKey.OP_READ, new Route(flow, source));
+                        flow.downstreamByTid.put(source, downstream);
+                    }
+                    flow.observe(buffer, now);
+                    impair(flow, false, downstream, flow.client, now);
+                } else {
+                    // From the client to a server TID
+                    Route route = (Route) key.attachment();
+                    route.flow.observe(buffer, now);
+                    impair(route.flow, true, route.flow.upstream, route.serverTid, now);
+                }
+            }
+        }
+    }
+
+    // Decides the fate of the datagram in the buffer and queues its copies
+    private void impair(Flow flow, boolean fromClient, DatagramChannel channel, SocketAddress destination, long now) {
+        if (random.nextDouble() < impairment.loss) {
+            dropped++;
+            return;
+        }
+        int copies = random.nextDouble() < impairment.duplicate ? 2 : 1;
+        duplicated += copies - 1;
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        for (int i = 0; i < copies; i++) {
+            long dueNanos = now + impairment.delayNanos + (impairment.jitterNanos > 0 ? (long) (random.nextDouble() * impairment.jitterNanos) : 0);
+            if (random.nextDouble() < impairment.reorder) {
+                dueNanos += impairment.reorderNanos; // held back so the datagrams behind it overtake it
+                reordered++;
+            } else {
+                // Jitter alone keeps each direction in order, as a queue on a real path does; reordering is its own setting
+                dueNanos = Math.max(dueNanos, fromClient ? flow.lastDueFromClient : flow.lastDueToClient);
+                if (fromClient) {
+                    flow.lastDueFromClient = dueNanos;
+                } else {
+                    flow.lastDueToClient = dueNanos;
+                }
+            }
+            pending.add(new Pending(dueNanos, sequence++, channel, destination, data));
+        }
+    }
+
+    private void sendDue() throws IOException {
+        long now = System.nanoTime();
+        while (!pending.isEmpty() && pending.peek().dueNanos <= now) {
+            Pending next = pending.poll();
+            // A full socket buffer drops the datagram, as a congested link would
+            if (next.channel.send(ByteBuffer.wrap(next.data), next.destination) > 0) {
+                synchronized (this) {
+                    forwarded++;
+                }
+            }
+        }
+    }
+
+    private static String requestedFile(ByteBuffer request) {
+        int opcode = TftpPacket.opcode(request);
+        if (opcode != TftpPacket.OP_RRQ && opcode != TftpPacket.OP_WRQ) {
+            return null;
+        }
+        List<String> fields = TftpPacket.parseFields(request);
+        return fields.isEmpty() ? null : fields.get(0);
+    }
+
+    private static DatagramChannel open(InetSocketAddress address) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(address);
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /**
+     * What the proxy does to each datagram. Loss, duplication and reordering are independent probabilities.
+     * Every datagram is delayed by {@code delay} plus a uniformly random share of {@code jitter}, but never
+     * overtakes an earlier one going the same way; only a reordered one is held back a further
+     * {@code reorderDelay} and lets later ones pass.
+     */
+    public static final class Impairment {
+        final double loss;
+        final double duplicate;
+        final double reorder;
+        final long delayNanos;
+        final long jitterNanos;
+        final long reorderNanos;
+
+        public Impairment(double loss, double duplicate, double reorder, double delayMillis, double jitterMillis, double reorderDelayMillis) {
+            this.loss = loss;
+            this.duplicate = duplicate;
+            this.reorder = reorder;
+            this.delayNanos = (long) (delayMillis * 1_000_000);
+            this.jitterNanos = (long) (jitterMillis * 1_000_000);
+            this.reorderNanos = (long) (reorderDelayMillis * 1_000_000);
+        }
+
+        /**
+         * Reads {@code -Dproxy.loss}, {@code proxy.duplicate} and {@code proxy.reorder} (probabilities, default 0),
+         * and {@code proxy.delay}, {@code proxy.jitter} and {@code proxy.reorderDelay} (milliseconds, defaults 0, 0
+         * and 5).
+         */
+        public static Impairment fromSystemProperties() {
+            return new Impairment(doubleProperty("proxy.loss", 0), doubleProperty("proxy.duplicate", 0), doubleProperty("proxy.reorder", 0),
+                    doubleProperty("proxy.delay", 0), doubleProperty("proxy.jitter", 0), doubleProperty("proxy.reorderDelay", 5));
+        }
+
+        private static double doubleProperty(String name, double defaultValue) {
+            String value = System.getProperty(name);
+            return value != null ? Double.parseDouble(value) : defaultValue;
+        }
+
+        @Override
+        public String toString() {
+            return "loss " + loss + ", duplicate " + duplicate + ", reorder " + reorder + " (+" + reorderNanos / 1_000_000.0 + " ms), delay "
+                    + delayNanos / 1_000_000.0 + " ms + jitter " + jitterNanos / 1_000_000.0 + " ms";
+        }
+    }
+
+    /**
+     * One client's transfer as seen by the proxy.
+     */
+    public static final class Flow {
+        private final SocketAddress client;
+        private final String fileName;
+        private final DatagramChannel upstream;
+        private final Map<SocketAddress, DatagramChannel> downstreamByTid = new HashMap<>();
+        private final long startNanos;
+        private long lastNanos;
+        private long dataBytes;
+        private long dataPackets;
+        private long retransmissions;
+        private final BitSet seenBlocks = new BitSet();
+        private int highestBlock; // unwrapped block index of the newest DATA, so 16-bit rollover is not a resend
+        private long lastDueFromClient; // due time of the last in-order datagram queued in each direction
+        private long lastDueToClient;
+
+        private Flow(SocketAddress client, String fileName, DatagramChannel upstream, long startNanos) {
+            this.client = client;
+            this.fileName = fileName;
+            this.upstream = upstream;
+            this.startNanos = startNanos;
+            this.lastNanos = startNanos;
+        }
+
+        private void observe(ByteBuffer packet, long now) {
+            lastNanos = now;
+            if (packet.limit() < TftpPacket.HEADER_SIZE || TftpPacket.opcode(packet) != TftpPacket.OP_DATA) {
+                return;
+            }
+            int block = highestBlock + (short) (TftpPacket.blockNumber(packet) - (highestBlock & 0xFFFF));
+            if (block < 0) {
+                return;
+            }
+            dataPackets++;
+            if (seenBlocks.get(block)) {
+                retransmissions++;
+                return;
+            }
+            seenBlocks.set(block);
+            highestBlock = Math.max(highestBlock, block);
+            dataBytes += TftpPacket.payloadLength(packet);
+        }
+
+        private Snapshot snapshot() {
+            return new Snapshot(client, fileName, lastNanos - startNanos, dataBytes, dataPackets, retransmissions);
+        }
+
+        /**
+         * Totals of a flow at one moment.
+         */
+        public static final class Snapshot {
+            public final SocketAddress client;
+            public final String fileName; // from the client's request, or null if it was not an RRQ or WRQ
+            public final long durationNanos; // from the request to the last datagram in either direction
+            public final long dataBytes; // distinct DATA payload bytes
+            public final long dataPackets; // DATA datagrams, including resends
+            public final long retransmissions; // DATA datagrams for blocks already seen
+
+            private Snapshot(SocketAddress client, String fileName, long durationNanos, long dataBytes, long dataPackets, long retransmissions) {
+                this.client = client;
+                this.fileName = fileName;
+                this.durationNanos = durationNanos;
+                this.dataBytes = dataBytes;
+                this.dataPackets = dataPackets;
+                this.retransmissions = retransmissions;
+            }
+        }
+    }
+
+    // Where a client-facing socket forwards to: the server TID it stands in for
+    private static final class Route {
+        final Flow flow;
+        final SocketAddress serverTid;
+
+        Route(Flow flow, SocketAddress serverTid) {
+            this.flow = flow;
+            this.serverTid = serverTid;
+        }
+    }
+
+    private static final class Pending implements Comparable<Pending> {
+        final long dueNanos;
+        final long sequence;
+        final DatagramChannel channel;
+        final SocketAddress destination;
+        final byte[] data;
+
+        Pending(long dueNanos, long sequence, DatagramChannel channel, SocketAddress destination, byte[] data) {
+            this.dueNanos = dueNanos;
+            this.sequence = sequence;
+            this.channel = channel;
+            this.destination = destination;
+            this.data = data;
+        }
+
+        @Override
+        public int compareTo(Pending other) {
+            int byDue = Long.compare(dueNanos, other.dueNanos);
+            return byDue != 0 ? byDue : Long.compare(sequence, other.sequence);
+        }
+    }
+}
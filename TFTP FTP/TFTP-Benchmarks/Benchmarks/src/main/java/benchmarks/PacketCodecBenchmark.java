@@ -0,0 +1,97 @@
+package benchmarks;
+
+import codec.BufferPool;
+import codec.TftpPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode cost of single packets. The DATA and ACK paths run once per block, so they should stay
+ * allocation-free; {@code -prof gc} shows whether they do.
+ * <p>
+ * {@code java -jar target/benchmarks.jar PacketCodecBenchmark -prof gc}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketCodecBenchmark {
+    @Param({"512", "1428", "8192"})
+    public int blockSize;
+
+    private ByteBuffer data;
+    private ByteBuffer ack;
+    private ByteBuffer request;
+    private ByteBuffer oack;
+    private Map<String, String> options;
+
+    @Setup
+    public void setUp() {
+        options = new LinkedHashMap<>();
+        options.put("blksize", Integer.toString(blockSize));
+        options.put("windowsize", "16");
+        options.put("timeout", "1");
+
+        data = ByteBuffer.allocate(blockSize + TftpPacket.HEADER_SIZE);
+        TftpPacket.putData(data, 1, blockSize);
+        ack = TftpPacket.putAck(ByteBuffer.allocate(TftpPacket.HEADER_SIZE), 1);
+        request = ByteBuffer.allocate(TftpPacket.MAX_PACKET_SIZE);
+        oack = TftpPacket.putOack(ByteBuffer.allocate(TftpPacket.MAX_PACKET_SIZE), options);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeData() {
+        return TftpPacket.putData(data, 4242, blockSize);
+    }
+
+    @Benchmark
+    public void decodeData(Blackhole blackhole) {
+        blackhole.consume(TftpPacket.opcode(data));
+        blackhole.consume(TftpPacket.blockNumber(data));
+        blackhole.consume(TftpPacket.payloadLength(data));
+    }
+
+    @Benchmark
+    public ByteBuffer encodeAck() {
+        return TftpPacket.putAck(ack, 4242);
+    }
+
+    @Benchmark
+    public int decodeAck() {
+        return TftpPacket.opcode(ack) == TftpPacket.OP_ACK ? TftpPacket.blockNumber(ack) : -1;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeRequest() {
+        return TftpPacket.putRequest(request, TftpPacket.OP_RRQ, "firmware-image.bin", "octet", options);
+    }
+
+    @Benchmark
+    public Map<String, String> decodeOack() {
+        return TftpPacket.parseOack(oack);
+    }
+
+    @Benchmark
+    public ByteBuffer pooledBuffer() {
+        ByteBuffer buffer = BufferPool.SHARED.acquire(blockSize + TftpPacket.HEADER_SIZE);
+        BufferPool.SHARED.release(buffer);
+        return buffer;
+    }
+}
@@ -0,0 +1,92 @@
+package benchmarks;
+
+import codec.TftpPacket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RRQs against {@code MTTCPServer} over loopback, reading the stream into a direct buffer of {@code readSize}
+ * bytes and discarding it, so the server's file send dominates. The {@code bytes} counter gives the throughput.
+ * <p>
+ * {@code java -jar target/benchmarks.jar TcpTransferBenchmark -prof gc}, adding
+ * {@code -jvmArgsAppend -Dtftp.mmap=true} to measure mapped sends instead of transferTo.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TcpTransferBenchmark {
+    private static final int CONNECT_ATTEMPTS = 50;
+
+    @Param({"1048576", "67108864"})
+    public int fileSize;
+
+    @Param({"8192", "65536", "1048576"})
+    public int readSize;
+
+    private InetSocketAddress server;
+    private ByteBuffer request;
+    private ByteBuffer readBuffer;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        // The TCP server opens request paths as given, so an absolute path reaches the benchmark's file. Its
+        // requests carry an empty mode, which leaves the two terminators the server reads up to.
+        String path = Fixtures.directory().resolve("Sending Files").resolve(Fixtures.sendingFile(fileSize)).toString();
+        request = TftpPacket.putRequest(ByteBuffer.allocate(TftpPacket.MAX_PACKET_SIZE), TftpPacket.OP_RRQ, path, "", Collections.emptyMap());
+        readBuffer = ByteBuffer.allocateDirect(readSize);
+        server = Fixtures.tcpServer();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                long bytes = read(new Transferred());
+                if (bytes != fileSize) {
+                    throw new IllegalStateException("Expected " + fileSize + " bytes from the server, got " + bytes);
+                }
+                return;
+            } catch (ConnectException e) {
+                if (attempt == CONNECT_ATTEMPTS) {
+                    throw e;
+                }
+                Thread.sleep(100); // the server is still starting
+            }
+        }
+    }
+
+    @Benchmark
+    public long read(Transferred transferred) throws IOException {
+        long bytes = 0;
+        try (SocketChannel channel = SocketChannel.open()) {
+            channel.socket().setReceiveBufferSize(1024 * 1024);
+            channel.connect(server);
+            request.rewind();
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+            int read;
+            while ((read = channel.read(readBuffer.clear())) != -1) {
+                bytes += read;
+            }
+        }
+        transferred.bytes += bytes;
+        return bytes;
+    }
+}
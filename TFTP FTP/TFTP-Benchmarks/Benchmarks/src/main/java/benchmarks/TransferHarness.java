@@ -0,0 +1,222 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs whole transfers of the real {@code UDPSocketClient} against the UDP server through an
+ * {@link ImpairmentProxy}, and reports how they went.
+ * <p>
+ * The server and the proxy run in this JVM. Each transfer starts a new client process with its own working
+ * directory and its own file name. A transfer counts as complete when the file on the other side matches the
+ * source byte for byte. Completion times, goodput and retransmissions come from the proxy's view of each flow.
+ * So they measure the protocol on the simulated link, not the client's JVM start-up.
+ * <p>
+ * {@code java -Dproxy.loss=0.02 -Dproxy.delay=10 -Dproxy.jitter=5 -Dharness.transfers=20 -cp target/benchmarks.jar benchmarks.TransferHarness}
+ * <p>
+ * Settings, as system properties:
+ * <ul>
+ * <li>{@code harness.operation}: {@code read} (RRQ, the default) or {@code write} (WRQ).</li>
+ * <li>{@code harness.fileSize}: bytes per transfer, default 1 MiB.</li>
+ * <li>{@code harness.transfers}: how many transfers to run, default 20.</li>
+ * <li>{@code harness.concurrency}: how many run at once, default 1.</li>
+ * <li>{@code harness.clientOpts}: JVM options for each client, e.g. {@code "-Dtftp.blksize=8192 -Dtftp.windowsize=8"}.</li>
+ * <li>{@code harness.timeout}: seconds before a client is killed and its transfer counted as failed, default 120.</li>
+ * <li>{@code harness.proxyPort}: the proxy's listen port, default {@code bench.udpPort} + 100.</li>
+ * <li>{@code harness.seed}: seed for the proxy's impairment decisions.</li>
+ * <li>{@code proxy.*}: the impairment, see {@link ImpairmentProxy.Impairment#fromSystemProperties()}.</li>
+ * </ul>
+ * Server settings such as {@code tftp.engine} apply to the in-process server as usual.
+ */
+public final class TransferHarness {
+    private static final boolean WRITE = "write".equalsIgnoreCase(System.getProperty("harness.operation", "read"));
+    private static final int FILE_SIZE = Integer.getInteger("harness.fileSize", 1024 * 1024);
+    private static final int TRANSFERS = Integer.getInteger("harness.transfers", 20);
+    private static final int CONCURRENCY = Math.max(1, Integer.getInteger("harness.concurrency", 1));
+    private static final String CLIENT_OPTS = System.getProperty("harness.clientOpts", "").trim();
+    private static final int TIMEOUT_SECONDS = Integer.getInteger("harness.timeout", 120);
+    private static final int PROXY_PORT = Integer.getInteger("harness.proxyPort", Fixtures.UDP_PORT + 100);
+    private static final long SEED = Long.getLong("harness.seed", 42);
+
+    private TransferHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out; // the fixtures silence System.out for the server's per-transfer logging
+        Path directory = Fixtures.directory();
+        Path source = directory.resolve("harness-source.bin");
+        byte[] data = new byte[FILE_SIZE];
+        new Random(SEED).nextBytes(data);
+        Files.write(source, data);
+
+        InetSocketAddress server = Fixtures.udpServer();
+        ImpairmentProxy.Impairment impairment = ImpairmentProxy.Impairment.fromSystemProperties();
+        try (ImpairmentProxy proxy = new ImpairmentProxy(PROXY_PORT, server, impairment, SEED)) {
+            Thread proxyThread = new Thread(proxy, "impairment-proxy");
+            proxyThread.setDaemon(true);
+            proxyThread.start();
+
+            out.println((WRITE ? "WRQ" : "RRQ") + " of " + TRANSFERS + " x " + FILE_SIZE + " bytes, " + CONCURRENCY + " at a time"
+                    + (CLIENT_OPTS.isEmpty() ? "" : ", client " + CLIENT_OPTS));
+            out.println("link: " + impairment);
+
+            ExecutorService clients = Executors.newFixedThreadPool(CONCURRENCY);
+            List<Future<String>> results = new ArrayList<>();
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < TRANSFERS; i++) {
+                int transfer = i;
+                results.add(clients.submit(() -> transfer(directory, source, transfer)));
+            }
+            List<String> failures = new ArrayList<>();
+            for (Future<String> result : results) {
+                String failure = result.get();
+                if (failure != null) {
+                    failures.add(failure);
+                }
+            }
+            long wallNanos = System.nanoTime() - startNanos;
+            clients.shutdown();
+
+            report(out, proxy, failures, wallNanos);
+        }
+    }
+
+    // Runs one client process; returns null on success or a line describing the failure
+    private static String transfer(Path directory, Path source, int transfer) throws IOException, InterruptedException {
+        String fileName = "harness-" + transfer + ".bin";
+        Path clientDirectory = directory.resolve("clients").resolve(Integer.toString(transfer));
+        Files.createDirectories(clientDirectory.resolve("Sending Files"));
+        Files.createDirectories(clientDirectory.resolve("Receiving Files"));
+        Path from = (WRITE ? clientDirectory : directory).resolve("Sending Files").resolve(fileName);
+        Path to = (WRITE ? directory : clientDirectory).resolve("Receiving Files").resolve(fileName);
+        link(source, from);
+
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        if (!CLIENT_OPTS.isEmpty()) {
+            command.addAll(Arrays.asList(CLIENT_OPTS.split("\\s+")));
+        }
+        command.add("-cp");
+        command.add(classPath());
+        command.add("client.UDPSocketClient");
+        Path log = clientDirectory.resolve("client.log");
+        Process client = new ProcessBuilder(command).directory(clientDirectory.toFile())
+                .redirectErrorStream(true).redirectOutput(log.toFile()).start();
+        // The client's prompts: server address, port, operation (1 = WRQ, 2 = RRQ) and file name
+        try (Writer input = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.US_ASCII)) {
+            input.write("127.0.0.1\n" + PROXY_PORT + "\n" + (WRITE ? "1" : "2") + "\n" + fileName + "\n");
+        }
+        if (!client.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            client.destroyForcibly();
+            return fileName + ": timed out after " + TIMEOUT_SECONDS + " s";
+        }
+        // The server may still be renaming an upload into place after the client's final ACK
+        for (int attempt = 0; attempt < 50 && !Files.exists(to); attempt++) {
+            Thread.sleep(20);
+        }
+        if (!Files.exists(to) || Files.mismatch(from, to) != -1) {
+            List<String> lines = Files.readAllLines(log, StandardCharsets.UTF_8);
+            return fileName + ": " + (Files.exists(to) ? "contents differ" : "not transferred")
+                    + (lines.isEmpty() ? "" : " (client: " + lines.get(lines.size() - 1).trim() + ")");
+        }
+        return null;
+    }
+
+    // This JVM's class path, made absolute because the client runs in its own directory
+    private static String classPath() {
+        List<String> entries = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            entries.add(Paths.get(entry).toAbsolutePath().toString());
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    // Hard links keep a run of large files from filling the disk; copy where links are not supported
+    private static void link(Path source, Path link) throws IOException {
+        try {
+            Files.createLink(link, source);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(source, link);
+        }
+    }
+
+    private static void report(PrintStream out, ImpairmentProxy proxy, List<String> failures, long wallNanos) {
+        Map<String, ImpairmentProxy.Flow.Snapshot> flowsByFile = new HashMap<>();
+        for (ImpairmentProxy.Flow.Snapshot flow : proxy.flows()) {
+            if (flow.fileName != null) {
+                flowsByFile.put(flow.fileName, flow);
+            }
+        }
+        List<ImpairmentProxy.Flow.Snapshot> completed = new ArrayList<>();
+        for (int i = 0; i < TRANSFERS; i++) {
+            String fileName = "harness-" + i + ".bin";
+            ImpairmentProxy.Flow.Snapshot flow = flowsByFile.get(fileName);
+            if (flow != null && failures.stream().noneMatch(failure -> failure.startsWith(fileName + ":"))) {
+                completed.add(flow);
+            }
+        }
+
+        out.printf("completed %d/%d in %.2f s%n", TRANSFERS - failures.size(), TRANSFERS, wallNanos / 1e9);
+        for (String failure : failures) {
+            out.println("  failed " + failure);
+        }
+        if (completed.isEmpty()) {
+            out.println(proxy);
+            return;
+        }
+        int n = completed.size();
+        double[] millis = new double[n];
+        double[] goodput = new double[n];
+        long[] retransmits = new long[n];
+        long bytes = 0;
+        long nanos = 0;
+        long dataPackets = 0;
+        long retransmissions = 0;
+        for (int i = 0; i < n; i++) {
+            ImpairmentProxy.Flow.Snapshot flow = completed.get(i);
+            millis[i] = flow.durationNanos / 1e6;
+            goodput[i] = flow.dataBytes / (flow.durationNanos / 1e9) / 1e6;
+            retransmits[i] = flow.retransmissions;
+            bytes += flow.dataBytes;
+            nanos += flow.durationNanos;
+            dataPackets += flow.dataPackets;
+            retransmissions += flow.retransmissions;
+        }
+        Arrays.sort(millis);
+        Arrays.sort(goodput);
+        Arrays.sort(retransmits);
+        out.printf("completion ms: p50 %.1f  p90 %.1f  p99 %.1f  max %.1f%n",
+                percentile(millis, 50), percentile(millis, 90), percentile(millis, 99), millis[n - 1]);
+        // The slow tail of goodput is its low end
+        out.printf("goodput MB/s: mean %.2f  p50 %.2f  p10 %.2f  min %.2f%n",
+                bytes / (nanos / 1e9) / 1e6, percentile(goodput, 50), percentile(goodput, 10), goodput[0]);
+        out.printf("DATA retransmits: %d of %d DATA packets (%.2f%%), per transfer p50 %d  max %d%n",
+                retransmissions, dataPackets, dataPackets == 0 ? 0 : 100.0 * retransmissions / dataPackets,
+                retransmits[(n - 1) / 2], retransmits[n - 1]);
+        out.println(proxy);
+    }
+
+    // Nearest-rank percentile of sorted values
+    private static double percentile(double[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
@@ -0,0 +1,227 @@
+package benchmarks;
+
+import codec.TftpPacket;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Minimal TFTP client that drives the UDP server's transfer loops from a benchmark.
+ * <p>
+ * It asks for the given block and window size, keeps every payload in memory and reuses its packet buffers, so
+ * what a benchmark measures is the server's work plus the unavoidable socket calls. Each transfer runs on a
+ * fresh socket, so late retransmissions of an earlier transfer cannot be mistaken for the next one's replies.
+ */
+final class UdpPeer {
+    private static final int TIMEOUT_MILLIS = 200;
+    private static final int MAX_RETRIES = 25;
+
+    private final InetSocketAddress server;
+    private final int blockSize;
+    private final int windowSize;
+    private final Map<String, String> options = new LinkedHashMap<>();
+    private final ByteBuffer receiveBuffer;
+    private final DatagramPacket receivePacket;
+    private final ByteBuffer sendBuffer;
+    private final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+
+    UdpPeer(InetSocketAddress server, int blockSize, int windowSize) {
+        this.server = server;
+        this.blockSize = blockSize;
+        this.windowSize = windowSize;
+        options.put("blksize", Integer.toString(blockSize));
+        options.put("windowsize", Integer.toString(windowSize));
+        this.receiveBuffer = ByteBuffer.allocate(blockSize + TftpPacket.HEADER_SIZE);
+        this.receivePacket = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
+        this.sendBuffer = ByteBuffer.allocate(Math.max(blockSize + TftpPacket.HEADER_SIZE, 1024));
+    }
+
+    /**
+     * Reads a file from the server's "Sending Files" directory and discards it.
+     *
+     * @param fileName The file to read.
+     * @return The number of bytes received.
+     * @throws IOException If the server reports an error or stops answering.
+     */
+    long read(String fileName) throws IOException {
+        try (DatagramSocket socket = open()) {
+            InetSocketAddress transferId = null;
+            send(socket, TftpPacket.putRequest(sendBuffer, TftpPacket.OP_RRQ, fileName, "octet", options), server);
+            int expectedBlock = 1;
+            int blocksSinceAck = 0;
+            long bytes = 0;
+            int retries = 0;
+            while (true) {
+                ByteBuffer packet;
+                try {
+                    packet = receive(socket, transferId);
+                } catch (SocketTimeoutException e) {
+                    checkRetries(++retries, fileName);
+                    // Like the real client: ACK the in-order blocks of a partial window, or repeat the request or our last ACK
+                    if (blocksSinceAck > 0) {
+                        TftpPacket.putAck(sendBuffer, expectedBlock - 1);
+                        blocksSinceAck = 0;
+                    }
+                    send(socket, sendBuffer, transferId != null ? transferId : server);
+                    continue;
+                }
+                retries = 0;
+                transferId = (InetSocketAddress) receivePacket.getSocketAddress();
+                int opcode = TftpPacket.opcode(packet);
+                if (opcode == TftpPacket.OP_ERROR) {
+                    throw new IOException("Server error: " + TftpPacket.errorMessage(packet));
+                }
+                if (opcode == TftpPacket.OP_OACK) {
+                    if (expectedBlock == 1) {
+                        send(socket, TftpPacket.putAck(sendBuffer, 0), transferId);
+                    }
+                    continue;
+                }
+                if (opcode != TftpPacket.OP_DATA) {
+                    continue;
+                }
+                int blockNumber = TftpPacket.blockNumber(packet);
+                if (blockNumber != (expectedBlock & 0xFFFF)) {
+                    // A gap, or a duplicate in lock-step: ACK the last in-order block so the server resumes after it.
+                    // Like the real client, duplicates within a window go unanswered
+                    boolean ahead = ((blockNumber - expectedBlock) & 0xFFFF) < 0x8000;
+                    if (ahead || windowSize == 1) {
+                        send(socket, TftpPacket.putAck(sendBuffer, expectedBlock - 1), transferId);
+                        blocksSinceAck = 0;
+                    }
+                    continue;
+                }
+                int length = TftpPacket.payloadLength(packet);
+                bytes += length;
+                blocksSinceAck++;
+                boolean finalBlock = length < blockSize;
+                if (finalBlock || blocksSinceAck == windowSize) {
+                    send(socket, TftpPacket.putAck(sendBuffer, expectedBlock), transferId);
+                    blocksSinceAck = 0;
+                }
+                if (finalBlock) {
+                    return bytes;
+                }
+                expectedBlock++;
+            }
+        }
+    }
+
+    /**
+     * Writes a file to the server's "Receiving Files" directory.
+     *
+     * @param fileName The name to store the file under.
+     * @param data The file contents.
+     * @return The number of bytes sent.
+     * @throws IOException If the server reports an error or stops answering.
+     */
+    long write(String fileName, byte[] data) throws IOException {
+        try (DatagramSocket socket = open()) {
+            InetSocketAddress transferId = null;
+            int retries = 0;
+            while (transferId == null) {
+                send(socket, TftpPacket.putRequest(sendBuffer, TftpPacket.OP_WRQ, fileName, "octet", options), server);
+                ByteBuffer packet;
+                try {
+                    packet = receive(socket, null);
+                } catch (SocketTimeoutException e) {
+                    checkRetries(++retries, fileName);
+                    continue;
+                }
+                int opcode = TftpPacket.opcode(packet);
+                if (opcode == TftpPacket.OP_ERROR) {
+                    throw new IOException("Server error: " + TftpPacket.errorMessage(packet));
+                }
+                if (opcode == TftpPacket.OP_OACK || (opcode == TftpPacket.OP_ACK && TftpPacket.blockNumber(packet) == 0)) {
+                    transferId = (InetSocketAddress) receivePacket.getSocketAddress();
+                }
+            }
+
+            // The real client's sender: keep a window in flight, rewind at most once per position on duplicate ACKs
+            int finalBlock = data.length / blockSize + 1;
+            int firstUnacked = 1;
+            int nextBlock = 1;
+            int rewoundAt = -1;
+            retries = 0;
+            while (true) {
+                while (nextBlock < firstUnacked + windowSize && nextBlock <= finalBlock) {
+                    int offset = (nextBlock - 1) * blockSize;
+                    int length = Math.min(blockSize, data.length - offset);
+                    TftpPacket.payload(sendBuffer, blockSize).put(data, offset, length);
+                    send(socket, TftpPacket.putData(sendBuffer, nextBlock, length), transferId);
+                    nextBlock++;
+                }
+                ByteBuffer packet;
+                try {
+                    packet = receive(socket, transferId);
+                } catch (SocketTimeoutException e) {
+                    checkRetries(++retries, fileName);
+                    nextBlock = firstUnacked; // resend everything still unacknowledged
+                    continue;
+                }
+                int opcode = TftpPacket.opcode(packet);
+                if (opcode == TftpPacket.OP_ERROR) {
+                    throw new IOException("Server error: " + TftpPacket.errorMessage(packet));
+                }
+                if (opcode != TftpPacket.OP_ACK) {
+                    continue;
+                }
+                // Map the 16-bit ACK onto the blocks in flight; anything outside them is stale
+                int ackedBlock = firstUnacked - 1 + ((TftpPacket.blockNumber(packet) - (firstUnacked - 1)) & 0xFFFF);
+                if (ackedBlock >= nextBlock) {
+                    continue;
+                }
+                if (ackedBlock == firstUnacked - 1) {
+                    if (windowSize > 1 && rewoundAt != firstUnacked) {
+                        rewoundAt = firstUnacked;
+                        nextBlock = firstUnacked;
+                    }
+                    continue;
+                }
+                retries = 0;
+                if (ackedBlock == finalBlock) {
+                    return data.length;
+                }
+                firstUnacked = ackedBlock + 1;
+                nextBlock = firstUnacked;
+            }
+        }
+    }
+
+    private DatagramSocket open() throws IOException {
+        DatagramSocket socket = new DatagramSocket();
+        TftpPacket.fitWindow(socket, blockSize, windowSize); // sized the way the client sizes its own
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        return socket;
+    }
+
+    private ByteBuffer receive(DatagramSocket socket, InetSocketAddress transferId) throws IOException {
+        while (true) {
+            receivePacket.setLength(receiveBuffer.capacity());
+            socket.receive(receivePacket);
+            if (transferId == null || transferId.equals(receivePacket.getSocketAddress())) {
+                receiveBuffer.clear();
+                receiveBuffer.limit(receivePacket.getLength());
+                return receiveBuffer;
+            }
+        }
+    }
+
+    private void send(DatagramSocket socket, ByteBuffer packet, InetSocketAddress destination) throws IOException {
+        sendPacket.setData(packet.array(), 0, packet.limit());
+        sendPacket.setSocketAddress(destination);
+        socket.send(sendPacket);
+    }
+
+    private static void checkRetries(int retries, String fileName) throws IOException {
+        if (retries > MAX_RETRIES) {
+            throw new IOException("Transfer of " + fileName + " timed out after " + MAX_RETRIES + " retries");
+        }
+    }
+}
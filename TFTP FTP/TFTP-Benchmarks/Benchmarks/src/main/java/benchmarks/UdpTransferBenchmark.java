@@ -0,0 +1,67 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole RRQ and WRQ transfers against the UDP server over loopback, lock-step (window 1) and windowed. The
+ * {@code bytes} counter gives the throughput; loopback has no loss, so this measures per-block CPU cost and
+ * syscalls rather than the network.
+ * <p>
+ * {@code java -jar target/benchmarks.jar UdpTransferBenchmark -prof gc}, adding
+ * {@code -jvmArgsAppend -Dtftp.engine=nio} to measure the NIO engine instead of thread-per-transfer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UdpTransferBenchmark {
+    @Param({"65536", "1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"512", "1428", "8192"})
+    public int blockSize;
+
+    @Param({"1", "16"})
+    public int windowSize;
+
+    private String fileName;
+    private byte[] upload;
+    private UdpPeer peer;
+
+    @Setup
+    public void setUp() throws IOException {
+        fileName = Fixtures.sendingFile(fileSize);
+        upload = Files.readAllBytes(Fixtures.directory().resolve("Sending Files").resolve(fileName));
+        peer = new UdpPeer(Fixtures.udpServer(), blockSize, windowSize);
+    }
+
+    @Benchmark
+    public long read(Transferred transferred) throws IOException {
+        long bytes = peer.read(fileName);
+        transferred.bytes += bytes;
+        return bytes;
+    }
+
+    @Benchmark
+    public long write(Transferred transferred) throws IOException {
+        long bytes = peer.write("upload-" + fileName, upload);
+        transferred.bytes += bytes;
+        return bytes;
+    }
+}
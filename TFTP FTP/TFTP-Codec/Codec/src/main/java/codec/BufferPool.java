@@ -0,0 +1,80 @@
+package codec;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe pool of heap packet buffers, so transfers reuse buffers instead of allocating new ones.
+ * <p>
+ * Buffers come in power-of-two sizes from 512 bytes up to 64 KiB, which covers every TFTP packet. A request is
+ * served from the smallest size that fits. Each size keeps at most {@code -Dtftp.pooledBuffers} idle buffers
+ * (default 1024); buffers released beyond that are left to the garbage collector. Heap buffers are used
+ * because {@link java.net.DatagramPacket} needs a backing array.
+ */
+public final class BufferPool {
+    public static final BufferPool SHARED = new BufferPool(Integer.getInteger("tftp.pooledBuffers", 1024));
+
+    private static final int MIN_SHIFT = 9; // 512 bytes
+    private static final int MAX_SHIFT = 16; // 64 KiB
+
+    private final int maxIdlePerSize;
+    private final Queue<ByteBuffer>[] idle;
+    private final AtomicInteger[] idleCounts;
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxIdlePerSize) {
+        this.maxIdlePerSize = maxIdlePerSize;
+        int sizes = MAX_SHIFT - MIN_SHIFT + 1;
+        this.idle = new Queue[sizes];
+        this.idleCounts = new AtomicInteger[sizes];
+        for (int i = 0; i < sizes; i++) {
+            idle[i] = new ConcurrentLinkedQueue<>();
+            idleCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @param minCapacity The smallest capacity the caller needs, at most 64 KiB.
+     * @return A cleared buffer with at least that capacity.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        int index = sizeIndex(minCapacity);
+        ByteBuffer buffer = idle[index].poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(1 << (index + MIN_SHIFT));
+        }
+        idleCounts[index].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer for reuse; the caller must not touch it afterwards.
+     *
+     * @param buffer A buffer from {@link #acquire(int)}, or null, which is ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || Integer.bitCount(buffer.capacity()) != 1) {
+            return;
+        }
+        int index = Integer.numberOfTrailingZeros(buffer.capacity()) - MIN_SHIFT;
+        if (index < 0 || index >= idle.length) {
+            return;
+        }
+        if (idleCounts[index].incrementAndGet() > maxIdlePerSize) {
+            idleCounts[index].decrementAndGet();
+            return;
+        }
+        idle[index].offer(buffer);
+    }
+
+    private static int sizeIndex(int capacity) {
+        int shift = Math.max(32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1), MIN_SHIFT);
+        if (shift > MAX_SHIFT) {
+            throw new IllegalArgumentException("Packet buffers are limited to 64 KiB, asked for " + capacity);
+        }
+        return shift - MIN_SHIFT;
+    }
+}
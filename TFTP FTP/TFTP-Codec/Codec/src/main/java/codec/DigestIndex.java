@@ -0,0 +1,131 @@
+package codec;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Digests of the files a server holds, keyed by path, size and modification time, so a file is hashed once per
+ * version rather than once per transfer.
+ * <p>
+ * Entries come from two places: a file a server had to hash for an RRQ, and a file it received whose digest it
+ * computed while the blocks streamed in. A file that changes gets a new size or time and so a new entry; the old
+ * one is simply never looked up again. With {@code -Dtftp.digestIndex=<file>} the index is also appended to that
+ * file and read back at startup, so a restarted server does not re-hash its hot files either.
+ */
+public final class DigestIndex {
+    public static final DigestIndex SHARED = new DigestIndex(System.getProperty("tftp.digestIndex"));
+
+    private final Path journal; // null keeps the index in memory only
+    private final ConcurrentMap<String, String> digests = new ConcurrentHashMap<>();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet(); // keys being hashed in the background
+    private final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tftp-digest");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public DigestIndex(String journal) {
+        this.journal = journal != null ? Paths.get(journal) : null;
+        if (this.journal != null && Files.exists(this.journal)) {
+            try {
+                // One "algorithm size time path<TAB>digest" line per entry; later lines win
+                List<String> lines = Files.readAllLines(this.journal, StandardCharsets.UTF_8);
+                for (String line : lines) {
+                    int tab = line.lastIndexOf('\t');
+                    if (tab > 0) {
+                        digests.put(line.substring(0, tab), line.substring(tab + 1));
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to read the digest index " + journal + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Looks up the digest of the current version of a file, hashing it if the index does not have it yet.
+     *
+     * @param file The file.
+     * @param algorithm {@link FileDigest#SHA256} or {@link FileDigest#CRC32C}.
+     * @param mayBlock Whether the caller can wait for the file to be hashed; false on an event loop, where a missing
+     *                 digest is computed in the background for the next request.
+     * @return The digest, {@code algorithm:hex}, or null if it is not known yet.
+     * @throws IOException If the file cannot be read.
+     */
+    public String digestOf(Path file, String algorithm, boolean mayBlock) throws IOException {
+        String key = key(file, algorithm);
+        String digest = digests.get(key);
+        if (digest != null) {
+            return digest;
+        }
+        if (mayBlock) {
+            return hash(file, key, algorithm);
+        }
+        if (pending.add(key)) {
+            background.execute(() -> {
+                try {
+                    hash(file, key, algorithm);
+                } catch (IOException e) {
+                    System.err.println("Failed to hash " + file + ": " + e.getMessage());
+                } finally {
+                    pending.remove(key);
+                }
+            });
+        }
+        return null;
+    }
+
+    /**
+     * Records the digest of a file that was computed some other way, such as while it was being received.
+     *
+     * @param file The file, as it is now on disk.
+     * @param digest Its digest, {@code algorithm:hex}.
+     * @throws IOException If the file's size or time cannot be read.
+     */
+    public void put(Path file, String digest) throws IOException {
+        put(key(file, FileDigest.algorithmOf(digest)), digest);
+    }
+
+    private String hash(Path file, String key, String algorithm) throws IOException {
+        String digest;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            digest = FileDigest.ofPrefix(channel, channel.size(), algorithm).finish();
+        }
+        // The file may have changed while it was read; then the entry is keyed to a version nobody will ask for
+        put(key, digest);
+        return digest;
+    }
+
+    private void put(String key, String digest) {
+        if (digest.equals(digests.put(key, digest)) || journal == null) {
+            return;
+        }
+        synchronized (this) {
+            try (BufferedWriter out = Files.newBufferedWriter(journal, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                out.write(key + "\t" + digest);
+                out.newLine();
+            } catch (IOException e) {
+                System.err.println("Failed to append to the digest index " + journal + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // The algorithm, since a file can be asked for under either, then size, modification time and path
+    private static String key(Path file, String algorithm) throws IOException {
+        Path path = file.toAbsolutePath().normalize();
+        return algorithm + " " + Files.size(path) + " " + Files.getLastModifiedTime(path).toMillis() + " " + path;
+    }
+}
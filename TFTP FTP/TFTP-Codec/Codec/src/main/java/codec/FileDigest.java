@@ -0,0 +1,151 @@
+package codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * A whole-file digest, fed block by block as a transfer streams through it, so that verifying a file costs no
+ * second pass over the disk.
+ * <p>
+ * Digests travel as {@code algorithm:hex}, e.g. {@code sha256:9f86...} or {@code crc32c:1b2c3d4e}: SHA-256 for
+ * integrity against anything, CRC-32C when only transmission and storage errors matter and hashing speed does.
+ * CRC-32C (Castagnoli) is computed here rather than by {@code java.util.zip.CRC32C}, which Java 8 lacks.
+ */
+public final class FileDigest {
+    public static final String SHA256 = "sha256";
+    public static final String CRC32C = "crc32c";
+
+    private static final int[] CRC32C_TABLE = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1; // reflected Castagnoli polynomial
+            }
+            CRC32C_TABLE[i] = crc;
+        }
+    }
+
+    private final String algorithm;
+    private final MessageDigest sha256; // null for CRC-32C
+    private int crc = 0xFFFFFFFF;
+
+    private FileDigest(String algorithm, MessageDigest sha256) {
+        this.algorithm = algorithm;
+        this.sha256 = sha256;
+    }
+
+    /**
+     * @param algorithm {@link #SHA256} or {@link #CRC32C}, in any case.
+     * @return Whether {@link #create} accepts it.
+     */
+    public static boolean isSupported(String algorithm) {
+        return SHA256.equalsIgnoreCase(algorithm) || CRC32C.equalsIgnoreCase(algorithm);
+    }
+
+    /**
+     * @param algorithm {@link #SHA256} or {@link #CRC32C}, in any case.
+     * @return A new, empty digest.
+     * @throws IllegalArgumentException If the algorithm is not supported.
+     */
+    public static FileDigest create(String algorithm) {
+        String name = algorithm.toLowerCase(Locale.ROOT);
+        if (CRC32C.equals(name)) {
+            return new FileDigest(CRC32C, null);
+        }
+        if (!SHA256.equals(name)) {
+            throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm);
+        }
+        try {
+            return new FileDigest(SHA256, MessageDigest.getInstance("SHA-256"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every Java platform provides SHA-256", e);
+        }
+    }
+
+    /**
+     * @param digest A digest as sent, {@code algorithm:hex}.
+     * @return Its algorithm, or null if it has none.
+     */
+    public static String algorithmOf(String digest) {
+        int colon = digest.indexOf(':');
+        return colon > 0 ? digest.substring(0, colon).toLowerCase(Locale.ROOT) : null;
+    }
+
+    /**
+     * Digests a file from the start to the given length.
+     *
+     * @param file The file, open for reading.
+     * @param length How many bytes to digest.
+     * @param algorithm {@link #SHA256} or {@link #CRC32C}.
+     * @return A digest holding those bytes, to which more may be added.
+     * @throws IOException If the file cannot be read.
+     */
+    public static FileDigest ofPrefix(FileChannel file, long length, String algorithm) throws IOException {
+        FileDigest digest = create(algorithm);
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        while (position < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            digest.update(buffer.array(), 0, read);
+            position += read;
+        }
+        return digest;
+    }
+
+    public String algorithm() {
+        return algorithm;
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        if (sha256 != null) {
+            sha256.update(data, offset, length);
+            return;
+        }
+        int value = crc;
+        for (int i = offset; i < offset + length; i++) {
+            value = (value >>> 8) ^ CRC32C_TABLE[(value ^ data[i]) & 0xFF];
+        }
+        crc = value;
+    }
+
+    /**
+     * Adds the buffer's remaining bytes, leaving it at its limit.
+     *
+     * @param data The bytes to add.
+     */
+    public void update(ByteBuffer data) {
+        if (sha256 != null) {
+            sha256.update(data);
+        } else if (data.hasArray()) {
+            update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+        } else {
+            while (data.hasRemaining()) {
+                crc = (crc >>> 8) ^ CRC32C_TABLE[(crc ^ data.get()) & 0xFF];
+            }
+        }
+    }
+
+    /**
+     * Ends the digest; it must not be updated afterwards.
+     *
+     * @return The digest as sent, {@code algorithm:hex}.
+     */
+    public String finish() {
+        byte[] value = sha256 != null ? sha256.digest() : ByteBuffer.allocate(4).putInt(~crc).array();
+        StringBuilder text = new StringBuilder(algorithm.length() + 1 + value.length * 2).append(algorithm).append(':');
+        for (byte b : value) {
+            text.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return text.toString();
+    }
+}
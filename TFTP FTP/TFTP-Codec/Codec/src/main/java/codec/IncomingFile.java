@@ -0,0 +1,199 @@
+package codec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Destination of an incoming transfer.
+ * <p>
+ * Blocks are appended to a temporary file in the target's directory as they arrive, through a {@link WriteBehind}
+ * stage, so the disk writes happen off the thread that ACKs and memory use does not grow with the file size. The
+ * temporary file only replaces the target when {@link #commit()} is called after the final block, once everything
+ * is written and, if {@code -Dtftp.fsync} asks for it, synced; closing without committing deletes it and leaves
+ * any existing target untouched. Client and server both receive files through it.
+ */
+public final class IncomingFile implements Closeable {
+    // Bytes gathered per write to the channel; 0 writes every block straight through when -Dtftp.writeBehind=0
+    public static final int WRITE_BUFFER_SIZE = Integer.getInteger("tftp.writeBufferSize", 64 * 1024);
+
+    private final Path target;
+    private final Path temporary;
+    private final FileChannel channel;
+    private final WriteBehind writer;
+    private Inflater inflater; // set by inflate() when the blocks carry a zlib stream of the file
+    private byte[] inflated;
+    private FileDigest digest; // set by digest() to hash the file as its blocks are written
+    private long size; // bytes of the file written so far, after any inflating
+    private boolean committed;
+
+    /**
+     * Creates the temporary file next to the target, for a receiver that may wait for the disk.
+     *
+     * @param target The file that will hold the data once the transfer completes.
+     * @throws IOException If the temporary file cannot be created.
+     */
+    public IncomingFile(Path target) throws IOException {
+        this(target, true);
+    }
+
+    /**
+     * Creates the temporary file next to the target.
+     *
+     * @param target The file that will hold the data once the transfer completes.
+     * @param mayBlock Whether {@link #write} may wait for the disk; false on an event loop, which checks
+     *                 {@link #isBacklogged()} before each block instead.
+     * @throws IOException If the temporary file cannot be created.
+     */
+    public IncomingFile(Path target, boolean mayBlock) throws IOException {
+        this.target = target;
+        // Same directory as the target so the final rename is atomic; created like any other file, so the umask applies
+        this.temporary = target.resolveSibling("." + target.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".part");
+        this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.writer = new WriteBehind(channel, 0, WRITE_BUFFER_SIZE, mayBlock);
+    }
+
+    /**
+     * Treats the blocks as a zlib stream (a transfer that negotiated {@code compress=deflate}) and writes the file
+     * it inflates to. Must be called before the first {@link #write}.
+     */
+    public void inflate() {
+        inflater = new Inflater();
+        inflated = new byte[64 * 1024];
+    }
+
+    /**
+     * Hashes the file as it is written, so its digest is known without reading it back. Must be called before the
+     * first {@link #write}; the hash covers the file as stored, after any inflating.
+     *
+     * @param algorithm {@link FileDigest#SHA256} or {@link FileDigest#CRC32C}.
+     */
+    public void digest(String algorithm) {
+        digest = FileDigest.create(algorithm);
+    }
+
+    /**
+     * Ends the hash started by {@link #digest}; call it once, after the final block has been written.
+     *
+     * @return The digest of everything written, {@code algorithm:hex}.
+     */
+    public String finishDigest() {
+        return digest.finish();
+    }
+
+    /**
+     * Appends the payload of one block.
+     *
+     * @param data The buffer holding the block.
+     * @param offset Where the payload starts in the buffer.
+     * @param length The payload length.
+     * @throws IOException If an earlier write failed, or the block is not part of a valid zlib stream.
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (inflater == null) {
+            append(data, offset, length);
+            return;
+        }
+        if (inflater.finished()) {
+            if (length > 0) {
+                throw new IOException("Data after the end of the compressed stream");
+            }
+            return;
+        }
+        inflater.setInput(data, offset, length);
+        try {
+            // Inflate everything now: the caller reuses the block's buffer once this returns
+            while (!inflater.finished() && !inflater.needsInput()) {
+                int count = inflater.inflate(inflated);
+                if (count == 0 && inflater.needsDictionary()) {
+                    throw new IOException("Compressed data needs a preset dictionary");
+                }
+                append(inflated, 0, count);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed data: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return Whether the disk is behind by a full queue of buffers, so the next block should be held off.
+     */
+    public boolean isBacklogged() {
+        return writer.isBacklogged();
+    }
+
+    /**
+     * @return How many bytes of the file have been written, counting any still buffered.
+     */
+    public long size() {
+        return size;
+    }
+
+    private void append(byte[] data, int offset, int length) throws IOException {
+        size += length;
+        if (digest != null) {
+            digest.update(data, offset, length);
+        }
+        writer.write(data, offset, length);
+    }
+
+    /**
+     * Writes the payload of one block at its offset, for blocks that arrive out of order (RFC 2090 multicast).
+     * It bypasses the write-behind stage and the digest, so a transfer uses either this or {@link #write}, never
+     * both.
+     *
+     * @param position The file offset of the block.
+     * @param data The buffer holding the block.
+     * @param offset Where the payload starts in the buffer.
+     * @param length The payload length.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void writeAt(long position, byte[] data, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Waits for everything to be written, syncs it if {@code -Dtftp.fsync} asks for it, and atomically moves the
+     * temporary file over the target.
+     *
+     * @throws IOException If an I/O error occurs, or the zlib stream being inflated is incomplete.
+     */
+    public void commit() throws IOException {
+        if (inflater != null && !inflater.finished()) {
+            throw new IOException("The compressed data ended before the end of its stream");
+        }
+        writer.flush();
+        writer.sync();
+        channel.close();
+        try {
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        WriteBehind.syncDirectory(target.getParent()); // the rename itself
+        committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (inflater != null) {
+            inflater.end();
+        }
+        if (!committed) {
+            writer.close();
+            channel.close();
+            Files.deleteIfExists(temporary);
+        }
+    }
+}
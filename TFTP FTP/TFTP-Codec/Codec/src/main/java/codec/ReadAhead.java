@@ -0,0 +1,175 @@
+package codec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a file ahead of a sender, so the disk works on the next blocks while the network waits for ACKs.
+ * <p>
+ * The file is read in chunks of {@code -Dtftp.readAheadChunkSize} bytes (default 64 KiB) by a shared pool of
+ * {@code -Dtftp.readAheadThreads} daemon threads (default 4). Whenever the sender reads from a chunk, the next
+ * {@code -Dtftp.readAhead} chunks (default 4; 0 reads on demand) are started. The chunks sit in a fixed ring
+ * of buffers that also keeps the chunk before the current one, so a window rewound after a loss is usually
+ * served from memory; a read further back simply reads that chunk again.
+ * <p>
+ * One instance serves one transfer and is not thread-safe; only the chunk reads run on the pool.
+ */
+public final class ReadAhead implements Closeable {
+    public static final int DEPTH = Math.max(0, Integer.getInteger("tftp.readAhead", 4));
+    public static final int CHUNK_SIZE = Math.max(512, Integer.getInteger("tftp.readAheadChunkSize", 64 * 1024));
+    private static final ExecutorService READERS = Executors.newFixedThreadPool(Math.max(1, Integer.getInteger("tftp.readAheadThreads", 4)), runnable -> {
+        Thread thread = new Thread(runnable, "tftp-read-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FileChannel channel;
+    private final long end;
+    private final int chunkSize;
+    private final int depth;
+    // Chunk i lives in slot i % slots; the slots cover the chunk before the current one up to depth chunks past it
+    private final ByteBuffer[] buffers;
+    private final long[] chunks; // chunk held by each slot, -1 if none
+    private final Future<?>[] reads;
+
+    /**
+     * Reads ahead with the configured chunk size and depth.
+     *
+     * @param channel The file, open for reading; it is not closed by {@link #close()}.
+     * @param end The offset reading stops at, usually the file's size.
+     */
+    public ReadAhead(FileChannel channel, long end) {
+        this(channel, end, CHUNK_SIZE, DEPTH);
+    }
+
+    public ReadAhead(FileChannel channel, long end, int chunkSize, int depth) {
+        this.channel = channel;
+        this.end = end;
+        this.chunkSize = chunkSize;
+        this.depth = depth;
+        this.buffers = new ByteBuffer[depth + 2];
+        this.chunks = new long[depth + 2];
+        this.reads = new Future<?>[depth + 2];
+        Arrays.fill(chunks, -1);
+    }
+
+    /**
+     * Runs a read on the read-ahead threads, for callers that keep what they read elsewhere, such as a cache.
+     *
+     * @param read The read; it reports its own failures.
+     */
+    public static void execute(Runnable read) {
+        READERS.execute(read);
+    }
+
+    /**
+     * Fills the destination from the given offset, waiting only for chunks that have not been read yet.
+     *
+     * @param destination The buffer to fill up to its limit.
+     * @param position The file offset to read from.
+     * @return The number of bytes read; less than requested only at the end.
+     * @throws IOException If a chunk cannot be read.
+     */
+    public int read(ByteBuffer destination, long position) throws IOException {
+        int total = 0;
+        while (destination.hasRemaining() && position < end) {
+            long index = position / chunkSize;
+            ByteBuffer chunk = await(index);
+            for (long next = index + 1; next <= index + depth && next * chunkSize < end; next++) {
+                start(next);
+            }
+            int offset = (int) (position - index * chunkSize);
+            int count = Math.min(destination.remaining(), chunk.limit() - offset);
+            if (count <= 0) {
+                break; // the file shrank while being read
+            }
+            ByteBuffer data = chunk.duplicate();
+            data.position(offset).limit(offset + count);
+            destination.put(data);
+            position += count;
+            total += count;
+        }
+        return total;
+    }
+
+    private ByteBuffer await(long index) throws IOException {
+        start(index);
+        int slot = (int) (index % chunks.length);
+        try {
+            reads[slot].get();
+            return buffers[slot];
+        } catch (ExecutionException e) {
+            chunks[slot] = -1; // read it again if asked again
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a read");
+        }
+    }
+
+    // Starts reading a chunk into its slot unless the slot already holds it
+    private void start(long index) {
+        int slot = (int) (index % chunks.length);
+        if (chunks[slot] == index) {
+            return;
+        }
+        finish(slot); // the buffer still belongs to the chunk being replaced until its read is over
+        if (buffers[slot] == null) {
+            buffers[slot] = ByteBuffer.allocate(chunkSize);
+        }
+        ByteBuffer buffer = buffers[slot];
+        long position = index * chunkSize;
+        chunks[slot] = index;
+        reads[slot] = READERS.submit(() -> {
+            buffer.clear().limit((int) Math.min(chunkSize, end - position));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) <= 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            return null;
+        });
+    }
+
+    // Waits for a slot's read, whose outcome no longer matters
+    private void finish(int slot) {
+        if (reads[slot] == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                reads[slot].get();
+                break;
+            } catch (ExecutionException e) {
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        reads[slot] = null;
+        chunks[slot] = -1;
+    }
+
+    /**
+     * Waits for the reads still running, so the channel can be closed under none of them.
+     */
+    @Override
+    public void close() {
+        for (int slot = 0; slot < reads.length; slot++) {
+            finish(slot);
+        }
+    }
+}
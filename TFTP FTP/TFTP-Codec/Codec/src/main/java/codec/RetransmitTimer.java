@@ -0,0 +1,85 @@
+package codec;
+
+/**
+ * Retransmission timeout (RTO) bookkeeping for one transfer.
+ * <p>
+ * The RTO follows the Jacobson/Karels estimator TCP uses (RFC 6298): a smoothed RTT plus four times its mean
+ * deviation, doubled on every timeout and recomputed from the next clean sample. Callers apply Karn's rule and
+ * only report samples for blocks that were sent exactly once. When the peers negotiated the RFC 2349
+ * {@code timeout} option the RTO is pinned to that value instead. Consecutive timeouts without progress are
+ * counted against a per-transfer retry budget. Client and server both use it.
+ */
+public final class RetransmitTimer {
+    public static final int INITIAL_RTO_MILLIS = 1000;
+    public static final int MIN_RTO_MILLIS = 100;
+    public static final int MAX_RTO_MILLIS = 30000;
+    public static final int MAX_RETRIES = 6;
+
+    private final boolean adaptive;
+    private double smoothedRtt = -1; // milliseconds, -1 until the first sample
+    private double rttVariance;
+    private int rto;
+    private int retries;
+
+    /**
+     * Creates an adaptive timer starting from the RFC 6298 initial RTO.
+     */
+    public RetransmitTimer() {
+        this.adaptive = true;
+        this.rto = INITIAL_RTO_MILLIS;
+    }
+
+    /**
+     * Creates a timer with a fixed RTO, as negotiated through the RFC 2349 timeout option.
+     *
+     * @param timeoutMillis The fixed retransmission timeout.
+     */
+    public RetransmitTimer(int timeoutMillis) {
+        this.adaptive = false;
+        this.rto = timeoutMillis;
+    }
+
+    public int getTimeoutMillis() {
+        return rto;
+    }
+
+    /**
+     * Feeds a round-trip measurement into the estimator.
+     *
+     * @param rttNanos The time between sending a packet that was not retransmitted and receiving its response.
+     */
+    public void onRttSample(long rttNanos) {
+        if (!adaptive) {
+            return;
+        }
+        double sample = rttNanos / 1_000_000.0;
+        if (smoothedRtt < 0) {
+            smoothedRtt = sample;
+            rttVariance = sample / 2;
+        } else {
+            rttVariance = 0.75 * rttVariance + 0.25 * Math.abs(smoothedRtt - sample);
+            smoothedRtt = 0.875 * smoothedRtt + 0.125 * sample;
+        }
+        rto = (int) Math.min(Math.max(Math.ceil(smoothedRtt + 4 * rttVariance), MIN_RTO_MILLIS), MAX_RTO_MILLIS);
+    }
+
+    /**
+     * Resets the retry budget after the peer made progress.
+     */
+    public void onProgress() {
+        retries = 0;
+    }
+
+    /**
+     * Records a timeout and backs the RTO off exponentially.
+     *
+     * @return False once the retry budget for this transfer is exhausted.
+     */
+    public boolean onTimeout() {
+        retries++;
+        if (adaptive) {
+            rto = Math.min(rto * 2, MAX_RTO_MILLIS);
+        }
+        return retries <= MAX_RETRIES;
+    }
+}
@@ -0,0 +1,261 @@
+package codec;
+
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes and decodes TFTP packets (RFC 1350, with RFC 2347 options) in place in a heap {@link ByteBuffer}.
+ * <p>
+ * A packet always starts at index 0 of its buffer and ends at the buffer's limit, so the buffer's backing
+ * array can be handed to a {@link java.net.DatagramPacket} as is. The {@code put} methods overwrite the
+ * buffer and leave it ready to send (position 0, limit at the end of the packet); the readers use absolute
+ * indices and never move the position. DATA, ACK and the header readers allocate nothing, which keeps the
+ * per-block path of a transfer garbage-free. Requests, OACKs and errors build strings and are only used
+ * once or twice per transfer.
+ */
+public final class TftpPacket {
+    public static final byte OP_RRQ = 1;
+    public static final byte OP_WRQ = 2;
+    public static final byte OP_DATA = 3;
+    public static final byte OP_ACK = 4;
+    public static final byte OP_ERROR = 5;
+    public static final byte OP_OACK = 6;
+
+    public static final short ERR_NOT_DEFINED = 0;
+    public static final short ERR_FILE_NOT_FOUND = 1;
+    public static final short ERR_ACCESS_VIOLATION = 2;
+    public static final short ERR_DISK_FULL = 3;
+    public static final short ERR_ILLEGAL_OPERATION = 4;
+    public static final short ERR_UNKNOWN_TID = 5;
+    public static final short ERR_FILE_EXISTS = 6;
+    public static final short ERR_NO_SUCH_USER = 7;
+    public static final short ERR_OPTION_REFUSED = 8;
+
+    public static final int HEADER_SIZE = 4;
+    public static final int MAX_BLOCK_SIZE = 65464;
+    public static final int MAX_PACKET_SIZE = MAX_BLOCK_SIZE + HEADER_SIZE;
+
+    private TftpPacket() {
+    }
+
+    /**
+     * Sizes a transfer socket's buffers to hold a whole window (RFC 7440) of the given blocks each way, and works
+     * out how much of that window the buffers the OS granted can hold. The kernel caps them (net.core.rmem_max and
+     * wmem_max on Linux), and a window larger than the receive buffer loses its tail every time it is sent.
+     *
+     * @param socket The transfer's socket.
+     * @param blockSize The transfer's block size.
+     * @param windowSize The window size wanted.
+     * @return The window size to use: at most windowSize, and at least 1.
+     * @throws SocketException If the buffer sizes cannot be set or read.
+     */
+    public static int fitWindow(DatagramSocket socket, int blockSize, int windowSize) throws SocketException {
+        int wanted = (int) Math.min((long) windowSize * (blockSize + HEADER_SIZE), Integer.MAX_VALUE);
+        if (socket.getReceiveBufferSize() < wanted) {
+            socket.setReceiveBufferSize(wanted);
+        }
+        if (socket.getSendBufferSize() < wanted) {
+            socket.setSendBufferSize(wanted);
+        }
+        int granted = Math.min(socket.getReceiveBufferSize(), socket.getSendBufferSize());
+        return Math.max(1, Math.min(windowSize, granted / (blockSize + HEADER_SIZE)));
+    }
+
+    /**
+     * @param packet A received packet.
+     * @return Its opcode, or -1 if it is too short to carry one.
+     */
+    public static int opcode(ByteBuffer packet) {
+        return packet.limit() >= 2 ? packet.getShort(0) & 0xFFFF : -1;
+    }
+
+    /**
+     * @param packet A DATA or ACK packet.
+     * @return The block number as sent on the wire (0-65535).
+     */
+    public static int blockNumber(ByteBuffer packet) {
+        return packet.getShort(2) & 0xFFFF;
+    }
+
+    /**
+     * @param packet A DATA packet.
+     * @return The number of payload bytes, which start at {@link #HEADER_SIZE}.
+     */
+    public static int payloadLength(ByteBuffer packet) {
+        return packet.limit() - HEADER_SIZE;
+    }
+
+    /**
+     * @param packet An ERROR packet.
+     * @return The error code.
+     */
+    public static int errorCode(ByteBuffer packet) {
+        return packet.getShort(2) & 0xFFFF;
+    }
+
+    /**
+     * @param packet An ERROR packet.
+     * @return The error message, without its terminator.
+     */
+    public static String errorMessage(ByteBuffer packet) {
+        int end = packet.limit();
+        if (end > HEADER_SIZE && packet.get(end - 1) == 0) {
+            end--;
+        }
+        return new String(packet.array(), packet.arrayOffset() + HEADER_SIZE, Math.max(end - HEADER_SIZE, 0), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes a DATA header in front of a payload that is already in the buffer at {@link #HEADER_SIZE}.
+     *
+     * @param packet The buffer holding the payload.
+     * @param blockNumber The block number; only the low 16 bits go on the wire.
+     * @param payloadLength The number of payload bytes.
+     * @return The packet, ready to send.
+     */
+    public static ByteBuffer putData(ByteBuffer packet, int blockNumber, int payloadLength) {
+        packet.clear();
+        packet.putShort(0, OP_DATA).putShort(2, (short) blockNumber);
+        packet.limit(HEADER_SIZE + payloadLength);
+        return packet;
+    }
+
+    /**
+     * Prepares a buffer to receive a DATA payload at {@link #HEADER_SIZE}, for example from a file read.
+     *
+     * @param packet The buffer the DATA packet will be built in.
+     * @param maxPayloadLength The most payload bytes to accept.
+     * @return The buffer, positioned at the payload.
+     */
+    public static ByteBuffer payload(ByteBuffer packet, int maxPayloadLength) {
+        packet.clear();
+        packet.limit(HEADER_SIZE + maxPayloadLength);
+        packet.position(HEADER_SIZE);
+        return packet;
+    }
+
+    /**
+     * @param packet The buffer to overwrite.
+     * @param blockNumber The acknowledged block; only the low 16 bits go on the wire.
+     * @return The ACK packet, ready to send.
+     */
+    public static ByteBuffer putAck(ByteBuffer packet, int blockNumber) {
+        packet.clear();
+        packet.putShort(0, OP_ACK).putShort(2, (short) blockNumber);
+        packet.limit(HEADER_SIZE);
+        return packet;
+    }
+
+    /**
+     * @param packet The buffer to overwrite.
+     * @param errorCode One of the {@code ERR_} codes.
+     * @param errorMessage The message for the peer.
+     * @return The ERROR packet, ready to send.
+     */
+    public static ByteBuffer putError(ByteBuffer packet, int errorCode, String errorMessage) {
+        packet.clear();
+        packet.putShort(OP_ERROR).putShort((short) errorCode);
+        putString(packet, errorMessage);
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * @param packet The buffer to overwrite.
+     * @param opcode {@link #OP_RRQ} or {@link #OP_WRQ}.
+     * @param fileName The requested file.
+     * @param mode The transfer mode, normally "octet".
+     * @param options RFC 2347 options to request, in order.
+     * @return The request packet, ready to send.
+     */
+    public static ByteBuffer putRequest(ByteBuffer packet, byte opcode, String fileName, String mode, Map<String, String> options) {
+        packet.clear();
+        packet.putShort(opcode);
+        putString(packet, fileName);
+        putString(packet, mode);
+        putOptions(packet, options);
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * @param packet The buffer to overwrite.
+     * @param options The accepted options and their final values, in order.
+     * @return The OACK packet, ready to send.
+     */
+    public static ByteBuffer putOack(ByteBuffer packet, Map<String, String> options) {
+        packet.clear();
+        packet.putShort(OP_OACK);
+        putOptions(packet, options);
+        packet.flip();
+        return packet;
+    }
+
+    /**
+     * Splits the NUL-terminated strings that follow the opcode of a request or OACK. A missing final terminator
+     * is tolerated.
+     *
+     * @param packet The received packet.
+     * @return The strings in order.
+     */
+    public static List<String> parseFields(ByteBuffer packet) {
+        List<String> fields = new ArrayList<>();
+        byte[] data = packet.array();
+        int base = packet.arrayOffset();
+        int end = packet.limit();
+        int start = 2;
+        for (int i = 2; i < end; i++) {
+            if (data[base + i] == 0) {
+                fields.add(new String(data, base + start, i - start, StandardCharsets.US_ASCII));
+                start = i + 1;
+            }
+        }
+        if (start < end) {
+            fields.add(new String(data, base + start, end - start, StandardCharsets.US_ASCII));
+        }
+        return fields;
+    }
+
+    /**
+     * @param packet A received OACK.
+     * @return The options it acknowledges, with names lowercased.
+     */
+    public static Map<String, String> parseOack(ByteBuffer packet) {
+        return toOptions(parseFields(packet), 0);
+    }
+
+    /**
+     * Pairs up option names and values.
+     *
+     * @param fields Strings from {@link #parseFields(ByteBuffer)}.
+     * @param first Index of the first option name (2 for a request, after the file name and mode).
+     * @return The options in order, with names lowercased; a trailing name without a value is dropped.
+     */
+    public static Map<String, String> toOptions(List<String> fields, int first) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = first; i + 1 < fields.size(); i += 2) {
+            options.put(fields.get(i).toLowerCase(), fields.get(i + 1));
+        }
+        return options;
+    }
+
+    private static void putOptions(ByteBuffer packet, Map<String, String> options) {
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            putString(packet, option.getKey());
+            putString(packet, option.getValue());
+        }
+    }
+
+    private static void putString(ByteBuffer packet, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            packet.put((byte) value.charAt(i));
+        }
+        packet.put((byte) 0);
+    }
+}
@@ -0,0 +1,356 @@
+package codec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes an incoming file behind the receiver, so a slow disk does not hold up the thread that ACKs.
+ * <p>
+ * Data is gathered into buffers; each full buffer is queued for a shared pool of {@code -Dtftp.writeBehindThreads}
+ * daemon writers (default 4), which write a file's buffers in order. At most {@code -Dtftp.writeBehind} buffers
+ * (default 8) are filled or queued per file, so a disk that falls behind for longer than that makes the receiver
+ * wait, and memory use stays bounded; 0 writes each buffer on the receiver's own thread. A receiver that must
+ * never wait, such as an event loop, checks {@link #isBacklogged()} instead and holds off while it is true.
+ * <p>
+ * {@code -Dtftp.fsync} decides what reaches stable storage before a transfer is acknowledged: {@code never}
+ * (the default) leaves it to the OS, {@code close} syncs the file once it is complete, and a number syncs after
+ * every that many MiB as well as at the end.
+ */
+public final class WriteBehind implements Closeable {
+    public static final int BUFFERS = Math.max(0, Integer.getInteger("tftp.writeBehind", 8));
+    public static final int MIN_BUFFER_SIZE = 64 * 1024;
+    // Bytes between syncs: negative never syncs, 0 syncs only when the file is complete
+    public static final long FSYNC_INTERVAL = fsyncInterval(System.getProperty("tftp.fsync", "never"));
+    private static final ExecutorService WRITERS = Executors.newFixedThreadPool(Math.max(1, Integer.getInteger("tftp.writeBehindThreads", 4)), runnable -> {
+        Thread thread = new Thread(runnable, "tftp-write-behind");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Separate from the writers, which a task waiting on them here would otherwise starve
+    private static final ExecutorService COMMITTERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "tftp-commit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FileChannel channel;
+    private final boolean mayBlock;
+    private final int bufferSize;
+    private final ArrayDeque<ByteBuffer> filled = new ArrayDeque<>(); // in file order, the head being written
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private int allocated;
+    private ByteBuffer current; // being filled by the receiver
+    private long position; // where the next byte handed to write() goes
+    private long writePosition; // where the next buffer is written; only the writer moves it
+    private long unsynced; // bytes written since the last sync; only the writer counts them
+    private boolean draining; // a writer is working on this file
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * Writes into the channel from the given offset.
+     *
+     * @param channel The file, open for writing; it is not closed by {@link #close()}.
+     * @param position The offset the first byte goes to.
+     * @param bufferSize How many bytes to gather per write; 0 writes every block straight through, and only when
+     *                   there is no writer pool, since queued buffers need at least {@link #MIN_BUFFER_SIZE}.
+     */
+    public WriteBehind(FileChannel channel, long position, int bufferSize) {
+        this(channel, position, bufferSize, true);
+    }
+
+    /**
+     * Writes into the channel from the given offset.
+     *
+     * @param channel The file, open for writing; it is not closed by {@link #close()}.
+     * @param position The offset the first byte goes to.
+     * @param bufferSize How many bytes to gather per write, as above.
+     * @param mayBlock Whether {@link #write} may wait for a free buffer; false on an event loop, where a full queue
+     *                 gets another buffer and the caller is expected to check {@link #isBacklogged()}.
+     */
+    public WriteBehind(FileChannel channel, long position, int bufferSize, boolean mayBlock) {
+        this.channel = channel;
+        this.mayBlock = mayBlock;
+        this.position = position;
+        this.writePosition = position;
+        this.bufferSize = BUFFERS > 0 ? Math.max(bufferSize, MIN_BUFFER_SIZE) : bufferSize;
+    }
+
+    /**
+     * @return Whether {@code -Dtftp.fsync} asks for received files to be synced before they are acknowledged.
+     */
+    public static boolean isDurable() {
+        return FSYNC_INTERVAL >= 0;
+    }
+
+    /**
+     * Runs a task that waits on the writers, such as committing a file, on a thread of its own, so an event loop
+     * does not have to wait with it.
+     *
+     * @param task The task; it reports its own failures.
+     */
+    public static void executeBlocking(Runnable task) {
+        COMMITTERS.execute(task);
+    }
+
+    /**
+     * @return Whether a full queue of buffers is waiting for the disk, so more data should be held off.
+     */
+    public synchronized boolean isBacklogged() {
+        return BUFFERS > 0 && filled.size() >= BUFFERS;
+    }
+
+    /**
+     * @return The offset the next byte handed to {@link #write} goes to.
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Appends data; it is copied, so the caller may reuse its buffer as soon as this returns.
+     *
+     * @param data The buffer holding the data.
+     * @param offset Where the data starts in the buffer.
+     * @param length How many bytes to append.
+     * @throws IOException If an earlier write failed, or waiting for a free buffer was interrupted.
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        position += length;
+        if (bufferSize == 0) {
+            writeOut(ByteBuffer.wrap(data, offset, length));
+            return;
+        }
+        while (length > 0) {
+            if (current == null) {
+                current = take();
+            }
+            int count = Math.min(length, current.remaining());
+            current.put(data, offset, count);
+            offset += count;
+            length -= count;
+            if (!current.hasRemaining()) {
+                handOff();
+            }
+        }
+    }
+
+    /**
+     * Writes out everything appended so far and waits for it to be written.
+     *
+     * @throws IOException If a write failed.
+     */
+    public void flush() throws IOException {
+        if (current != null && current.position() > 0) {
+            handOff();
+        }
+        synchronized (this) {
+            try {
+                while ((draining || !filled.isEmpty()) && failure == null) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the disk");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Syncs the file to stable storage if {@code -Dtftp.fsync} asks for it; call it after {@link #flush()} and
+     * before acknowledging the file.
+     *
+     * @throws IOException If the sync fails.
+     */
+    public void sync() throws IOException {
+        syncFile(channel);
+    }
+
+    /**
+     * Syncs a complete file that was written some other way, such as by {@code transferFrom}, if
+     * {@code -Dtftp.fsync} asks for it.
+     *
+     * @param channel The file.
+     * @throws IOException If the sync fails.
+     */
+    public static void syncFile(FileChannel channel) throws IOException {
+        if (isDurable()) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Applies the every-N-MiB part of {@code -Dtftp.fsync} to a file that is written some other way.
+     *
+     * @param channel The file.
+     * @param unsynced Bytes written to it since the last sync.
+     * @return Bytes still unsynced after the call: 0 if it synced, else {@code unsynced}.
+     * @throws IOException If the sync fails.
+     */
+    public static long syncIfDue(FileChannel channel, long unsynced) throws IOException {
+        if (FSYNC_INTERVAL > 0 && unsynced >= FSYNC_INTERVAL) {
+            channel.force(false);
+            return 0;
+        }
+        return unsynced;
+    }
+
+    /**
+     * Syncs a directory, so a file just renamed into it survives a crash too, if {@code -Dtftp.fsync} asks for it.
+     * Platforms that cannot open a directory are skipped.
+     *
+     * @param directory The directory.
+     */
+    public static void syncDirectory(Path directory) {
+        if (!isDurable()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported here (Windows); the file itself has been synced
+        }
+    }
+
+    /**
+     * Drops whatever has not been written yet and waits for the writer to leave the file, so the channel can be
+     * closed. Call {@link #flush()} first to keep the data.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            filled.clear();
+            boolean interrupted = false;
+            while (draining) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Queues the current buffer for the writer, or writes it here without a pool
+    private void handOff() throws IOException {
+        ByteBuffer buffer = current;
+        buffer.flip();
+        if (BUFFERS == 0) {
+            writeOut(buffer);
+            buffer.clear();
+            return;
+        }
+        current = null;
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+            filled.add(buffer);
+            if (!draining) {
+                draining = true;
+                WRITERS.execute(this::drain);
+            }
+        }
+    }
+
+    // A buffer to fill: a new one while fewer than BUFFERS exist, else one the writer has emptied
+    private ByteBuffer take() throws IOException {
+        if (BUFFERS == 0) {
+            return ByteBuffer.allocate(bufferSize);
+        }
+        synchronized (this) {
+            try {
+                while (mayBlock && free.isEmpty() && allocated >= BUFFERS && failure == null) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the disk");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (!free.isEmpty()) {
+                return free.poll();
+            }
+            allocated++;
+        }
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    // Runs on a writer: writes the queued buffers in order until there are none left
+    private void drain() {
+        while (true) {
+            ByteBuffer buffer;
+            synchronized (this) {
+                if (filled.isEmpty() || closed || failure != null) {
+                    draining = false;
+                    notifyAll();
+                    return;
+                }
+                buffer = filled.peek();
+            }
+            try {
+                writeOut(buffer);
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                }
+            }
+            synchronized (this) {
+                if (filled.peek() == buffer) {
+                    filled.poll();
+                }
+                buffer.clear();
+                if (allocated > BUFFERS) {
+                    allocated--; // one a receiver that may not block got past the limit
+                } else {
+                    free.add(buffer);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeOut(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int written = channel.write(buffer, writePosition);
+            writePosition += written;
+            unsynced += written;
+        }
+        if (FSYNC_INTERVAL > 0 && unsynced >= FSYNC_INTERVAL) {
+            channel.force(false);
+            unsynced = 0;
+        }
+    }
+
+    static long fsyncInterval(String policy) {
+        if ("never".equalsIgnoreCase(policy)) {
+            return -1;
+        }
+        if ("close".equalsIgnoreCase(policy)) {
+            return 0;
+        }
+        try {
+            return Math.max(1, Long.parseLong(policy.trim())) * 1024 * 1024;
+        } catch (NumberFormatException e) {
+            System.err.println("Unknown tftp.fsync policy " + policy + "; expected never, close or a number of MiB");
+            return -1;
+        }
+    }
+}
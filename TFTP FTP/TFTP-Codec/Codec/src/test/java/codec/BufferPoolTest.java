@@ -0,0 +1,81 @@
+package codec;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BufferPoolTest {
+
+    @Test
+    void capacitiesAreRoundedUpToAPowerOfTwoOfAtLeast512() {
+        BufferPool pool = new BufferPool(4);
+
+        assertEquals(512, pool.acquire(0).capacity());
+        assertEquals(512, pool.acquire(512).capacity());
+        assertEquals(1024, pool.acquire(513).capacity());
+        assertEquals(65536, pool.acquire(TftpPacket.MAX_PACKET_SIZE).capacity());
+    }
+
+    @Test
+    void requestsOver64KiBAreRejected() {
+        BufferPool pool = new BufferPool(4);
+
+        assertThrows(IllegalArgumentException.class, () -> pool.acquire(65537));
+    }
+
+    @Test
+    void releasedBufferIsReusedCleared() {
+        BufferPool pool = new BufferPool(4);
+        ByteBuffer buffer = pool.acquire(600);
+        buffer.putInt(1).flip();
+
+        pool.release(buffer);
+        ByteBuffer reused = pool.acquire(1000);
+
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+    }
+
+    @Test
+    void buffersAreOnlyReusedForTheirOwnSize() {
+        BufferPool pool = new BufferPool(4);
+        ByteBuffer small = pool.acquire(512);
+
+        pool.release(small);
+
+        assertNotSame(small, pool.acquire(1024));
+        assertSame(small, pool.acquire(100));
+    }
+
+    @Test
+    void idleBuffersBeyondTheLimitAreDropped() {
+        BufferPool pool = new BufferPool(1);
+        ByteBuffer first = pool.acquire(512);
+        ByteBuffer second = pool.acquire(512);
+
+        pool.release(first);
+        pool.release(second);
+
+        assertSame(first, pool.acquire(512));
+        assertNotSame(second, pool.acquire(512));
+    }
+
+    @Test
+    void foreignBuffersAndNullAreIgnored() {
+        BufferPool pool = new BufferPool(4);
+        ByteBuffer odd = ByteBuffer.allocate(600);
+
+        pool.release(null);
+        pool.release(odd);
+        pool.release(ByteBuffer.allocate(128 * 1024));
+
+        assertNotSame(odd, pool.acquire(600));
+        assertEquals(65536, pool.acquire(65536).capacity());
+    }
+}
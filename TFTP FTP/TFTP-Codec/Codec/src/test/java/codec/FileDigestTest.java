@@ -0,0 +1,107 @@
+package codec;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileDigestTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void crc32cCheckValue() {
+        assertEquals("crc32c:e3069283", digest(FileDigest.CRC32C, "123456789".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    void crc32cRfc3720Vectors() {
+        byte[] ones = new byte[32];
+        Arrays.fill(ones, (byte) 0xFF);
+        byte[] ascending = new byte[32];
+        for (int i = 0; i < ascending.length; i++) {
+            ascending[i] = (byte) i;
+        }
+
+        assertEquals("crc32c:00000000", digest(FileDigest.CRC32C, new byte[0]));
+        assertEquals("crc32c:8a9136aa", digest(FileDigest.CRC32C, new byte[32]));
+        assertEquals("crc32c:62a8ab43", digest(FileDigest.CRC32C, ones));
+        assertEquals("crc32c:46dd794e", digest(FileDigest.CRC32C, ascending));
+    }
+
+    @Test
+    void sha256KnownValue() {
+        assertEquals("sha256:ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                digest("SHA256", "abc".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    void blockByBlockUpdatesMatchOneUpdate() {
+        byte[] data = new byte[10_000];
+        new Random(3).nextBytes(data);
+
+        for (String algorithm : new String[]{FileDigest.CRC32C, FileDigest.SHA256}) {
+            FileDigest blocks = FileDigest.create(algorithm);
+            for (int offset = 0; offset < data.length; offset += 512) {
+                blocks.update(data, offset, Math.min(512, data.length - offset));
+            }
+            FileDigest buffers = FileDigest.create(algorithm);
+            ByteBuffer direct = ByteBuffer.allocateDirect(4000);
+            direct.put(data, 0, 4000).flip();
+            buffers.update(direct);
+            buffers.update(ByteBuffer.wrap(data, 4000, data.length - 4000));
+
+            String expected = digest(algorithm, data);
+            assertEquals(expected, blocks.finish());
+            assertEquals(expected, buffers.finish());
+            assertFalse(direct.hasRemaining());
+        }
+    }
+
+    @Test
+    void prefixOfAFileCanBeContinued() throws IOException {
+        byte[] data = new byte[200_000];
+        new Random(4).nextBytes(data);
+        Path file = directory.resolve("partial.bin");
+        Files.write(file, data);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            FileDigest digest = FileDigest.ofPrefix(channel, 150_000, FileDigest.CRC32C);
+            digest.update(data, 150_000, data.length - 150_000);
+
+            assertEquals(digest(FileDigest.CRC32C, data), digest.finish());
+        }
+    }
+
+    @Test
+    void algorithmsAreRecognisedInAnyCase() {
+        assertTrue(FileDigest.isSupported("CRC32C"));
+        assertTrue(FileDigest.isSupported("sha256"));
+        assertFalse(FileDigest.isSupported("md5"));
+        assertFalse(FileDigest.isSupported(null));
+        assertEquals("crc32c", FileDigest.algorithmOf("CRC32C:e3069283"));
+        assertNull(FileDigest.algorithmOf("e3069283"));
+        assertThrows(IllegalArgumentException.class, () -> FileDigest.create("md5"));
+    }
+
+    private static String digest(String algorithm, byte[] data) {
+        FileDigest digest = FileDigest.create(algorithm);
+        digest.update(data, 0, data.length);
+        return digest.finish();
+    }
+}
@@ -0,0 +1,226 @@
+package codec;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class IncomingFileTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void committedBlocksReplaceTheTarget() throws IOException {
+        byte[] data = new byte[100_000];
+        new Random(5).nextBytes(data);
+        Path target = directory.resolve("upload.bin");
+        Files.write(target, "old version".getBytes(StandardCharsets.US_ASCII));
+
+        try (IncomingFile file = new IncomingFile(target)) {
+            for (int offset = 0; offset < data.length; offset += 512) {
+                file.write(data, offset, Math.min(512, data.length - offset));
+            }
+            assertEquals(data.length, file.size());
+            file.commit();
+        }
+
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertEquals(1, fileCount());
+    }
+
+    @Test
+    void targetIsUntouchedUntilCommit() throws IOException {
+        Path target = directory.resolve("upload.bin");
+        byte[] old = "old version".getBytes(StandardCharsets.US_ASCII);
+        Files.write(target, old);
+
+        try (IncomingFile file = new IncomingFile(target)) {
+            file.write(new byte[4096], 0, 4096);
+
+            assertArrayEquals(old, Files.readAllBytes(target));
+            file.commit();
+        }
+
+        assertEquals(4096, Files.size(target));
+    }
+
+    @Test
+    void closingWithoutCommitDiscardsTheUpload() throws IOException {
+        Path target = directory.resolve("upload.bin");
+        byte[] old = "old version".getBytes(StandardCharsets.US_ASCII);
+        Files.write(target, old);
+
+        try (IncomingFile file = new IncomingFile(target)) {
+            file.write(new byte[200_000], 0, 200_000);
+        }
+
+        assertArrayEquals(old, Files.readAllBytes(target));
+        assertEquals(1, fileCount());
+    }
+
+    @Test
+    void discardedNewFileLeavesNothingBehind() throws IOException {
+        try (IncomingFile file = new IncomingFile(directory.resolve("new.bin"), false)) {
+            file.write(new byte[512], 0, 512);
+        }
+
+        assertEquals(0, fileCount());
+    }
+
+    @Test
+    void emptyUploadCommitsAnEmptyFile() throws IOException {
+        Path target = directory.resolve("empty.bin");
+
+        try (IncomingFile file = new IncomingFile(target)) {
+            file.write(new byte[0], 0, 0);
+            file.commit();
+        }
+
+        assertEquals(0, Files.size(target));
+    }
+
+    @Test
+    void blocksWrittenAtTheirOffsetsMayArriveOutOfOrder() throws IOException {
+        Path target = directory.resolve("multicast.bin");
+        byte[] data = new byte[3 * 512 + 100];
+        new Random(6).nextBytes(data);
+
+        try (IncomingFile file = new IncomingFile(target)) {
+            file.writeAt(1024, data, 1024, 512);
+            file.writeAt(1536, data, 1536, 100);
+            file.writeAt(0, data, 0, 512);
+            file.writeAt(512, data, 512, 512);
+            file.commit();
+        }
+
+        assertArrayEquals(data, Files.readAllBytes(target));
+    }
+
+    @Test
+    void noTemporaryFileIsVisibleUnderTheTargetName() throws IOException {
+        Path target = directory.resolve("upload.bin");
+
+        try (IncomingFile file = new IncomingFile(target)) {
+            file.write(new byte[10], 0, 10);
+
+            assertFalse(Files.exists(target));
+            assertEquals(1, fileCount());
+        }
+    }
+
+    @Test
+    void compressedBlocksAreInflatedIntoTheFile() throws IOException {
+        byte[] data = compressible(300_000);
+        byte[] compressed = deflate(data);
+        Path target = directory.resolve("inflated.txt");
+
+        try (IncomingFile file = new IncomingFile(target)) {
+            file.inflate();
+            for (int offset = 0; offset < compressed.length; offset += 512) {
+                file.write(compressed, offset, Math.min(512, compressed.length - offset));
+            }
+            file.write(compressed, 0, 0); // the empty final block of a stream that filled its last block
+            assertEquals(data.length, file.size());
+            file.commit();
+        }
+
+        assertArrayEquals(data, Files.readAllBytes(target));
+    }
+
+    @Test
+    void truncatedCompressedStreamIsNotCommitted() throws IOException {
+        byte[] compressed = deflate(compressible(50_000));
+        Path target = directory.resolve("truncated.txt");
+
+        try (IncomingFile file = new IncomingFile(target)) {
+            file.inflate();
+            file.write(compressed, 0, compressed.length / 2);
+
+            assertThrows(IOException.class, file::commit);
+        }
+
+        assertFalse(Files.exists(target));
+        assertEquals(0, fileCount());
+    }
+
+    @Test
+    void dataAfterTheEndOfTheCompressedStreamIsRejected() throws IOException {
+        byte[] compressed = deflate(compressible(1000));
+
+        try (IncomingFile file = new IncomingFile(directory.resolve("trailing.txt"))) {
+            file.inflate();
+            file.write(compressed, 0, compressed.length);
+
+            assertThrows(IOException.class, () -> file.write(new byte[]{1, 2, 3}, 0, 3));
+        }
+    }
+
+    @Test
+    void corruptCompressedDataIsRejected() throws IOException {
+        byte[] garbage = new byte[512];
+        Arrays.fill(garbage, (byte) 0x55);
+
+        try (IncomingFile file = new IncomingFile(directory.resolve("corrupt.txt"))) {
+            file.inflate();
+
+            assertThrows(IOException.class, () -> file.write(garbage, 0, garbage.length));
+        }
+    }
+
+    @Test
+    void digestCoversTheInflatedFile() throws IOException {
+        byte[] data = compressible(20_000);
+        FileDigest expected = FileDigest.create(FileDigest.CRC32C);
+        expected.update(data, 0, data.length);
+        byte[] compressed = deflate(data);
+
+        try (IncomingFile file = new IncomingFile(directory.resolve("hashed.txt"))) {
+            file.inflate();
+            file.digest(FileDigest.CRC32C);
+            file.write(compressed, 0, compressed.length);
+
+            assertEquals(expected.finish(), file.finishDigest());
+        }
+    }
+
+    private long fileCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static byte[] compressible(int length) {
+        byte[] data = new byte[length];
+        Random random = new Random(7);
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(4));
+        }
+        return data;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[data.length + 1024];
+        int length = 0;
+        while (!deflater.finished()) {
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        deflater.end();
+        return Arrays.copyOf(buffer, length);
+    }
+}
@@ -0,0 +1,110 @@
+package codec;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ReadAheadTest {
+    private static final int CHUNK_SIZE = 1024;
+
+    @TempDir
+    Path directory;
+
+    private byte[] data;
+    private Path file;
+
+    @BeforeEach
+    void createFile() throws IOException {
+        data = new byte[CHUNK_SIZE * 10 + 300];
+        new Random(2).nextBytes(data);
+        file = directory.resolve("served.bin");
+        Files.write(file, data);
+    }
+
+    @Test
+    void sequentialBlocksComeBackInFileOrder() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             ReadAhead readAhead = new ReadAhead(channel, data.length, CHUNK_SIZE, 3)) {
+            ByteBuffer copy = ByteBuffer.allocate(data.length);
+            ByteBuffer block = ByteBuffer.allocate(512);
+            long position = 0;
+            while (true) {
+                block.clear();
+                int read = readAhead.read(block, position);
+                if (read == 0) {
+                    break;
+                }
+                block.flip();
+                copy.put(block);
+                position += read;
+            }
+
+            assertEquals(data.length, position);
+            assertArrayEquals(data, copy.array());
+        }
+    }
+
+    @Test
+    void readsSpanChunkBoundaries() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             ReadAhead readAhead = new ReadAhead(channel, data.length, CHUNK_SIZE, 2)) {
+            assertRead(readAhead, CHUNK_SIZE - 100, 3 * CHUNK_SIZE);
+        }
+    }
+
+    @Test
+    void rewoundAndSkippedReadsReturnTheRightBytes() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             ReadAhead readAhead = new ReadAhead(channel, data.length, CHUNK_SIZE, 2)) {
+            assertRead(readAhead, 0, 512);
+            assertRead(readAhead, 5 * CHUNK_SIZE, 512);
+            assertRead(readAhead, 5 * CHUNK_SIZE + 512, 512);
+            // A window rewound to the chunk before, and a read further back that has left the ring
+            assertRead(readAhead, 4 * CHUNK_SIZE + 512, 512);
+            assertRead(readAhead, 512, 512);
+            assertRead(readAhead, 9 * CHUNK_SIZE, 512);
+        }
+    }
+
+    @Test
+    void readingStopsAtTheEnd() throws IOException {
+        int end = 3 * CHUNK_SIZE + 10;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             ReadAhead readAhead = new ReadAhead(channel, end, CHUNK_SIZE, 2)) {
+            ByteBuffer block = ByteBuffer.allocate(512);
+
+            assertEquals(10, readAhead.read(block, 3 * CHUNK_SIZE));
+            block.clear();
+            assertEquals(0, readAhead.read(block, end));
+        }
+    }
+
+    @Test
+    void withoutDepthEveryChunkIsReadOnDemand() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             ReadAhead readAhead = new ReadAhead(channel, data.length, CHUNK_SIZE, 0)) {
+            assertRead(readAhead, 0, 700);
+            assertRead(readAhead, 700, 700);
+            assertRead(readAhead, 10 * CHUNK_SIZE, 300);
+        }
+    }
+
+    private void assertRead(ReadAhead readAhead, int position, int length) throws IOException {
+        ByteBuffer destination = ByteBuffer.allocate(length);
+
+        assertEquals(length, readAhead.read(destination, position));
+        assertArrayEquals(Arrays.copyOfRange(data, position, position + length), destination.array());
+    }
+}
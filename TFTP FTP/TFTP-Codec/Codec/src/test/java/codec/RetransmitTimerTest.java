@@ -0,0 +1,102 @@
+package codec;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetransmitTimerTest {
+    private static final long MILLIS = 1_000_000;
+
+    @Test
+    void startsFromTheInitialRto() {
+        assertEquals(RetransmitTimer.INITIAL_RTO_MILLIS, new RetransmitTimer().getTimeoutMillis());
+    }
+
+    @Test
+    void firstSampleSetsRtoToThreeTimesTheRtt() {
+        RetransmitTimer timer = new RetransmitTimer();
+
+        timer.onRttSample(200 * MILLIS);
+
+        // SRTT = 200, RTTVAR = 100, RTO = SRTT + 4 * RTTVAR
+        assertEquals(600, timer.getTimeoutMillis());
+    }
+
+    @Test
+    void laterSamplesAreSmoothed() {
+        RetransmitTimer timer = new RetransmitTimer();
+        timer.onRttSample(200 * MILLIS);
+
+        timer.onRttSample(200 * MILLIS);
+
+        // RTTVAR = 0.75 * 100 + 0.25 * 0 = 75, SRTT stays 200
+        assertEquals(500, timer.getTimeoutMillis());
+    }
+
+    @Test
+    void rtoIsClampedToItsBounds() {
+        RetransmitTimer fast = new RetransmitTimer();
+        RetransmitTimer slow = new RetransmitTimer();
+
+        fast.onRttSample(MILLIS);
+        slow.onRttSample(60_000 * MILLIS);
+
+        assertEquals(RetransmitTimer.MIN_RTO_MILLIS, fast.getTimeoutMillis());
+        assertEquals(RetransmitTimer.MAX_RTO_MILLIS, slow.getTimeoutMillis());
+    }
+
+    @Test
+    void timeoutsDoubleTheRtoUpToTheMaximum() {
+        RetransmitTimer timer = new RetransmitTimer();
+
+        timer.onTimeout();
+        assertEquals(2000, timer.getTimeoutMillis());
+        timer.onTimeout();
+        assertEquals(4000, timer.getTimeoutMillis());
+        for (int i = 0; i < 10; i++) {
+            timer.onTimeout();
+        }
+        assertEquals(RetransmitTimer.MAX_RTO_MILLIS, timer.getTimeoutMillis());
+    }
+
+    @Test
+    void backedOffRtoHoldsUntilTheNextCleanSample() {
+        // Karn's rule: callers report no samples for retransmitted blocks, so the backoff is kept until a block
+        // sent exactly once is acknowledged, and that sample alone recomputes the RTO from the estimator
+        RetransmitTimer timer = new RetransmitTimer();
+        timer.onRttSample(200 * MILLIS);
+        timer.onTimeout();
+        timer.onTimeout();
+        timer.onProgress();
+        assertEquals(2400, timer.getTimeoutMillis());
+
+        timer.onRttSample(200 * MILLIS);
+
+        assertEquals(500, timer.getTimeoutMillis());
+    }
+
+    @Test
+    void retryBudgetIsExhaustedAfterMaxRetriesAndResetByProgress() {
+        RetransmitTimer timer = new RetransmitTimer();
+        for (int i = 0; i < RetransmitTimer.MAX_RETRIES; i++) {
+            assertTrue(timer.onTimeout());
+        }
+        assertFalse(timer.onTimeout());
+
+        timer.onProgress();
+
+        assertTrue(timer.onTimeout());
+    }
+
+    @Test
+    void negotiatedTimeoutIsFixed() {
+        RetransmitTimer timer = new RetransmitTimer(3000);
+
+        timer.onRttSample(10 * MILLIS);
+        timer.onTimeout();
+
+        assertEquals(3000, timer.getTimeoutMillis());
+    }
+}
@@ -0,0 +1,137 @@
+package codec;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TftpPacketTest {
+
+    @Test
+    void dataRoundTripsWithPayloadWrittenInPlace() {
+        ByteBuffer packet = ByteBuffer.allocate(TftpPacket.HEADER_SIZE + 512);
+        TftpPacket.payload(packet, 512).put(new byte[]{1, 2, 3});
+
+        TftpPacket.putData(packet, 7, 3);
+
+        assertEquals(0, packet.position());
+        assertEquals(TftpPacket.HEADER_SIZE + 3, packet.limit());
+        assertEquals(TftpPacket.OP_DATA, TftpPacket.opcode(packet));
+        assertEquals(7, TftpPacket.blockNumber(packet));
+        assertEquals(3, TftpPacket.payloadLength(packet));
+        assertEquals(2, packet.get(TftpPacket.HEADER_SIZE + 1));
+    }
+
+    @Test
+    void blockNumbersWrapAtSixteenBits() {
+        ByteBuffer packet = ByteBuffer.allocate(TftpPacket.HEADER_SIZE);
+
+        assertEquals(65535, TftpPacket.blockNumber(TftpPacket.putAck(packet, 65535)));
+        assertEquals(0, TftpPacket.blockNumber(TftpPacket.putAck(packet, 65536)));
+        assertEquals(4, TftpPacket.blockNumber(TftpPacket.putData(packet, 65540, 0)));
+    }
+
+    @Test
+    void ackRoundTrips() {
+        ByteBuffer packet = TftpPacket.putAck(ByteBuffer.allocate(16), 42);
+
+        assertEquals(TftpPacket.HEADER_SIZE, packet.limit());
+        assertEquals(TftpPacket.OP_ACK, TftpPacket.opcode(packet));
+        assertEquals(42, TftpPacket.blockNumber(packet));
+    }
+
+    @Test
+    void errorRoundTrips() {
+        ByteBuffer packet = TftpPacket.putError(ByteBuffer.allocate(64), TftpPacket.ERR_FILE_NOT_FOUND, "File not found: a.txt");
+
+        assertEquals(TftpPacket.OP_ERROR, TftpPacket.opcode(packet));
+        assertEquals(TftpPacket.ERR_FILE_NOT_FOUND, TftpPacket.errorCode(packet));
+        assertEquals("File not found: a.txt", TftpPacket.errorMessage(packet));
+    }
+
+    @Test
+    void errorMessageToleratesAMissingTerminatorOrNoMessage() {
+        ByteBuffer unterminated = ByteBuffer.wrap(new byte[]{0, 5, 0, 0, 'o', 'o', 'p', 's'});
+        ByteBuffer headerOnly = ByteBuffer.wrap(new byte[]{0, 5, 0, 0});
+
+        assertEquals("oops", TftpPacket.errorMessage(unterminated));
+        assertEquals("", TftpPacket.errorMessage(headerOnly));
+    }
+
+    @Test
+    void requestRoundTripsWithOptionsInOrder() {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("blksize", "1428");
+        options.put("windowsize", "8");
+        ByteBuffer packet = TftpPacket.putRequest(ByteBuffer.allocate(128), TftpPacket.OP_RRQ, "img.bin", "octet", options);
+
+        List<String> fields = TftpPacket.parseFields(packet);
+
+        assertEquals(TftpPacket.OP_RRQ, TftpPacket.opcode(packet));
+        assertEquals(Arrays.asList("img.bin", "octet", "blksize", "1428", "windowsize", "8"), fields);
+        assertEquals(options, TftpPacket.toOptions(fields, 2));
+    }
+
+    @Test
+    void oackRoundTripsWithNamesLowercased() {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("TSize", "1000");
+        ByteBuffer packet = TftpPacket.putOack(ByteBuffer.allocate(64), options);
+
+        assertEquals(TftpPacket.OP_OACK, TftpPacket.opcode(packet));
+        assertEquals(Collections.singletonMap("tsize", "1000"), TftpPacket.parseOack(packet));
+    }
+
+    @Test
+    void opcodeOfAPacketTooShortToCarryOneIsMinusOne() {
+        assertEquals(-1, TftpPacket.opcode(ByteBuffer.allocate(0)));
+        assertEquals(-1, TftpPacket.opcode(ByteBuffer.wrap(new byte[]{0})));
+        assertEquals(TftpPacket.OP_ACK, TftpPacket.opcode(ByteBuffer.wrap(new byte[]{0, 4, 0})));
+    }
+
+    @Test
+    void headerReadersNeedAFullHeader() {
+        // Receivers drop anything shorter than HEADER_SIZE before reading the block number
+        ByteBuffer truncated = ByteBuffer.wrap(new byte[]{0, 4, 0});
+
+        assertThrows(IndexOutOfBoundsException.class, () -> TftpPacket.blockNumber(truncated));
+    }
+
+    @Test
+    void parseFieldsToleratesMalformedRequests() {
+        assertTrue(TftpPacket.parseFields(ByteBuffer.wrap(new byte[]{0, 1})).isEmpty());
+        // Missing final terminator
+        assertEquals(Arrays.asList("a", "octet"), TftpPacket.parseFields(ByteBuffer.wrap(new byte[]{0, 1, 'a', 0, 'o', 'c', 't', 'e', 't'})));
+        // Empty fields between consecutive terminators are kept
+        assertEquals(Arrays.asList("", "octet"), TftpPacket.parseFields(ByteBuffer.wrap(new byte[]{0, 1, 0, 'o', 'c', 't', 'e', 't', 0})));
+    }
+
+    @Test
+    void optionNameWithoutValueIsDropped() {
+        List<String> fields = Arrays.asList("a", "octet", "blksize", "1024", "tsize");
+
+        assertEquals(Collections.singletonMap("blksize", "1024"), TftpPacket.toOptions(fields, 2));
+    }
+
+    @Test
+    void readersHonourTheArrayOffsetOfASlicedBuffer() {
+        ByteBuffer backing = ByteBuffer.allocate(32);
+        backing.position(5);
+        ByteBuffer packet = backing.slice();
+        TftpPacket.putError(packet, TftpPacket.ERR_DISK_FULL, "full");
+
+        assertEquals("full", TftpPacket.errorMessage(packet));
+
+        TftpPacket.putRequest(packet, TftpPacket.OP_WRQ, "b.txt", "octet", Collections.emptyMap());
+
+        assertEquals(Arrays.asList("b.txt", "octet"), TftpPacket.parseFields(packet));
+    }
+}
@@ -0,0 +1,124 @@
+package codec;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class WriteBehindTest {
+    private static final long MIB = 1024 * 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void fsyncPolicies() {
+        assertEquals(-1, WriteBehind.fsyncInterval("never"));
+        assertEquals(0, WriteBehind.fsyncInterval("close"));
+        assertEquals(0, WriteBehind.fsyncInterval("CLOSE"));
+        assertEquals(4 * MIB, WriteBehind.fsyncInterval("4"));
+        assertEquals(2 * MIB, WriteBehind.fsyncInterval(" 2 "));
+    }
+
+    @Test
+    void fsyncIntervalIsAtLeastOneMiB() {
+        assertEquals(MIB, WriteBehind.fsyncInterval("0"));
+        assertEquals(MIB, WriteBehind.fsyncInterval("-3"));
+    }
+
+    @Test
+    void unknownFsyncPolicyNeverSyncs() {
+        assertEquals(-1, WriteBehind.fsyncInterval("always"));
+    }
+
+    @Test
+    void defaultPolicyLeavesSyncingToTheOs() throws IOException {
+        // The tests run without -Dtftp.fsync
+        assertFalse(WriteBehind.isDurable());
+        try (FileChannel channel = open("unsynced.bin")) {
+            assertEquals(10 * MIB, WriteBehind.syncIfDue(channel, 10 * MIB));
+        }
+    }
+
+    @Test
+    void writesArriveInOrderAcrossManyBuffers() throws IOException {
+        byte[] data = new byte[WriteBehind.MIN_BUFFER_SIZE * 5 + 123];
+        new Random(1).nextBytes(data);
+        Path file = directory.resolve("ordered.bin");
+
+        try (FileChannel channel = open("ordered.bin")) {
+            WriteBehind writer = new WriteBehind(channel, 0, 512);
+            for (int offset = 0; offset < data.length; offset += 1000) {
+                writer.write(data, offset, Math.min(1000, data.length - offset));
+            }
+            assertEquals(data.length, writer.position());
+            writer.flush();
+            writer.close();
+        }
+
+        assertArrayEquals(data, Files.readAllBytes(file));
+    }
+
+    @Test
+    void writesStartAtTheGivenPosition() throws IOException {
+        Path file = directory.resolve("resumed.bin");
+        Files.write(file, new byte[]{1, 2, 3, 4});
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            WriteBehind writer = new WriteBehind(channel, 2, 0);
+            writer.write(new byte[]{9, 9, 9}, 0, 3);
+            writer.flush();
+            writer.close();
+        }
+
+        assertArrayEquals(new byte[]{1, 2, 9, 9, 9}, Files.readAllBytes(file));
+    }
+
+    @Test
+    void callerMayReuseItsBufferAsSoonAsWriteReturns() throws IOException {
+        byte[] block = new byte[512];
+        Path file = directory.resolve("reused.bin");
+
+        try (FileChannel channel = open("reused.bin")) {
+            WriteBehind writer = new WriteBehind(channel, 0, 0);
+            for (int i = 0; i < 4; i++) {
+                Arrays.fill(block, (byte) i);
+                writer.write(block, 0, block.length);
+            }
+            writer.flush();
+            writer.close();
+        }
+
+        byte[] written = Files.readAllBytes(file);
+        assertEquals(2048, written.length);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, written[i * 512]);
+            assertEquals(i, written[i * 512 + 511]);
+        }
+    }
+
+    @Test
+    void closeWithoutFlushDropsWhatIsNotWritten() throws IOException {
+        try (FileChannel channel = open("dropped.bin")) {
+            WriteBehind writer = new WriteBehind(channel, 0, 4096);
+            writer.write(new byte[100], 0, 100);
+            writer.close();
+
+            assertEquals(0, channel.size());
+        }
+    }
+
+    private FileChannel open(String name) throws IOException {
+        return FileChannel.open(directory.resolve(name), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+}
@@ -0,0 +1,71 @@
+package metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe histogram with fixed bucket bounds, in the shape Prometheus expects: bucket counts, a sum and a
+ * count. Recording a value costs a short scan of the bounds and two uncontended adds, so it can sit on a per-block
+ * path.
+ */
+final class Histogram {
+    private final double[] upperBounds;
+    private final LongAdder[] buckets; // one per bound plus the +Inf bucket; not cumulative
+    private final DoubleAdder sum = new DoubleAdder();
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * @param upperBounds The inclusive upper bound of each bucket, ascending.
+     */
+    Histogram(double... upperBounds) {
+        this.upperBounds = upperBounds.clone();
+        this.buckets = new LongAdder[upperBounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void observe(double value) {
+        int bucket = 0;
+        while (bucket < upperBounds.length && value > upperBounds[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sum.add(value);
+        count.increment();
+    }
+
+    double[] upperBounds() {
+        return upperBounds.clone();
+    }
+
+    /**
+     * @param bound One of the upper bounds.
+     * @return The bound as a plain decimal for a label, e.g. "0.0001" rather than "1.0E-4".
+     */
+    static String label(double bound) {
+        return BigDecimal.valueOf(bound).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * @return For each bound, and then for +Inf, how many values were at or below it.
+     */
+    long[] cumulativeCounts() {
+        long[] cumulative = new long[buckets.length];
+        long running = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            running += buckets[i].sum();
+            cumulative[i] = running;
+        }
+        return cumulative;
+    }
+
+    double sum() {
+        return sum.sum();
+    }
+
+    long count() {
+        return count.sum();
+    }
+}
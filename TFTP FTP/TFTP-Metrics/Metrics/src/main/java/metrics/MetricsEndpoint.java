@@ -0,0 +1,136 @@
+package metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Serves every exported {@link TransferStats} of this JVM as Prometheus text on {@code GET /metrics}.
+ * <p>
+ * The endpoint starts with the first export when {@code -Dtftp.metricsPort} is set, and binds to
+ * {@code -Dtftp.metricsAddress} (default 127.0.0.1) so that it stays local unless asked otherwise. It uses the JDK's
+ * built-in HTTP server and answers on its dispatcher thread, since rendering a scrape takes microseconds.
+ * One JVM running several servers, such as the benchmarks, exposes them all on one port, told apart by the
+ * {@code server} label.
+ */
+final class MetricsEndpoint {
+    private static final Integer PORT = Integer.getInteger("tftp.metricsPort");
+    private static final String ADDRESS = System.getProperty("tftp.metricsAddress", "127.0.0.1");
+
+    private static final List<TransferStats> EXPORTED = new CopyOnWriteArrayList<>();
+    private static HttpServer server;
+
+    private MetricsEndpoint() {
+    }
+
+    static synchronized void add(TransferStats stats) {
+        if (!EXPORTED.contains(stats)) {
+            EXPORTED.add(stats);
+        }
+        if (PORT == null || server != null) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(ADDRESS), PORT), 0);
+            server.createContext("/metrics", MetricsEndpoint::handle);
+            server.start();
+            System.out.println("Serving metrics on http://" + ADDRESS + ":" + server.getAddress().getPort() + "/metrics");
+        } catch (IOException e) {
+            System.err.println("Failed to start the metrics endpoint on port " + PORT + ": " + e.getMessage());
+        }
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render(EXPORTED).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Renders the figures in the Prometheus text exposition format, one family at a time.
+     *
+     * @param all The servers to include.
+     * @return The scrape body.
+     */
+    static String render(List<TransferStats> all) {
+        StringBuilder out = new StringBuilder(4096);
+        family(out, "tftp_active_transfers", "gauge", "Transfers in progress.");
+        for (TransferStats stats : all) {
+            sample(out, "tftp_active_transfers", stats, "", stats.getActiveTransfers());
+        }
+        counter(out, all, "tftp_transfers_started_total", "Transfers started.", stats -> stats.transfersStarted);
+        counter(out, all, "tftp_transfers_completed_total", "Transfers that completed successfully.", stats -> stats.transfersCompleted);
+        counter(out, all, "tftp_transfers_failed_total", "Transfers that ended without completing.", stats -> stats.transfersFailed);
+        counter(out, all, "tftp_bytes_sent_total", "Payload bytes sent, retransmissions included.", stats -> stats.bytesSent);
+        counter(out, all, "tftp_bytes_received_total", "Payload bytes accepted from clients.", stats -> stats.bytesReceived);
+        counter(out, all, "tftp_blocks_sent_total", "DATA blocks sent, retransmissions included.", stats -> stats.blocksSent);
+        counter(out, all, "tftp_blocks_received_total", "In-order DATA blocks accepted from clients.", stats -> stats.blocksReceived);
+        counter(out, all, "tftp_retransmits_total", "DATA blocks sent again and ACKs or OACKs repeated after a timeout.", stats -> stats.retransmits);
+        counter(out, all, "tftp_rejected_total", "Connections turned away because the server was busy.", stats -> stats.rejected);
+
+        family(out, "tftp_errors_total", "counter", "Errors by request opcode and reason.");
+        for (TransferStats stats : all) {
+            for (Map.Entry<String, Long> error : stats.getErrors().entrySet()) {
+                String[] key = error.getKey().split(" ", 2);
+                sample(out, "tftp_errors_total", stats, ",opcode=\"" + key[0] + "\",reason=\"" + key[1] + "\"", error.getValue());
+            }
+        }
+
+        histogram(out, all, "tftp_rtt_seconds", "Round-trip times measured by the retransmission timers.", stats -> stats.rtt);
+        histogram(out, all, "tftp_transfer_duration_seconds", "Time from request to completion of successful transfers.", stats -> stats.duration);
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, List<TransferStats> all, String name, String help, Function<TransferStats, LongAdder> field) {
+        family(out, name, "counter", help);
+        for (TransferStats stats : all) {
+            sample(out, name, stats, "", field.apply(stats).sum());
+        }
+    }
+
+    private static void histogram(StringBuilder out, List<TransferStats> all, String name, String help, Function<TransferStats, Histogram> field) {
+        family(out, name, "histogram", help);
+        for (TransferStats stats : all) {
+            Histogram histogram = field.apply(stats);
+            double[] bounds = histogram.upperBounds();
+            long[] counts = histogram.cumulativeCounts();
+            for (int i = 0; i < bounds.length; i++) {
+                sample(out, name + "_bucket", stats, ",le=\"" + Histogram.label(bounds[i]) + "\"", counts[i]);
+            }
+            sample(out, name + "_bucket", stats, ",le=\"+Inf\"", counts[bounds.length]);
+            out.append(name).append("_sum{server=\"").append(stats.getServer()).append("\"} ").append(histogram.sum()).append('\n');
+            // The +Inf bucket rather than the count, so the two agree even if a value lands between the reads
+            sample(out, name + "_count", stats, "", counts[bounds.length]);
+        }
+    }
+
+    private static void family(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, TransferStats stats, String extraLabels, long value) {
+        out.append(name).append("{server=\"").append(stats.getServer()).append('"').append(extraLabels).append("} ").append(value).append('\n');
+    }
+}
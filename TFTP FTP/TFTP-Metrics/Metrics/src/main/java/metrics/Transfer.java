@@ -0,0 +1,144 @@
+package metrics;
+
+import java.util.Locale;
+
+/**
+ * Accounting for one transfer: it keeps the transfer's own totals and adds every event to its server's
+ * {@link TransferStats} as it happens, so long transfers show up in the totals while they run.
+ * <p>
+ * A transfer is driven by one thread at a time (its handler thread or its event loop), so the per-transfer
+ * fields are plain. Call {@link #complete()} once the transfer has succeeded and {@link #finish()} when it is over
+ * either way; a transfer finished without completing counts as failed.
+ */
+public final class Transfer {
+    private final TransferStats stats;
+    private final String opcode;
+    private final long startNanos = System.nanoTime();
+    private long bytes;
+    private long blocks;
+    private long retransmits;
+    private long durationNanos = -1; // set on completion
+    private boolean finished;
+
+    Transfer(TransferStats stats, String opcode) {
+        this.stats = stats;
+        this.opcode = opcode;
+    }
+
+    /**
+     * Counts a DATA block put on the wire.
+     *
+     * @param payloadLength The block's payload length.
+     * @param retransmission Whether the block was sent before.
+     */
+    public void blockSent(int payloadLength, boolean retransmission) {
+        bytes += payloadLength;
+        blocks++;
+        stats.bytesSent.add(payloadLength);
+        stats.blocksSent.increment();
+        if (retransmission) {
+            retransmit();
+        }
+    }
+
+    /**
+     * Counts an in-order DATA block accepted from the client.
+     *
+     * @param payloadLength The block's payload length.
+     */
+    public void blockReceived(int payloadLength) {
+        bytes += payloadLength;
+        blocks++;
+        stats.bytesReceived.add(payloadLength);
+        stats.blocksReceived.increment();
+    }
+
+    /**
+     * Counts bytes of a stream transfer, which has no blocks of its own.
+     *
+     * @param count The number of bytes sent.
+     */
+    public void bytesSent(long count) {
+        bytes += count;
+        stats.bytesSent.add(count);
+    }
+
+    /**
+     * Counts bytes of a stream transfer, which has no blocks of its own.
+     *
+     * @param count The number of bytes received.
+     */
+    public void bytesReceived(long count) {
+        bytes += count;
+        stats.bytesReceived.add(count);
+    }
+
+    /**
+     * Counts a packet sent again: a DATA block (see {@link #blockSent(int, boolean)}) or a repeated ACK or OACK.
+     */
+    public void retransmit() {
+        retransmits++;
+        stats.retransmits.increment();
+    }
+
+    /**
+     * Records a round-trip sample, as fed to the retransmission timer.
+     *
+     * @param rttNanos The round-trip time.
+     */
+    public void rtt(long rttNanos) {
+        stats.rtt.observe(rttNanos / 1e9);
+    }
+
+    /**
+     * Counts an ERROR packet sent or received by this transfer.
+     *
+     * @param errorCode Its TFTP error code.
+     */
+    public void error(int errorCode) {
+        stats.error(opcode, TransferStats.errorReason(errorCode));
+    }
+
+    /**
+     * Counts a transfer abandoned because its retries ran out.
+     */
+    public void timedOut() {
+        stats.error(opcode, "timeout");
+    }
+
+    /**
+     * Marks the transfer as successful and records its duration. Only the first call counts.
+     */
+    public void complete() {
+        if (durationNanos >= 0 || finished) {
+            return;
+        }
+        durationNanos = System.nanoTime() - startNanos;
+        stats.transfersCompleted.increment();
+        stats.duration.observe(durationNanos / 1e9);
+    }
+
+    /**
+     * Ends the transfer's accounting, counting it as failed unless it completed. Only the first call counts.
+     */
+    public void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        stats.activeTransfers.decrementAndGet();
+        if (durationNanos < 0) {
+            stats.transfersFailed.increment();
+        }
+    }
+
+    /**
+     * @return A one-line summary such as {@code "1048576 bytes in 735 blocks, 2 retransmits, 0.412 s"}.
+     */
+    @Override
+    public String toString() {
+        long nanos = durationNanos >= 0 ? durationNanos : System.nanoTime() - startNanos;
+        return bytes + " bytes" + (blocks > 0 ? " in " + blocks + " blocks" : "") + ", " + retransmits + " retransmits, "
+                + String.format(Locale.ROOT, "%.3f s", nanos / 1e9);
+    }
+}
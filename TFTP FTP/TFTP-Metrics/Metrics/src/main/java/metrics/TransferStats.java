@@ -0,0 +1,207 @@
+package metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms for every transfer one server has run.
+ * <p>
+ * Each transfer reports through its own {@link Transfer}, obtained from {@link #start(int)}. The totals are
+ * {@link LongAdder}s, so transfers on many threads update them without contending. {@link #export()} makes them
+ * readable over JMX and, when {@code -Dtftp.metricsPort} is set, as Prometheus text over HTTP (see
+ * {@link MetricsEndpoint}).
+ */
+public final class TransferStats implements TransferStatsMXBean {
+    // Bucket bounds in seconds: RTTs from a LAN's tenths of a millisecond up to the 30 s RTO ceiling,
+    // durations from a small config file to a multi-gigabyte image
+    private static final double[] RTT_BOUNDS = {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    private static final double[] DURATION_BOUNDS = {0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300, 900, 3600};
+    // TFTP error codes 0-8 (RFC 1350, RFC 2347) as metric labels
+    private static final String[] ERROR_REASONS = {"not_defined", "file_not_found", "access_violation", "disk_full",
+            "illegal_operation", "unknown_tid", "file_exists", "no_such_user", "option_refused"};
+    private static final String[] OPCODES = {"unknown", "RRQ", "WRQ", "DATA", "ACK", "ERROR", "OACK"};
+
+    private final String server;
+    final LongAdder transfersStarted = new LongAdder();
+    final LongAdder transfersCompleted = new LongAdder();
+    final LongAdder transfersFailed = new LongAdder();
+    final AtomicInteger activeTransfers = new AtomicInteger();
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder blocksSent = new LongAdder();
+    final LongAdder blocksReceived = new LongAdder();
+    final LongAdder retransmits = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>(); // by "opcode reason"
+    final Histogram rtt = new Histogram(RTT_BOUNDS);
+    final Histogram duration = new Histogram(DURATION_BOUNDS);
+
+    /**
+     * @param server The label that tells this server's figures apart, e.g. "udp" or "tcp".
+     */
+    public TransferStats(String server) {
+        this.server = server;
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    /**
+     * Starts accounting for a new transfer.
+     *
+     * @param opcode The request's opcode.
+     * @return The handle the transfer reports through; it must be {@linkplain Transfer#finish() finished}.
+     */
+    public Transfer start(int opcode) {
+        transfersStarted.increment();
+        activeTransfers.incrementAndGet();
+        return new Transfer(this, opcodeName(opcode));
+    }
+
+    /**
+     * Counts an error that happened outside any transfer, such as a malformed request on the listen port.
+     *
+     * @param opcode The opcode of the offending packet.
+     * @param errorCode The TFTP error code that describes it.
+     */
+    public void error(int opcode, int errorCode) {
+        error(opcodeName(opcode), errorReason(errorCode));
+    }
+
+    /**
+     * Counts a connection turned away because the server had no room for it.
+     */
+    public void rejected() {
+        rejected.increment();
+    }
+
+    void error(String opcode, String reason) {
+        errors.computeIfAbsent(opcode + " " + reason, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Registers this server's figures as an MXBean and adds them to the HTTP endpoint, starting it if
+     * {@code -Dtftp.metricsPort} asks for one. Failures are logged rather than thrown: a server without metrics
+     * is still a working server.
+     */
+    public void export() {
+        try {
+            ObjectName name = new ObjectName("tftp:type=TransferStats,server=" + server);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            System.err.println("Failed to register transfer metrics over JMX: " + e.getMessage());
+        }
+        MetricsEndpoint.add(this);
+    }
+
+    static String errorReason(int errorCode) {
+        return errorCode >= 0 && errorCode < ERROR_REASONS.length ? ERROR_REASONS[errorCode] : "code_" + errorCode;
+    }
+
+    static String opcodeName(int opcode) {
+        return opcode > 0 && opcode < OPCODES.length ? OPCODES[opcode] : OPCODES[0];
+    }
+
+    @Override
+    public int getActiveTransfers() {
+        return activeTransfers.get();
+    }
+
+    @Override
+    public long getTransfersStarted() {
+        return transfersStarted.sum();
+    }
+
+    @Override
+    public long getTransfersCompleted() {
+        return transfersCompleted.sum();
+    }
+
+    @Override
+    public long getTransfersFailed() {
+        return transfersFailed.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBlocksSent() {
+        return blocksSent.sum();
+    }
+
+    @Override
+    public long getBlocksReceived() {
+        return blocksReceived.sum();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : errors.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().sum());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public double getMeanRttMillis() {
+        long count = rtt.count();
+        return count == 0 ? 0 : rtt.sum() / count * 1000;
+    }
+
+    @Override
+    public Map<String, Long> getRttHistogram() {
+        return bucketMap(rtt);
+    }
+
+    @Override
+    public double getMeanTransferSeconds() {
+        long count = duration.count();
+        return count == 0 ? 0 : duration.sum() / count;
+    }
+
+    @Override
+    public Map<String, Long> getTransferDurationHistogram() {
+        return bucketMap(duration);
+    }
+
+    private static Map<String, Long> bucketMap(Histogram histogram) {
+        double[] bounds = histogram.upperBounds();
+        long[] counts = histogram.cumulativeCounts();
+        Map<String, Long> buckets = new LinkedHashMap<>();
+        for (int i = 0; i < bounds.length; i++) {
+            buckets.put(Histogram.label(bounds[i]), counts[i]);
+        }
+        buckets.put("+Inf", counts[bounds.length]);
+        return buckets;
+    }
+}
@@ -0,0 +1,60 @@
+package metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of a server's {@link TransferStats}, registered as {@code tftp:type=TransferStats,server=<name>}.
+ * Counters run from server start.
+ */
+public interface TransferStatsMXBean {
+    int getActiveTransfers();
+
+    long getTransfersStarted();
+
+    long getTransfersCompleted();
+
+    long getTransfersFailed();
+
+    /**
+     * @return Payload bytes put on the wire, retransmissions included.
+     */
+    long getBytesSent();
+
+    /**
+     * @return Payload bytes accepted from clients; duplicates are not counted.
+     */
+    long getBytesReceived();
+
+    long getBlocksSent();
+
+    long getBlocksReceived();
+
+    /**
+     * @return DATA blocks sent again, plus ACKs and OACKs repeated after a timeout.
+     */
+    long getRetransmits();
+
+    /**
+     * @return Connections turned away with "Server busy" because the server had no room for them.
+     */
+    long getRejected();
+
+    /**
+     * @return Errors by request opcode and reason, keyed like {@code "RRQ file_not_found"}.
+     */
+    Map<String, Long> getErrors();
+
+    double getMeanRttMillis();
+
+    /**
+     * @return How many RTT samples were at or below each bucket bound, in seconds ({@code "+Inf"} for all).
+     */
+    Map<String, Long> getRttHistogram();
+
+    double getMeanTransferSeconds();
+
+    /**
+     * @return How many completed transfers took at most each bucket bound, in seconds ({@code "+Inf"} for all).
+     */
+    Map<String, Long> getTransferDurationHistogram();
+}
@@ -0,0 +1,52 @@
+package metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HistogramTest {
+
+    @Test
+    void valuesLandInTheFirstBucketThatHoldsThem() {
+        Histogram histogram = new Histogram(1, 5, 10);
+
+        histogram.observe(0.5);
+        histogram.observe(1); // bounds are inclusive
+        histogram.observe(3);
+        histogram.observe(10);
+        histogram.observe(11);
+
+        assertArrayEquals(new long[]{2, 3, 4, 5}, histogram.cumulativeCounts());
+        assertEquals(5, histogram.count());
+        assertEquals(25.5, histogram.sum(), 1e-9);
+    }
+
+    @Test
+    void emptyHistogramCountsNothing() {
+        Histogram histogram = new Histogram(0.1, 1);
+
+        assertArrayEquals(new long[]{0, 0, 0}, histogram.cumulativeCounts());
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.sum(), 0);
+    }
+
+    @Test
+    void boundsAreCopied() {
+        double[] bounds = {1, 2};
+        Histogram histogram = new Histogram(bounds);
+
+        bounds[0] = 100;
+        histogram.upperBounds()[1] = 100;
+
+        assertArrayEquals(new double[]{1, 2}, histogram.upperBounds());
+    }
+
+    @Test
+    void labelsArePlainDecimals() {
+        assertEquals("0.0001", Histogram.label(0.0001));
+        assertEquals("0.25", Histogram.label(0.25));
+        assertEquals("1", Histogram.label(1));
+        assertEquals("3600", Histogram.label(3600));
+    }
+}
@@ -0,0 +1,82 @@
+package metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsEndpointTest {
+    private static final int RRQ = 1;
+    private static final int WRQ = 2;
+
+    @Test
+    void everyFamilyHasHelpAndType() {
+        String body = MetricsEndpoint.render(Collections.singletonList(new TransferStats("udp")));
+
+        assertTrue(body.startsWith("# HELP tftp_active_transfers Transfers in progress.\n# TYPE tftp_active_transfers gauge\n"));
+        assertTrue(body.contains("# TYPE tftp_transfers_started_total counter\n"));
+        assertTrue(body.contains("# TYPE tftp_errors_total counter\n"));
+        assertTrue(body.contains("# TYPE tftp_rtt_seconds histogram\n"));
+        assertTrue(body.endsWith("\n"));
+    }
+
+    @Test
+    void transferEventsShowUpAsSamples() {
+        TransferStats stats = new TransferStats("udp");
+        Transfer read = stats.start(RRQ);
+        read.blockSent(512, false);
+        read.blockSent(100, true);
+        read.rtt(2_000_000); // 2 ms
+        read.complete();
+        read.finish();
+        Transfer write = stats.start(WRQ);
+        write.error(3);
+        write.finish();
+        Transfer running = stats.start(RRQ);
+
+        String body = MetricsEndpoint.render(Collections.singletonList(stats));
+
+        assertTrue(body.contains("tftp_active_transfers{server=\"udp\"} 1\n"));
+        assertTrue(body.contains("tftp_transfers_started_total{server=\"udp\"} 3\n"));
+        assertTrue(body.contains("tftp_transfers_completed_total{server=\"udp\"} 1\n"));
+        assertTrue(body.contains("tftp_transfers_failed_total{server=\"udp\"} 1\n"));
+        assertTrue(body.contains("tftp_bytes_sent_total{server=\"udp\"} 612\n"));
+        assertTrue(body.contains("tftp_blocks_sent_total{server=\"udp\"} 2\n"));
+        assertTrue(body.contains("tftp_retransmits_total{server=\"udp\"} 1\n"));
+        assertTrue(body.contains("tftp_errors_total{server=\"udp\",opcode=\"WRQ\",reason=\"disk_full\"} 1\n"));
+        assertTrue(body.contains("tftp_rtt_seconds_bucket{server=\"udp\",le=\"0.001\"} 0\n"));
+        assertTrue(body.contains("tftp_rtt_seconds_bucket{server=\"udp\",le=\"0.0025\"} 1\n"));
+        assertTrue(body.contains("tftp_rtt_seconds_bucket{server=\"udp\",le=\"+Inf\"} 1\n"));
+        assertTrue(body.contains("tftp_rtt_seconds_count{server=\"udp\"} 1\n"));
+        assertTrue(body.contains("tftp_transfer_duration_seconds_count{server=\"udp\"} 1\n"));
+        running.finish();
+    }
+
+    @Test
+    void serversAreToldApartByLabel() {
+        TransferStats udp = new TransferStats("udp");
+        TransferStats tcp = new TransferStats("tcp");
+        tcp.rejected();
+        tcp.rejected();
+
+        String body = MetricsEndpoint.render(Arrays.asList(udp, tcp));
+
+        assertTrue(body.contains("tftp_rejected_total{server=\"udp\"} 0\ntftp_rejected_total{server=\"tcp\"} 2\n"));
+    }
+
+    @Test
+    void eachSampleLineIsNameLabelsAndValue() {
+        TransferStats stats = new TransferStats("tcp");
+        stats.error(0, 9);
+
+        for (String line : MetricsEndpoint.render(Collections.singletonList(stats)).split("\n")) {
+            if (!line.startsWith("#")) {
+                assertTrue(line.matches("tftp_[a-z_]+\\{server=\"tcp\"[^}]*} -?[0-9.E]+"), line);
+            }
+        }
+        assertEquals(1, stats.getErrors().size());
+    }
+}
@@ -1,17 +1,60 @@
 package tcpclient;
 
+import codec.FileDigest;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class TCPClient {
     // Operation codes for read and write requests
     private static final byte OP_RRQ = 1;
     private static final byte OP_WRQ = 2;
+    private static final byte OP_DATAPACKET = 3;
+    private static final byte OP_ACK = 4;
+    private static final byte OP_ERROR = 5;
+    private static final byte OP_OACK = 6;
+    private static final byte OP_DIGEST = 7; // "algorithm:hex" of a whole file, after the DATA of a request flagged for it
+    private static final byte OP_SESSION = 10; // Opens a framed session; every message after it is [flags:1][opcode:1][length:8][payload]
+    private static final int FRAME_HEADER_SIZE = 10;
+    private static final byte FLAG_DEFLATE = 1; // On a request, asks for compressed DATA; on DATA, marks a chunk of one zlib stream
+    private static final int DEFLATE_CHUNK_SIZE = 64 * 1024; // Largest compressed DATA frame; an empty one ends the stream
+    // -Dtftp.compress=true deflates uploads and asks for deflated downloads in framed sessions (menu 3 to 6)
+    private static final boolean COMPRESS = Boolean.getBoolean("tftp.compress");
+    private static final int DEFLATE_LEVEL = Integer.getInteger("tftp.deflateLevel", Deflater.BEST_SPEED);
+    private static final byte REQUEST_FLAGS = COMPRESS ? FLAG_DEFLATE : 0;
+    private static final byte FLAG_SHA256 = 2; // On an RRQ or WRQ, asks for a DIGEST frame after the DATA
+    private static final byte FLAG_CRC32C = 4;
+    private static final int MAX_DIGEST_LENGTH = 128;
+    private static final int DIGEST_BUFFER_SIZE = 256 * 1024; // Heap buffer for data digested on its way through
+    // -Dtftp.digest=sha256 or crc32c checks every file of a framed session (menu 3 to 5) end to end
+    private static final String DIGEST = FileDigest.isSupported(System.getProperty("tftp.digest")) ? System.getProperty("tftp.digest").toLowerCase(Locale.ROOT) : null;
+    private static final byte DIGEST_FLAG = DIGEST == null ? 0 : FileDigest.SHA256.equals(DIGEST) ? FLAG_SHA256 : FLAG_CRC32C;
     private static final int PACKET_SIZE = 512; // The packet size for the data buffer
     private static final int DEFAULT_PORT = 2000; // Default port number
+    private static final int SOCKET_BUFFER_SIZE = 1024 * 1024; // Large socket buffers for long fat pipes
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024; // Smaller segments are not worth a connection of their own
 
-    private Socket clientSocket; // Socket for client-server communication
+    private SocketChannel clientChannel; // Channel for client-server communication, used for zero-copy file transfers
+    private Socket clientSocket; // Socket of that channel, used for the request packets
     private InetAddress serverAddress; // Server IP address
     private int serverPort; // Server port number
 
@@ -30,6 +73,10 @@ public class TCPClient {
         // Display menu and get command from user input
         System.out.println("Press 1: Send RRQ request");
         System.out.println("Press 2: Send WRQ request");
+        System.out.println("Press 3: Send several RRQ requests over one connection, resuming partial files");
+        System.out.println("Press 4: Send several WRQ requests over one connection");
+        System.out.println("Press 5: Resume an interrupted WRQ request");
+        System.out.println("Press 6: Send an RRQ request split over several parallel connections");
         System.out.println("Enter Your Command:");
 
         int command = scanner.nextInt();
@@ -43,8 +90,26 @@ public class TCPClient {
             System.out.println("Enter file name:");
             String fileName = scanner.next();
             tftpClient.writeFile(fileName);
+        } else if (command == 3 || command == 4) {
+            System.out.println("Enter file names separated by commas:");
+            List<String> fileNames = Arrays.asList(scanner.next().split(","));
+            if (command == 3) {
+                tftpClient.readFiles(fileNames);
+            } else {
+                tftpClient.writeFiles(fileNames);
+            }
+        } else if (command == 5) {
+            System.out.println("Enter file name:");
+            String fileName = scanner.next();
+            tftpClient.resumeWrite(fileName);
+        } else if (command == 6) {
+            System.out.println("Enter file name:");
+            String fileName = scanner.next();
+            System.out.println("Enter number of connections:");
+            int connections = scanner.nextInt();
+            tftpClient.readFileSegmented(fileName, connections);
         } else {
-            System.out.println("Invalid command. Press 1 for RRQ or 2 for WRQ.");
+            System.out.println("Invalid command. Press 1 for RRQ, 2 for WRQ, 3 or 4 for several files, 5 to resume a WRQ, 6 for a parallel RRQ.");
         }
 
         scanner.close();
@@ -61,12 +126,11 @@ public class TCPClient {
         connect();
 
         OutputStream outputStream = clientSocket.getOutputStream();
-        InputStream inputStream = clientSocket.getInputStream();
 
         // Send a read request to the server
         sendReadRequest(outputStream, fileName);
         // Receive and save the file
-        receiveFile(inputStream, fileName);
+        receiveFile(fileName);
 
         clientSocket.close();
     }
@@ -76,19 +140,499 @@ public class TCPClient {
         connect();
 
         OutputStream outputStream = clientSocket.getOutputStream();
-        InputStream inputStream = clientSocket.getInputStream();
 
         // Send a write request to the server
         sendWriteRequest(outputStream, fileName);
         // Send the file to the server
-        sendFile(outputStream, fileName);
+        sendFile(fileName);
 
         clientSocket.close();
     }
 
+    // Method to read several files from the server over one connection, sending every request up front. A file that
+    // is already here, in part or in full, is only completed: the server sends the bytes past it if it is a prefix of
+    // the server's copy, and the whole file otherwise. Returns how many files were transferred.
+    public int readFiles(List<String> fileNames) throws IOException {
+        return runSession(OP_RRQ, fileNames);
+    }
+
+    // Method to write several files to the server over one connection, streaming them back to back. Returns how many
+    // files the server acknowledged.
+    public int writeFiles(List<String> fileNames) throws IOException {
+        for (String fileName : fileNames) {
+            if (!new File(fileName).isFile()) {
+                throw new FileNotFoundException(fileName);
+            }
+        }
+        return runSession(OP_WRQ, fileNames);
+    }
+
+    // Method to finish a write that was cut off: the server reports how much of the file it holds and its checksum,
+    // and only the rest is sent if that matches the start of the local file
+    public void resumeWrite(String fileName) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ)) {
+            connect();
+            try {
+                writeFully(ByteBuffer.wrap(new byte[]{0, OP_SESSION}));
+                byte[] name = (fileName + "\0").getBytes(StandardCharsets.UTF_8);
+                writeFully(frameHeader((byte) (REQUEST_FLAGS | DIGEST_FLAG), OP_WRQ, name.length), ByteBuffer.wrap(name));
+
+                ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+                readFully(header);
+                if (header.getShort(0) == OP_ERROR) {
+                    System.out.println("Error for " + fileName + ": " + readErrorMessage(header));
+                    return;
+                }
+                if (header.getShort(0) != OP_OACK || header.getLong(2) != 12) {
+                    throw new ProtocolException("Unexpected reply " + header.getShort(0) + " for " + fileName);
+                }
+                ByteBuffer prefix = ByteBuffer.allocate(12);
+                readFully(prefix);
+                long held = prefix.getLong(0);
+                long size = fileChannel.size();
+                long offset = held <= size && prefixChecksum(fileChannel, held) == prefix.getInt(8) ? held : 0;
+                System.out.println("Server holds " + held + " bytes of " + fileName + "; sending from byte " + offset);
+
+                writeFully(frameHeader(OP_OACK, 8), ByteBuffer.allocate(8).putLong(offset).flip());
+                sendData(fileChannel, offset, size, DIGEST == null ? null
+                        : offset > 0 ? FileDigest.ofPrefix(fileChannel, offset, DIGEST) : FileDigest.create(DIGEST));
+                clientChannel.shutdownOutput();
+                if (receiveReply(OP_WRQ, fileName)) {
+                    System.out.println("File sent: " + fileName);
+                }
+            } finally {
+                clientSocket.close();
+            }
+        }
+    }
+
+    // Method to read a file over several connections at once: the file is split into one range per connection and
+    // each range is written straight into its place in the local file, so no single stream's window limits throughput
+    public void readFileSegmented(String fileName, int connections) throws IOException {
+        // This session first asks for an empty range to learn the size, then fetches the first segment itself
+        connect();
+        try (FileChannel fileChannel = FileChannel.open(new File(fileName).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(ByteBuffer.wrap(new byte[]{0, OP_SESSION}));
+            long size = readRange(fileName, 0, 0, fileChannel);
+            if (size < 0) {
+                return;
+            }
+            int segments = (int) Math.max(1, Math.min(connections, size / MIN_SEGMENT_SIZE));
+            long segmentSize = size / segments;
+            // Preallocate, so the segments fill in a file of the final length rather than extending it concurrently
+            if (size > 0) {
+                fileChannel.write(ByteBuffer.allocate(1), size - 1);
+            }
+
+            long start = System.nanoTime();
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, segments - 1));
+            try {
+                List<Future<Long>> parts = new ArrayList<>();
+                for (int i = 1; i < segments; i++) {
+                    long from = i * segmentSize;
+                    long length = i == segments - 1 ? size - from : segmentSize;
+                    parts.add(pool.submit(() -> {
+                        TCPClient segment = new TCPClient(serverAddress, serverPort);
+                        segment.connect();
+                        try {
+                            segment.writeFully(ByteBuffer.wrap(new byte[]{0, OP_SESSION}));
+                            return segment.readRange(fileName, from, length, fileChannel);
+                        } finally {
+                            segment.clientSocket.close();
+                        }
+                    }));
+                }
+                readRange(fileName, 0, segments == 1 ? size : segmentSize, fileChannel);
+                for (Future<Long> part : parts) {
+                    part.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading segments");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("File received: %s, %d bytes over %d connections in %.3f s%n", fileName, size, segments, seconds);
+        } finally {
+            clientSocket.close();
+        }
+    }
+
+    // Method to request one range of a file on the open session and write it at its position in the local file,
+    // returning the file's size, or -1 if the server sent an ERROR
+    private long readRange(String fileName, long from, long length, FileChannel fileChannel) throws IOException {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer request = ByteBuffer.allocate(name.length + 1 + 16);
+        request.put(name).put((byte) 0).putLong(from).putLong(length).flip();
+        writeFully(frameHeader(REQUEST_FLAGS, OP_RRQ, request.remaining()), request);
+
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        readFully(header);
+        if (header.getShort(0) == OP_ERROR) {
+            System.out.println("Error for " + fileName + ": " + readErrorMessage(header));
+            return -1;
+        }
+        if (header.getShort(0) != OP_OACK || header.getLong(2) != 16) {
+            throw new ProtocolException("Unexpected reply " + header.getShort(0) + " for " + fileName);
+        }
+        ByteBuffer range = ByteBuffer.allocate(16);
+        readFully(range);
+        long size = range.getLong(8);
+        if (range.getLong(0) != from) {
+            throw new IOException(fileName + " changed on the server during the download");
+        }
+        readFully(header.clear());
+        // An uncompressed range is checked before it is written; a compressed one only shows its length once inflated
+        if (header.get(0) == 0 && header.getLong(2) != length) {
+            throw new IOException(fileName + " changed on the server during the download");
+        }
+        if (receiveData(header, fileChannel, from, fileName, null) != from + length) {
+            throw new IOException(fileName + " changed on the server during the download");
+        }
+        return size;
+    }
+
+    // Method to run a framed session: one thread pipelines the requests while this one reads the replies, which the
+    // server sends in request order, so neither side waits on the other
+    private int runSession(byte opCode, List<String> fileNames) throws IOException {
+        connect();
+        writeFully(ByteBuffer.wrap(new byte[]{0, OP_SESSION}));
+
+        FutureTask<Void> requests = new FutureTask<>(() -> {
+            sendRequests(opCode, fileNames);
+            clientChannel.shutdownOutput();
+            return null;
+        });
+        new Thread(requests, "tftp-tcp-requests").start();
+
+        int completed = 0;
+        try {
+            for (String fileName : fileNames) {
+                if (receiveReply(opCode, fileName)) {
+                    completed++;
+                }
+            }
+            requests.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending requests");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            // Also unblocks the request thread if reading the replies failed
+            clientSocket.close();
+        }
+        System.out.println(completed + " of " + fileNames.size() + " files transferred over one connection");
+        return completed;
+    }
+
+    // Method to write a request frame for each file and, for writes, a DATA frame with its contents and the DIGEST frame
+    // asked for. A read request names the length and CRC-32C of the local copy (zero if there is none) after a NUL, so
+    // the server can resume it.
+    private void sendRequests(byte opCode, List<String> fileNames) throws IOException {
+        for (String fileName : fileNames) {
+            byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+            if (opCode == OP_RRQ) {
+                ByteBuffer request = ByteBuffer.allocate(name.length + 1 + 12);
+                request.put(name).put((byte) 0);
+                File local = new File(fileName);
+                if (local.isFile()) {
+                    try (FileChannel fileChannel = FileChannel.open(local.toPath(), StandardOpenOption.READ)) {
+                        long length = fileChannel.size();
+                        request.putLong(length).putInt(prefixChecksum(fileChannel, length));
+                    }
+                } else {
+                    request.putLong(0).putInt(0);
+                }
+                writeFully(frameHeader((byte) (REQUEST_FLAGS | DIGEST_FLAG), opCode, request.capacity()), request.flip());
+            } else {
+                writeFully(frameHeader((byte) (REQUEST_FLAGS | DIGEST_FLAG), opCode, name.length), ByteBuffer.wrap(name));
+            }
+            if (opCode == OP_WRQ) {
+                try (FileChannel fileChannel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ)) {
+                    sendData(fileChannel, 0, fileChannel.size(), DIGEST != null ? FileDigest.create(DIGEST) : null);
+                }
+            }
+        }
+    }
+
+    // Method to read the reply to one request: the file for a read (an OACK with the offset the data starts at, then
+    // the data and the DIGEST asked for), an ACK for a write, or an ERROR for either. A file whose digest does not match
+    // is kept: its CRC-32C will not match the server's copy either, so the next read of it starts over.
+    private boolean receiveReply(byte opCode, String fileName) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        readFully(header);
+        short replyCode = header.getShort(0);
+
+        if (replyCode == OP_ERROR) {
+            System.out.println("Error for " + fileName + ": " + readErrorMessage(header));
+            return false;
+        }
+        if (opCode == OP_WRQ && replyCode == OP_ACK) {
+            return true;
+        }
+        if (opCode != OP_RRQ || replyCode != OP_OACK || header.getLong(2) != 8) {
+            throw new ProtocolException("Unexpected reply " + replyCode + " for " + fileName);
+        }
+        ByteBuffer start = ByteBuffer.allocate(8);
+        readFully(start);
+        long offset = start.getLong(0);
+        readFully(header.clear());
+        // Not truncated up front: with a nonzero offset the bytes before it are the prefix being resumed
+        String received = null;
+        try (FileChannel fileChannel = FileChannel.open(new File(fileName).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            FileDigest digest = DIGEST == null ? null
+                    : offset > 0 ? FileDigest.ofPrefix(fileChannel, offset, DIGEST) : FileDigest.create(DIGEST);
+            fileChannel.truncate(receiveData(header, fileChannel, offset, fileName, digest));
+            if (digest != null) {
+                received = digest.finish();
+            }
+        }
+        if (offset > 0) {
+            System.out.println("Resumed " + fileName + " at byte " + offset);
+        }
+        if (received != null) {
+            readFully(header.clear());
+            if (header.get(1) != OP_DIGEST || header.getLong(2) < 1 || header.getLong(2) > MAX_DIGEST_LENGTH) {
+                throw new ProtocolException("Expected a DIGEST frame for " + fileName);
+            }
+            ByteBuffer body = ByteBuffer.allocate((int) header.getLong(2));
+            readFully(body);
+            String expected = new String(body.array(), StandardCharsets.UTF_8);
+            if (!received.equals(expected)) {
+                System.out.println("Digest mismatch for " + fileName + ": expected " + expected + ", received " + received);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Method to write the file from offset to end as a DATA frame or, with -Dtftp.compress=true, as the chunks of its
+    // zlib stream, deflated as they are sent. With a digest, which holds the bytes before offset, the data goes
+    // through the heap so it is hashed on the way, and a DIGEST frame follows it.
+    private void sendData(FileChannel fileChannel, long offset, long end, FileDigest digest) throws IOException {
+        if (!COMPRESS) {
+            writeFully(frameHeader(OP_DATAPACKET, end - offset));
+            long position = offset;
+            ByteBuffer buffer = digest != null ? ByteBuffer.allocate(DIGEST_BUFFER_SIZE) : null;
+            while (buffer != null && position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = fileChannel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException(end - position + " bytes short of the end of the file");
+                }
+                digest.update(buffer.array(), 0, read);
+                writeFully(buffer.flip());
+                position += read;
+            }
+            while (position < end) {
+                position += fileChannel.transferTo(position, end - position, clientChannel);
+            }
+            sendDigest(digest);
+            return;
+        }
+        Deflater deflater = new Deflater(DEFLATE_LEVEL);
+        ByteBuffer input = ByteBuffer.allocate(DEFLATE_CHUNK_SIZE);
+        byte[] output = new byte[DEFLATE_CHUNK_SIZE];
+        long position = offset;
+        try {
+            while (!deflater.finished()) {
+                if (deflater.needsInput()) {
+                    input.clear().limit((int) Math.min(input.capacity(), end - position));
+                    int read = input.hasRemaining() ? fileChannel.read(input, position) : -1;
+                    if (read > 0) {
+                        deflater.setInput(input.array(), 0, read);
+                        if (digest != null) {
+                            digest.update(input.array(), 0, read);
+                        }
+                        position += read;
+                    } else {
+                        deflater.finish();
+                    }
+                }
+                int count = deflater.deflate(output);
+                if (count > 0) {
+                    writeFully(frameHeader(FLAG_DEFLATE, OP_DATAPACKET, count), ByteBuffer.wrap(output, 0, count));
+                }
+            }
+            writeFully(frameHeader(FLAG_DEFLATE, OP_DATAPACKET, 0));
+        } finally {
+            deflater.end();
+        }
+        sendDigest(digest);
+    }
+
+    // Method to write the DIGEST frame that ends the data of a WRQ, if it asked for one
+    private void sendDigest(FileDigest digest) throws IOException {
+        if (digest != null) {
+            byte[] text = digest.finish().getBytes(StandardCharsets.UTF_8);
+            writeFully(frameHeader(OP_DIGEST, text.length), ByteBuffer.wrap(text));
+        }
+    }
+
+    // Method to write the body of the DATA frame whose header has been read into the file from offset, inflating it
+    // if the server compressed it, and return where it ended. Data to digest goes through the heap instead of
+    // straight from the socket into the file.
+    private long receiveData(ByteBuffer header, FileChannel fileChannel, long offset, String fileName, FileDigest digest) throws IOException {
+        if (header.get(1) != OP_DATAPACKET) {
+            throw new ProtocolException("Expected a DATA frame for " + fileName);
+        }
+        if (header.get(0) == FLAG_DEFLATE) {
+            return receiveDeflated(header, fileChannel, offset, fileName, digest);
+        }
+        if (header.get(0) != 0) {
+            throw new ProtocolException("Unknown DATA flags " + header.get(0) + " for " + fileName);
+        }
+        long end = offset + header.getLong(2);
+        long position = offset;
+        ByteBuffer buffer = digest != null ? ByteBuffer.allocate(DIGEST_BUFFER_SIZE) : null;
+        while (buffer != null && position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            if (clientChannel.read(buffer) == -1) {
+                throw new EOFException("Connection closed " + (end - position) + " bytes short of " + fileName);
+            }
+            buffer.flip();
+            digest.update(buffer.array(), 0, buffer.limit());
+            while (buffer.hasRemaining()) {
+                position += fileChannel.write(buffer, position);
+            }
+        }
+        while (position < end) {
+            long transferred = fileChannel.transferFrom(clientChannel, position, Math.min(SOCKET_BUFFER_SIZE, end - position));
+            if (transferred == 0) {
+                throw new EOFException("Connection closed " + (end - position) + " bytes short of " + fileName);
+            }
+            position += transferred;
+        }
+        return end;
+    }
+
+    // Method to inflate a run of compressed DATA frames, the first of which has had its header read, into the file
+    private long receiveDeflated(ByteBuffer header, FileChannel fileChannel, long offset, String fileName, FileDigest digest) throws IOException {
+        Inflater inflater = new Inflater();
+        ByteBuffer chunk = ByteBuffer.allocate(DEFLATE_CHUNK_SIZE);
+        byte[] inflated = new byte[DEFLATE_CHUNK_SIZE];
+        long position = offset;
+        try {
+            while (header.getLong(2) > 0) {
+                if (header.getLong(2) > DEFLATE_CHUNK_SIZE) {
+                    throw new ProtocolException("Compressed chunk of " + header.getLong(2) + " bytes for " + fileName);
+                }
+                readFully(chunk.clear().limit((int) header.getLong(2)));
+                inflater.setInput(chunk.array(), 0, chunk.limit());
+                while (!inflater.finished() && !inflater.needsInput()) {
+                    int count = inflater.inflate(inflated);
+                    if (count == 0 && inflater.needsDictionary()) {
+                        throw new ProtocolException("Compressed data for " + fileName + " needs a preset dictionary");
+                    }
+                    if (digest != null) {
+                        digest.update(inflated, 0, count);
+                    }
+                    ByteBuffer output = ByteBuffer.wrap(inflated, 0, count);
+                    while (output.hasRemaining()) {
+                        position += fileChannel.write(output, position);
+                    }
+                }
+                readFully(header.clear());
+                if (header.get(0) != FLAG_DEFLATE || header.get(1) != OP_DATAPACKET) {
+                    throw new ProtocolException("Expected a compressed DATA frame for " + fileName);
+                }
+            }
+            if (!inflater.finished()) {
+                throw new ProtocolException("Compressed data for " + fileName + " ended before the end of its stream");
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed data for " + fileName + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return position;
+    }
+
+    // Method to read the body of an ERROR frame: the error code, then the message. A server too busy to take the
+    // session may answer with a plain ERROR packet instead, [0][5][code:2][message][0]; its message then starts inside
+    // what was read as the frame header, whose length comes out far too large
+    private String readErrorMessage(ByteBuffer header) throws IOException {
+        long length = header.getLong(2);
+        if (length >= 2 && length <= PACKET_SIZE) {
+            ByteBuffer body = ByteBuffer.allocate((int) length);
+            readFully(body);
+            return new String(body.array(), 2, body.capacity() - 2, StandardCharsets.UTF_8);
+        }
+        if (length <= PACKET_SIZE) {
+            throw new ProtocolException("ERROR frame of " + length + " bytes");
+        }
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        for (int i = 4; i < FRAME_HEADER_SIZE; i++) {
+            if (header.get(i) == 0) {
+                return message.toString(StandardCharsets.UTF_8);
+            }
+            message.write(header.get(i));
+        }
+        ByteBuffer next = ByteBuffer.allocate(1);
+        while (message.size() < PACKET_SIZE && clientChannel.read(next.clear()) != -1) {
+            if (next.get(0) == 0) {
+                break;
+            }
+            message.write(next.get(0));
+        }
+        return message.toString(StandardCharsets.UTF_8);
+    }
+
+    // Method to compute the CRC-32C of the first length bytes of a file, read through one direct buffer
+    private static int prefixChecksum(FileChannel fileChannel, long length) throws IOException {
+        CRC32C checksum = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SOCKET_BUFFER_SIZE);
+        long position = 0;
+        while (position < length) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+            int read = fileChannel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            buffer.flip();
+            checksum.update(buffer);
+            position += read;
+        }
+        return (int) checksum.getValue();
+    }
+
+    private ByteBuffer frameHeader(byte opCode, long length) {
+        return frameHeader((byte) 0, opCode, length);
+    }
+
+    private ByteBuffer frameHeader(byte flags, byte opCode, long length) {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        header.put(flags).put(opCode).putLong(length).flip();
+        return header;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (clientChannel.read(buffer) == -1) {
+                throw new EOFException("Connection closed in the middle of a reply");
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer... buffers) throws IOException {
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            clientChannel.write(buffers);
+        }
+    }
+
     // Method to establish a connection with the server
     private void connect() throws IOException {
-        clientSocket = new Socket(serverAddress, serverPort);
+        clientChannel = SocketChannel.open();
+        clientSocket = clientChannel.socket();
+        clientSocket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        clientSocket.setSendBufferSize(SOCKET_BUFFER_SIZE);
+        clientChannel.connect(new InetSocketAddress(serverAddress, serverPort));
     }
 
     // Method to create and send a read request to the server
@@ -117,32 +661,29 @@ public class TCPClient {
         return request;
     }
 
-    // Method to receive a file from the server and save it locally
-    private void receiveFile(InputStream inputStream, String fileName) throws IOException {
-
-        File file = new File(fileName);
-        FileOutputStream fileOutput = new FileOutputStream(file);
-        byte[] dataBuffer = new byte[PACKET_SIZE];
-        int bytesRead;
-
-        // Read the incoming data and save it to the file
-        while ((bytesRead = inputStream.read(dataBuffer)) != -1) {
-            fileOutput.write(dataBuffer, 0, bytesRead);
+    // Method to receive a file from the server and save it locally, moving socket data straight into the file channel
+    private void receiveFile(String fileName) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(new File(fileName).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long transferred;
+
+            // Read the incoming data until the server closes the connection
+            while ((transferred = fileChannel.transferFrom(clientChannel, position, SOCKET_BUFFER_SIZE)) > 0) {
+                position += transferred;
+            }
         }
-
-        fileOutput.close();
     }
 
-    private void sendFile(OutputStream outputStream, String fileName) throws IOException {
-        File file = new File(fileName);
-        FileInputStream fileInput = new FileInputStream(file);
-        byte[] dataBuffer = new byte[PACKET_SIZE];
-        int bytesRead;
+    // Method to send a file to the server from the page cache (sendfile), without copying it through the heap
+    private void sendFile(String fileName) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            long size = fileChannel.size();
 
-        while ((bytesRead = fileInput.read(dataBuffer)) != -1) {
-            outputStream.write(dataBuffer, 0, bytesRead);
+            while (position < size) {
+                position += fileChannel.transferTo(position, size - position, clientChannel);
+            }
         }
-
-        fileInput.close();
     }
 }
\ No newline at end of file
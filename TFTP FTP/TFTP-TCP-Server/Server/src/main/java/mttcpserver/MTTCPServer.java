@@ -1,10 +1,37 @@
 package mttcpserver;
 
+import codec.DigestIndex;
+import codec.FileDigest;
+import codec.ReadAhead;
+import codec.WriteBehind;
+import metrics.Transfer;
+import metrics.TransferStats;
+
 import java.io.*;
 import java.net.*;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class MTTCPServer {
     // Define opcodes and packet size
@@ -13,15 +40,63 @@ public class MTTCPServer {
     private static final byte OP_DATAPACKET = 3;
     private static final byte OP_ACK = 4;
     private static final byte OP_ERROR = 5;
+    private static final byte OP_OACK = 6;
+    // The digest of a whole file, "algorithm:hex" in UTF-8: after the DATA of an RRQ, and after the DATA of a WRQ,
+    // which the server then answers with an ERROR instead of the ACK if the file it stored does not match
+    private static final byte OP_DIGEST = 7;
+    // Opens a framed session (outside the TFTP opcode range): every message after it is [flags:1][opcode:1][length:8][payload]
+    private static final byte OP_SESSION = 10;
+    private static final int FRAME_HEADER_SIZE = 10;
+    // On an RRQ, asks for the file as one zlib stream; on DATA, marks a chunk of that stream. A compressed body is a run
+    // of flagged DATA frames of at most DEFLATE_CHUNK_SIZE bytes each, ended by an empty one
+    private static final byte FLAG_DEFLATE = 1;
+    private static final int DEFLATE_CHUNK_SIZE = 64 * 1024;
+    // On an RRQ or WRQ, asks for a DIGEST frame after the DATA, of SHA-256 or of CRC-32C; neither is allowed on a range
+    private static final byte FLAG_SHA256 = 2;
+    private static final byte FLAG_CRC32C = 4;
+    private static final int MAX_DIGEST_LENGTH = 128;
+    // Heap buffer for DATA that is digested as it is received or sent
+    private static final int DIGEST_BUFFER_SIZE = 256 * 1024;
+    private static final short ERR_NOT_DEFINED = 0;
+    private static final short ERR_FILE_NOT_FOUND = 1;
+    private static final short ERR_ILLEGAL_OPERATION = 4;
     public final static int PACKET_SIZE = 512;
-
-
-    // Server socket for accepting client connections
-    private ServerSocket serverSocket;
+    // Large socket buffers let a single connection fill long fat pipes; the receive size must be set before accept/connect
+    public final static int SOCKET_BUFFER_SIZE = 1024 * 1024;
+    // -Dtftp.mmap=true writes RRQ data from read-only mappings instead of transferTo; one mapping is limited to 2 GB
+    public final static boolean MAPPED_READS = Boolean.getBoolean("tftp.mmap");
+    public final static int MAP_REGION_SIZE = Integer.getInteger("tftp.mapRegionSize", 1 << 30);
+    // Every transfer of this server; exported over JMX and, with -Dtftp.metricsPort, as Prometheus text over HTTP
+    public final static TransferStats STATS = new TransferStats("tcp");
+    // Connections the kernel holds for us while every worker is busy, and how long one may wait there before the
+    // server starts refusing them with "Server busy"
+    public final static int BACKLOG = Integer.getInteger("tftp.backlog", 50);
+    public final static long ACCEPT_WAIT_MILLIS = Long.getLong("tftp.acceptWaitMillis", 2000);
+    // How long a "Server busy" reply waits for the client's first bytes, to answer a framed session with a frame, and
+    // then for the client to close, so the connection is not reset under the reply
+    public final static long REJECT_WAIT_MILLIS = Long.getLong("tftp.rejectWaitMillis", 500);
+    // Busy replies are sent off the accept thread, since each may wait for its client; one thread is enough, and once
+    // BACKLOG replies are pending the rest are sent without waiting
+    private static final ExecutorService REJECTIONS = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(BACKLOG), runnable -> {
+                Thread thread = new Thread(runnable, "tftp-tcp-reject");
+                thread.setDaemon(true);
+                return thread;
+            });
+    // -Dtftp.compress=false sends every RRQ uncompressed, whatever the client asks; compressed uploads are always taken.
+    // Replies are deflated as they are sent, so the level trades the server's CPU for bandwidth
+    public final static boolean COMPRESSED_REPLIES = Boolean.parseBoolean(System.getProperty("tftp.compress", "true"));
+    public final static int DEFLATE_LEVEL = Integer.getInteger("tftp.deflateLevel", Deflater.BEST_SPEED);
+
+
+    // Server socket channel for accepting client connections; channels give us transferTo/transferFrom (sendfile)
+    private ServerSocketChannel serverSocket;
     private int defaultPort = 2000;
 
     // Thread socket for managing client connections
     private ExecutorService executorService;
+    // One permit per connection the executor can hold; the accept loop takes one before accepting
+    private Semaphore admissions;
 
     //main method to start the server
     public static void main(String[] args) throws Exception {
@@ -31,28 +106,95 @@ public class MTTCPServer {
    // main server loop
     public void run() throws IOException {
         // Create server socket and thread pool
-        serverSocket = new ServerSocket(defaultPort, 50, InetAddress.getLocalHost());
-        executorService = Executors.newFixedThreadPool(5);
-
-        System.out.println("TFTP-TCP-Server connected to port number " + serverSocket.getLocalPort());
+        serverSocket = ServerSocketChannel.open();
+        serverSocket.socket().setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLocalHost(), defaultPort), BACKLOG);
+        executorService = TransferExecutors.create();
+        admissions = new Semaphore(TransferExecutors.capacity());
+        STATS.export();
+
+        System.out.println("TFTP-TCP-Server connected to port number " + serverSocket.socket().getLocalPort());
+        System.out.println("Running connections on " + TransferExecutors.MODE + " executor");
+        if (TransferExecutors.capacity() < Integer.MAX_VALUE) {
+            System.out.println("Accepting up to " + TransferExecutors.capacity() + " connections at once");
+        }
         System.out.println(InetAddress.getLocalHost());
 
 
         // continuously accepts and handle client connections
         while (true) {
-            System.out.println("Waiting for client connection...");
-            Socket clientSocket = serverSocket.accept();
-            executorService.submit(new ClientHandler(clientSocket));
+            // Backpressure: while the executor is full, new connections wait in the listen backlog, not in a hidden queue
+            if (awaitAdmission()) {
+                System.out.println("Waiting for client connection...");
+                dispatch(serverSocket.accept(), true);
+            } else {
+                // Full for a whole wait: refuse what is waiting now, so those clients hear so instead of timing out
+                refuseBacklog();
+            }
+        }
+    }
+
+    private boolean awaitAdmission() throws InterruptedIOException {
+        try {
+            return admissions.tryAcquire(ACCEPT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free worker");
+        }
+    }
+
+    // Accept every connection already in the backlog without blocking, running any that find a free slot after all
+    private void refuseBacklog() throws IOException {
+        serverSocket.configureBlocking(false);
+        try {
+            SocketChannel clientChannel;
+            while ((clientChannel = serverSocket.accept()) != null) {
+                dispatch(clientChannel, admissions.tryAcquire());
+            }
+        } finally {
+            serverSocket.configureBlocking(true);
+        }
+    }
+
+    // A connection that fails before it has a handler, such as one the peer already reset, is closed here and gives
+    // its permit back, rather than taking the accept loop down with it
+    private void dispatch(SocketChannel clientChannel, boolean admitted) {
+        try {
+            clientChannel.socket().setSendBufferSize(SOCKET_BUFFER_SIZE);
+        } catch (IOException e) {
+            System.err.println("Dropping connection: " + e);
+            try {
+                clientChannel.close();
+            } catch (IOException closeError) {
+                System.err.println("Exception: " + closeError);
+            }
+            if (admitted) {
+                admissions.release();
+            }
+            return;
+        }
+        ClientHandler handler = new ClientHandler(clientChannel, admitted);
+        if (admitted) {
+            // execute rather than submit, so a refused handler reaches TransferExecutors.SERVER_BUSY unwrapped
+            executorService.execute(handler);
+        } else {
+            handler.rejectBusy();
         }
     }
 
     // class for handling each client connections
     class ClientHandler implements Runnable {
-        // client socket
+        // client socket and the channel it belongs to
+        private SocketChannel clientChannel;
         private Socket clientSocket;
-
-        public ClientHandler(Socket socket) {
-            this.clientSocket = socket;
+        private Transfer transfer;
+        // whether this connection holds an admission permit, given back when it is done
+        private final boolean admitted;
+
+        public ClientHandler(SocketChannel channel, boolean admitted) {
+            this.clientChannel = channel;
+            this.clientSocket = channel.socket();
+            this.admitted = admitted;
         }
 
         // main method for handling client request
@@ -65,34 +207,140 @@ public class MTTCPServer {
 
                 // Read the request packet and determine the request type
                 byte[] requestBuffer = new byte[PACKET_SIZE];
-                int requestLength = inputStream.read(requestBuffer);
+                int requestLength = readRequest(inputStream, requestBuffer);
                 byte pType = requestBuffer[1];
 
                 // Process read or write request
-                if (pType == OP_RRQ || pType == OP_WRQ) {
+                if (pType == OP_SESSION) {
+                    runSession();
+                } else if (pType == OP_RRQ || pType == OP_WRQ) {
+                    transfer = STATS.start(pType);
                     String fileName = getFileName(requestBuffer, requestLength);
                     System.out.println("Requested file name: " + fileName);
                     File file = new File(fileName);
 
                     if (pType == OP_WRQ) {
-                        receiveFile(inputStream, outputStream, fileName);
+                        receiveFile(outputStream, fileName);
                     } else if (pType == OP_RRQ) {
                         if (!file.exists()) {
                             sendErrorPacket(outputStream, fileName);
                             System.out.println("File not found");
                         } else {
-                            sendFile(outputStream, fileName);
+                            sendFile(fileName);
                         }
                     }
+                } else {
+                    STATS.error(pType, ERR_ILLEGAL_OPERATION);
                 }
 
                 // close the client Socket
                 clientSocket.close();
             } catch (IOException e) {
                 System.err.println("Exception: " + e);
+            } finally {
+                if (transfer != null) {
+                    transfer.finish();
+                }
+                releaseAdmission();
+            }
+        }
+
+        // Turn the connection away with an ERROR packet, or an ERROR frame if the request opened a framed session. Called
+        // on the accept thread, so the reply itself is sent from the REJECTIONS thread
+        void rejectBusy() {
+            STATS.rejected();
+            System.out.println("Server busy, refusing " + clientSocket.getRemoteSocketAddress());
+            try {
+                REJECTIONS.execute(() -> refuse(REJECT_WAIT_MILLIS));
+            } catch (RejectedExecutionException e) {
+                refuse(0);
+            }
+        }
+
+        // Send the busy reply, waiting up to waitMillis for the request to tell a framed session from a plain request
+        private void refuse(long waitMillis) {
+            try {
+                ByteBuffer preamble = ByteBuffer.allocate(2);
+                if (waitMillis > 0) {
+                    clientSocket.setSoTimeout((int) waitMillis);
+                    InputStream inputStream = clientSocket.getInputStream();
+                    try {
+                        int b;
+                        while (preamble.hasRemaining() && (b = inputStream.read()) != -1) {
+                            preamble.put((byte) b);
+                        }
+                    } catch (SocketTimeoutException e) {
+                        // Nothing yet: answer as for a plain request
+                    }
+                } else {
+                    clientChannel.configureBlocking(false);
+                    clientChannel.read(preamble);
+                    clientChannel.configureBlocking(true);
+                }
+                if (preamble.position() == 2 && preamble.get(0) == 0 && preamble.get(1) == OP_SESSION) {
+                    writeErrorFrame(ERR_NOT_DEFINED, "Server busy");
+                } else {
+                    writeFully(ByteBuffer.wrap(createErrorPacket(ERR_NOT_DEFINED, "Server busy")));
+                }
+                // Closing with request bytes still unread would reset the connection and could lose the reply, so let
+                // the client read it and close first
+                clientSocket.shutdownOutput();
+                drain(waitMillis);
+            } catch (IOException e) {
+                System.err.println("Exception: " + e);
+            } finally {
+                try {
+                    clientChannel.close();
+                } catch (IOException e) {
+                    System.err.println("Exception: " + e);
+                }
+                releaseAdmission();
             }
         }
 
+        // Discard what the client still sends until it closes, for at most waitMillis
+        private void drain(long waitMillis) throws IOException {
+            if (waitMillis <= 0) {
+                return;
+            }
+            InputStream inputStream = clientSocket.getInputStream();
+            byte[] discard = new byte[PACKET_SIZE];
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+            try {
+                while (System.nanoTime() < deadline && inputStream.read(discard) != -1) {
+                    // discard
+                }
+            } catch (SocketTimeoutException e) {
+                // The client neither sent more nor closed; close anyway
+            }
+        }
+
+        private void releaseAdmission() {
+            if (admitted) {
+                admissions.release();
+            }
+        }
+
+
+        // Read the request header only, byte by byte up to the mode terminator, so none of the file data that follows is consumed
+        private int readRequest(InputStream inputStream, byte[] requestBuffer) throws IOException {
+            int length = 0;
+            int terminators = 0;
+            while (length < requestBuffer.length && terminators < 2) {
+                int b = inputStream.read();
+                if (b == -1) {
+                    break;
+                }
+                requestBuffer[length++] = (byte) b;
+                if (length == 2 && b == OP_SESSION) {
+                    break;
+                }
+                if (length > 2 && b == 0) {
+                    terminators++;
+                }
+            }
+            return length;
+        }
 
         // Extract file name from request buffer
         private String getFileName(byte[] requestBuffer, int requestLength) {
@@ -100,32 +348,455 @@ public class MTTCPServer {
         }
 
 
-        // send the requested file to the client
-        private void sendFile(OutputStream outputStream, String fileName) throws IOException {
-            File file = new File(fileName);
-            FileInputStream fileInput = new FileInputStream(file);
-            byte[] dataBuffer = new byte[PACKET_SIZE];
-            int bytesRead;
+        // Serve framed requests in the order they arrive until the client shuts down its side of the connection.
+        // The client may pipeline: replies are written while later requests already wait in the socket buffer.
+        private void runSession() throws IOException {
+            System.out.println("Framed session opened by " + clientSocket.getRemoteSocketAddress());
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+            int requests = 0;
+            while (readFrameHeader(header)) {
+                byte flags = header.get(0);
+                short opcode = header.get(1);
+                long length = header.getLong(2);
+                if ((opcode != OP_RRQ && opcode != OP_WRQ) || (flags & ~(FLAG_DEFLATE | FLAG_SHA256 | FLAG_CRC32C)) != 0
+                        || (flags & FLAG_SHA256) != 0 && (flags & FLAG_CRC32C) != 0 || length < 1 || length > PACKET_SIZE) {
+                    // Framing is lost, so the session cannot continue
+                    STATS.error(opcode, ERR_ILLEGAL_OPERATION);
+                    writeErrorFrame(ERR_ILLEGAL_OPERATION, "Expected an RRQ or WRQ frame");
+                    break;
+                }
+                ByteBuffer request = ByteBuffer.allocate((int) length);
+                readFully(request);
+                // A NUL after the name asks to resume; an RRQ then also carries the length and CRC-32C of the client's
+                // copy, or instead the start and length of the one range it wants
+                int nameLength = 0;
+                while (nameLength < request.capacity() && request.get(nameLength) != 0) {
+                    nameLength++;
+                }
+                String fileName = new String(request.array(), 0, nameLength, StandardCharsets.UTF_8);
+                boolean resume = nameLength < request.capacity();
+                request.position(Math.min(nameLength + 1, request.capacity()));
+                String digestAlgorithm = (flags & FLAG_SHA256) != 0 ? FileDigest.SHA256 : (flags & FLAG_CRC32C) != 0 ? FileDigest.CRC32C : null;
+                if (resume && opcode == OP_RRQ && request.remaining() != 12 && (request.remaining() != 16 || digestAlgorithm != null)) {
+                    STATS.error(opcode, ERR_ILLEGAL_OPERATION);
+                    writeErrorFrame(ERR_ILLEGAL_OPERATION, "Malformed resume request");
+                    break;
+                }
+                System.out.println("Requested file name: " + fileName);
+
+                transfer = STATS.start(opcode);
+                boolean deflate = (flags & FLAG_DEFLATE) != 0 && COMPRESSED_REPLIES;
+                try {
+                    if (opcode == OP_RRQ && request.remaining() == 16) {
+                        sendRangeFrame(fileName, request.getLong(), request.getLong(), deflate);
+                    } else if (opcode == OP_RRQ) {
+                        sendFileFrame(fileName, resume ? request : null, deflate, digestAlgorithm);
+                    } else {
+                        receiveFileFrame(header, fileName, resume, digestAlgorithm);
+                    }
+                } finally {
+                    transfer.finish();
+                    transfer = null;
+                }
+                requests++;
+            }
+            System.out.println("Framed session closed after " + requests + " requests");
+        }
 
-            while ((bytesRead = fileInput.read(dataBuffer)) != -1) {
-                outputStream.write(dataBuffer, 0, bytesRead);
+        // Reply to a framed RRQ with one DATA frame holding the file, or an ERROR frame. A resumed RRQ first gets an
+        // OACK naming the offset the DATA starts at: the client's length if its copy is a prefix of ours, else zero.
+        // The DIGEST frame asked for is hashed from the bytes as they are sent, in the same pass (plus the prefix the client
+        // already holds on a resume), so it signs exactly what went out; it is then recorded in the digest index.
+        private void sendFileFrame(String fileName, ByteBuffer resume, boolean deflate, String digestAlgorithm) throws IOException {
+            if (!new File(fileName).exists()) {
+                transfer.error(ERR_FILE_NOT_FOUND);
+                writeErrorFrame(ERR_FILE_NOT_FOUND, "File not found");
+                System.out.println("File not found");
+                return;
             }
+            Path path = new File(fileName).toPath();
+            String digest = null;
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = fileChannel.size();
+                FileTime modified = Files.getLastModifiedTime(path);
+                long offset = 0;
+                if (resume != null) {
+                    long clientLength = resume.getLong();
+                    int clientChecksum = resume.getInt();
+                    if (clientLength <= size && prefixChecksum(fileChannel, clientLength) == clientChecksum) {
+                        offset = clientLength;
+                        System.out.println("Resuming " + fileName + " at byte " + offset);
+                    }
+                    writeFully(frameHeader(OP_OACK, 8), ByteBuffer.allocate(8).putLong(offset).flip());
+                }
+                FileDigest sent = digestAlgorithm == null ? null
+                        : offset > 0 ? FileDigest.ofPrefix(fileChannel, offset, digestAlgorithm) : FileDigest.create(digestAlgorithm);
+                sendData(fileChannel, offset, size, deflate, sent);
+                if (sent != null) {
+                    digest = sent.finish();
+                    byte[] frame = digest.getBytes(StandardCharsets.UTF_8);
+                    writeFully(frameHeader(OP_DIGEST, frame.length), ByteBuffer.wrap(frame));
+                    // Only a file that did not change while it was sent is the version the digest belongs to
+                    if (fileChannel.size() == size && Files.getLastModifiedTime(path).equals(modified)) {
+                        DigestIndex.SHARED.put(path, digest);
+                    }
+                }
+            }
+            transfer.complete();
+            System.out.println("File transfer completed for " + fileName + (deflate ? ", deflated" : "") + " (" + transfer + ")");
+        }
 
-            fileInput.close();
+        // Reply to a range RRQ with an OACK holding the range's start and the file's size, then a DATA frame with the
+        // part of the range that lies within the file. A client learns the size from an empty range.
+        private void sendRangeFrame(String fileName, long start, long length, boolean deflate) throws IOException {
+            if (!new File(fileName).exists()) {
+                transfer.error(ERR_FILE_NOT_FOUND);
+                writeErrorFrame(ERR_FILE_NOT_FOUND, "File not found");
+                System.out.println("File not found");
+                return;
+            }
+            try (FileChannel fileChannel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ)) {
+                long size = fileChannel.size();
+                long from = Math.min(Math.max(start, 0), size);
+                long to = from + Math.min(Math.max(length, 0), size - from); // a length near Long.MAX_VALUE must not overflow
+                writeFully(frameHeader(OP_OACK, 16), ByteBuffer.allocate(16).putLong(from).putLong(size).flip());
+                sendData(fileChannel, from, to, deflate, null);
+            }
+            transfer.complete();
+            if (length > 0) {
+                System.out.println("Range " + start + "+" + length + " sent for " + fileName + (deflate ? ", deflated" : "") + " (" + transfer + ")");
+            }
         }
 
-        // Receive and save the file from client
-        private void receiveFile(InputStream inputStream, OutputStream outputStream, String fileName) throws IOException {
-            File file = new File(fileName);
-            FileOutputStream fileOutput = new FileOutputStream(file);
-            byte[] dataBuffer = new byte[PACKET_SIZE];
-            int bytesRead;
+        // Store the DATA frame (or run of compressed DATA frames) that follows a framed WRQ and acknowledge it with an
+        // empty ACK frame. A resumed WRQ first gets an OACK with the length and CRC-32C of what we already hold, and the
+        // client answers with an OACK naming the offset its DATA starts at: our length if the prefixes match, else zero.
+        // With a digest algorithm, the file is hashed as it is written and checked against the DIGEST frame after the DATA.
+        // The upload goes to a sidecar .<name>.part, which is what a resumed WRQ continues, and only replaces the file once
+        // the data (and digest) check out, so readers never see a half-written or corrupt upload under the real name.
+        // The ACK only goes out once the file is in place and, if -Dtftp.fsync asks for it, synced.
+        private void receiveFileFrame(ByteBuffer header, String fileName, boolean resume, String digestAlgorithm) throws IOException {
+            boolean deflated;
+            String received = null;
+            Path target = new File(fileName).getAbsoluteFile().toPath();
+            Path partial = target.resolveSibling("." + target.getFileName() + ".part");
+            try (FileChannel fileChannel = FileChannel.open(partial,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+                long offset = 0;
+                if (resume) {
+                    long held = fileChannel.size();
+                    ByteBuffer prefix = ByteBuffer.allocate(12).putLong(held).putInt(prefixChecksum(fileChannel, held));
+                    writeFully(frameHeader(OP_OACK, 12), prefix.flip());
+                    ByteBuffer answer = ByteBuffer.allocate(8);
+                    if (!readFrameHeader(header) || header.getShort(0) != OP_OACK || header.getLong(2) != 8) {
+                        throw new ProtocolException("Expected an OACK frame for " + fileName);
+                    }
+                    readFully(answer);
+                    offset = answer.getLong(0);
+                    if (offset < 0 || offset > held) {
+                        throw new ProtocolException("Resume offset " + offset + " is outside the " + held + " bytes held for " + fileName);
+                    }
+                    if (offset > 0) {
+                        System.out.println("Resuming " + fileName + " at byte " + offset);
+                    }
+                }
+                if (!readFrameHeader(header) || header.get(1) != OP_DATAPACKET) {
+                    throw new ProtocolException("Expected a DATA frame for " + fileName);
+                }
+                FileDigest digest = digestAlgorithm == null ? null
+                        : offset > 0 ? FileDigest.ofPrefix(fileChannel, offset, digestAlgorithm) : FileDigest.create(digestAlgorithm);
+                deflated = header.get(0) == FLAG_DEFLATE;
+                long end = deflated ? receiveDeflated(header, fileChannel, offset, fileName, digest) : receiveData(header, fileChannel, offset, fileName, digest);
+                // Whatever was there past the new end belongs to an older upload
+                fileChannel.truncate(end);
+                WriteBehind.syncFile(fileChannel);
+                if (digest != null) {
+                    received = digest.finish();
+                    String expected = readDigestFrame(header, fileName);
+                    if (!received.equals(expected)) {
+                        // The sidecar is kept: a resumed WRQ compares checksums of the prefix and starts over if it is corrupt
+                        transfer.error(ERR_NOT_DEFINED);
+                        writeErrorFrame(ERR_NOT_DEFINED, "Digest mismatch");
+                        System.out.println("Digest mismatch for " + fileName + ": expected " + expected + ", received " + received);
+                        return;
+                    }
+                }
+            }
+            try {
+                Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            WriteBehind.syncDirectory(target.getParent()); // the rename itself
+            if (received != null) {
+                DigestIndex.SHARED.put(new File(fileName).toPath(), received);
+            }
+            writeFully(frameHeader(OP_ACK, 0));
+            transfer.complete();
+            System.out.println("File received: " + fileName + (deflated ? ", deflated" : "") + (received != null ? ", " + received + " verified" : "")
+                    + " (" + transfer + ")");
+        }
+
+        // Write the body of a DATA frame, whose header has been read, into the file from offset; returns the end. Data
+        // to digest goes through the heap instead of straight from the socket into the file, and is written behind.
+        private long receiveData(ByteBuffer header, FileChannel fileChannel, long offset, String fileName, FileDigest digest) throws IOException {
+            if (header.get(0) != 0) {
+                throw new ProtocolException("Unknown DATA flags " + header.get(0) + " for " + fileName);
+            }
+            long end = offset + header.getLong(2);
+            long position = offset;
+            if (digest != null) {
+                ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+                try (WriteBehind writer = new WriteBehind(fileChannel, offset, DIGEST_BUFFER_SIZE)) {
+                    while (position < end) {
+                        buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                        if (clientChannel.read(buffer) == -1) {
+                            throw new EOFException("Connection closed " + (end - position) + " bytes short of " + fileName);
+                        }
+                        buffer.flip();
+                        digest.update(buffer.array(), 0, buffer.limit());
+                        transfer.bytesReceived(buffer.limit());
+                        writer.write(buffer.array(), 0, buffer.limit());
+                        position += buffer.limit();
+                    }
+                    writer.flush();
+                }
+            }
+            long unsynced = 0;
+            while (position < end) {
+                long transferred = fileChannel.transferFrom(clientChannel, position, Math.min(SOCKET_BUFFER_SIZE, end - position));
+                if (transferred == 0) {
+                    throw new EOFException("Connection closed " + (end - position) + " bytes short of " + fileName);
+                }
+                transfer.bytesReceived(transferred);
+                position += transferred;
+                unsynced = WriteBehind.syncIfDue(fileChannel, unsynced + transferred);
+            }
+            return end;
+        }
+
+        // Inflate the run of compressed DATA frames that starts with the one whose header has been read into the file
+        // from offset, digesting what it inflates to and writing it behind; returns the end
+        private long receiveDeflated(ByteBuffer header, FileChannel fileChannel, long offset, String fileName, FileDigest digest) throws IOException {
+            Inflater inflater = new Inflater();
+            ByteBuffer chunk = ByteBuffer.allocate(DEFLATE_CHUNK_SIZE);
+            byte[] inflated = new byte[DEFLATE_CHUNK_SIZE];
+            try (WriteBehind writer = new WriteBehind(fileChannel, offset, DEFLATE_CHUNK_SIZE)) {
+                while (header.getLong(2) > 0) {
+                    if (header.getLong(2) > DEFLATE_CHUNK_SIZE) {
+                        throw new ProtocolException("Compressed chunk of " + header.getLong(2) + " bytes for " + fileName);
+                    }
+                    readFully(chunk.clear().limit((int) header.getLong(2)));
+                    transfer.bytesReceived(chunk.limit());
+                    inflater.setInput(chunk.array(), 0, chunk.limit());
+                    while (!inflater.finished() && !inflater.needsInput()) {
+                        int count = inflater.inflate(inflated);
+                        if (count == 0 && inflater.needsDictionary()) {
+                            throw new ProtocolException("Compressed data for " + fileName + " needs a preset dictionary");
+                        }
+                        if (digest != null) {
+                            digest.update(inflated, 0, count);
+                        }
+                        writer.write(inflated, 0, count);
+                    }
+                    if (!readFrameHeader(header) || header.get(0) != FLAG_DEFLATE || header.get(1) != OP_DATAPACKET) {
+                        throw new ProtocolException("Expected a compressed DATA frame for " + fileName);
+                    }
+                }
+                if (!inflater.finished()) {
+                    throw new ProtocolException("Compressed data for " + fileName + " ended before the end of its stream");
+                }
+                writer.flush();
+                return writer.position();
+            } catch (DataFormatException e) {
+                throw new ProtocolException("Corrupt compressed data for " + fileName + ": " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+        }
+
+        // Read the DIGEST frame that follows the DATA of a WRQ that asked for one
+        private String readDigestFrame(ByteBuffer header, String fileName) throws IOException {
+            if (!readFrameHeader(header) || header.get(1) != OP_DIGEST || header.getLong(2) < 1 || header.getLong(2) > MAX_DIGEST_LENGTH) {
+                throw new ProtocolException("Expected a DIGEST frame for " + fileName);
+            }
+            ByteBuffer digest = ByteBuffer.allocate((int) header.getLong(2));
+            readFully(digest);
+            return new String(digest.array(), StandardCharsets.UTF_8);
+        }
+
+        // Read a frame header into the buffer; false if the client closed the connection between frames
+        private boolean readFrameHeader(ByteBuffer header) throws IOException {
+            header.clear();
+            if (clientChannel.read(header) == -1) {
+                return false;
+            }
+            readFully(header);
+            return true;
+        }
+
+        private void readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (clientChannel.read(buffer) == -1) {
+                    throw new EOFException("Connection closed in the middle of a frame");
+                }
+            }
+        }
+
+        private ByteBuffer frameHeader(byte opCode, long length) {
+            return frameHeader((byte) 0, opCode, length);
+        }
 
-            while ((bytesRead = inputStream.read(dataBuffer)) != -1) {
-                fileOutput.write(dataBuffer, 0, bytesRead);
+        private ByteBuffer frameHeader(byte flags, byte opCode, long length) {
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+            header.put(flags).put(opCode).putLong(length).flip();
+            return header;
+        }
+
+        private void writeErrorFrame(short errorCode, String errorMessage) throws IOException {
+            byte[] message = errorMessage.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer body = ByteBuffer.allocate(2 + message.length);
+            body.putShort(errorCode).put(message).flip();
+            writeFully(frameHeader(OP_ERROR, body.remaining()), body);
+        }
+
+        private void writeFully(ByteBuffer... buffers) throws IOException {
+            while (buffers[buffers.length - 1].hasRemaining()) {
+                clientChannel.write(buffers);
+            }
+        }
+
+        // CRC-32C of the first length bytes of the file, read through one direct buffer
+        private int prefixChecksum(FileChannel fileChannel, long length) throws IOException {
+            CRC32C checksum = new CRC32C();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(SOCKET_BUFFER_SIZE);
+            long position = 0;
+            while (position < length) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+                int read = fileChannel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+                checksum.update(buffer);
+                position += read;
+            }
+            return (int) checksum.getValue();
+        }
+
+        // write the file from offset to end as the body of an RRQ reply: one DATA frame sent by streamFile, or, when the
+        // client asked for compression, the chunks of its zlib stream as they come out of the deflater, with the next
+        // chunks already being read while the current one is deflated and written (sendfile leaves that to the kernel).
+        // Data to digest is read through the heap and hashed on its way to the socket or the deflater.
+        private void sendData(FileChannel fileChannel, long offset, long end, boolean deflate, FileDigest digest) throws IOException {
+            if (!deflate && digest == null) {
+                writeFully(frameHeader(OP_DATAPACKET, end - offset));
+                streamFile(fileChannel, offset, end);
+                return;
+            }
+            if (!deflate) {
+                writeFully(frameHeader(OP_DATAPACKET, end - offset));
+                ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+                try (ReadAhead readAhead = new ReadAhead(fileChannel, end)) {
+                    for (long position = offset; position < end; ) {
+                        buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                        int read = readAhead.read(buffer, position);
+                        if (read < buffer.limit()) {
+                            throw new EOFException(fileChannel.size() + " bytes left of a file being sent as " + end);
+                        }
+                        buffer.flip();
+                        digest.update(buffer.array(), 0, read);
+                        writeFully(buffer);
+                        transfer.bytesSent(read);
+                        position += read;
+                    }
+                }
+                return;
+            }
+            Deflater deflater = new Deflater(DEFLATE_LEVEL);
+            ByteBuffer input = ByteBuffer.allocate(DEFLATE_CHUNK_SIZE);
+            byte[] output = new byte[DEFLATE_CHUNK_SIZE];
+            long position = offset;
+            try (ReadAhead readAhead = new ReadAhead(fileChannel, end)) {
+                while (!deflater.finished()) {
+                    if (deflater.needsInput()) {
+                        input.clear().limit((int) Math.min(input.capacity(), end - position));
+                        int read = readAhead.read(input, position);
+                        if (read > 0) {
+                            if (digest != null) {
+                                digest.update(input.array(), 0, read);
+                            }
+                            deflater.setInput(input.array(), 0, read);
+                            position += read;
+                        } else {
+                            deflater.finish();
+                        }
+                    }
+                    int count = deflater.deflate(output);
+                    if (count > 0) {
+                        writeFully(frameHeader(FLAG_DEFLATE, OP_DATAPACKET, count), ByteBuffer.wrap(output, 0, count));
+                        transfer.bytesSent(count);
+                    }
+                }
+                writeFully(frameHeader(FLAG_DEFLATE, OP_DATAPACKET, 0));
+            } finally {
+                deflater.end();
+            }
+        }
+
+        // send the requested file to the client straight from the page cache (sendfile), without copying it through the heap
+        private void sendFile(String fileName) throws IOException {
+            try (FileChannel fileChannel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ)) {
+                streamFile(fileChannel, 0, fileChannel.size());
+            }
+            transfer.complete();
+            System.out.println("File transfer completed for " + fileName + " (" + transfer + ")");
+        }
+
+        // write the file from offset to size to the socket, by sendfile or, with -Dtftp.mmap=true, from mapped regions
+        private void streamFile(FileChannel fileChannel, long offset, long size) throws IOException {
+            if (MAPPED_READS) {
+                sendMappedFile(fileChannel, offset, size);
+            } else {
+                long position = offset;
+                while (position < size) {
+                    long sent = fileChannel.transferTo(position, size - position, clientChannel);
+                    transfer.bytesSent(sent);
+                    position += sent;
+                }
+            }
+        }
+
+        // write the file to the socket straight out of the page cache, one mapped region at a time so files over 2 GB can be served
+        private void sendMappedFile(FileChannel fileChannel, long offset, long size) throws IOException {
+            for (long start = offset; start < size; start += MAP_REGION_SIZE) {
+                MappedByteBuffer region = fileChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_REGION_SIZE, size - start));
+                while (region.hasRemaining()) {
+                    transfer.bytesSent(clientChannel.write(region));
+                }
+            }
+        }
+
+        // Receive and save the file from client, moving socket data into the file channel until the client closes its side;
+        // like a framed WRQ, it is synced before the ACK if -Dtftp.fsync asks for it
+        private void receiveFile(OutputStream outputStream, String fileName) throws IOException {
+            try (FileChannel fileChannel = FileChannel.open(new File(fileName).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                long transferred;
+                long unsynced = 0;
+
+                while ((transferred = fileChannel.transferFrom(clientChannel, position, SOCKET_BUFFER_SIZE)) > 0) {
+                    transfer.bytesReceived(transferred);
+                    position += transferred;
+                    unsynced = WriteBehind.syncIfDue(fileChannel, unsynced + transferred);
+                }
+                WriteBehind.syncFile(fileChannel);
             }
-            fileOutput.close();
+            WriteBehind.syncDirectory(new File(fileName).getAbsoluteFile().getParentFile().toPath());
             sendAckPacket(outputStream);
+            transfer.complete();
+            System.out.println("File received: " + fileName + " (" + transfer + ")");
         }
 
 
@@ -134,7 +805,8 @@ public class MTTCPServer {
 
         // send an error packet to the client
         private void sendErrorPacket(OutputStream outputStream, String fileName) throws IOException {
-            byte[] errorPacket = createErrorPacket(OP_ERROR, fileName);
+            transfer.error(ERR_FILE_NOT_FOUND);
+            byte[] errorPacket = createErrorPacket(ERR_FILE_NOT_FOUND, "File not found");
             outputStream.write(errorPacket);
         }
 
@@ -150,16 +822,17 @@ public class MTTCPServer {
 
 
         // create an error packet to send tot he client
-        private byte[] createErrorPacket(byte opCode, String fileName) {
-            String errorMessage = "File not found";
+        private byte[] createErrorPacket(short errorCode, String errorMessage) {
             byte zeroByte = 0;
             int errorPacketLength = 4 + errorMessage.length() + 1;
             byte[] errorByteArray = new byte[errorPacketLength];
 
             int position = 0;
-            // add the opcode and error message to the error packet
+            // add the opcode, error code and error message to the error packet
             errorByteArray[position++] = zeroByte;
-            errorByteArray[position++] = opCode;
+            errorByteArray[position++] = OP_ERROR;
+            errorByteArray[position++] = (byte) (errorCode >> 8);
+            errorByteArray[position++] = (byte) errorCode;
             for (int i = 0; i < errorMessage.length(); i++) {
                 errorByteArray[position++] = (byte) errorMessage.charAt(i);
             }
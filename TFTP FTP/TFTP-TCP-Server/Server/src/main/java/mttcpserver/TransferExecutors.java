@@ -0,0 +1,101 @@
+package mttcpserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executor that runs {@link MTTCPServer.ClientHandler}s, chosen at startup with {@code -Dtftp.executor}:
+ * <ul>
+ *     <li>{@code pool} (default): a bounded pool of {@code -Dtftp.poolSize} core platform threads (default 5) that
+ *     queues up to {@code -Dtftp.queueCapacity} further connections (default 50) and, once that queue is full,
+ *     grows to {@code -Dtftp.maxPoolSize} threads (default 20). Threads above the core size retire after
+ *     {@code -Dtftp.keepAliveSeconds} idle (default 60). A connection that still does not fit is refused with a
+ *     "Server busy" ERROR.</li>
+ *     <li>{@code thread}: a platform thread for every concurrent connection, reused once idle.</li>
+ *     <li>{@code virtual}: a new virtual thread for every connection, so thousands of blocking transfers cost
+ *     kilobytes each rather than a platform stack each.</li>
+ * </ul>
+ * Virtual threads need a Java 21 runtime. The module targets Java 17, so the virtual-thread executor is looked
+ * up reflectively; on an older runtime the server says so and falls back to {@code thread}.
+ * <p>
+ * {@link #capacity()} is how many connections the executor takes before refusing; {@link MTTCPServer} stops
+ * accepting at that point rather than handing the executor work it would only refuse.
+ */
+final class TransferExecutors {
+    static final String MODE = System.getProperty("tftp.executor", "pool");
+    static final int POOL_SIZE = Integer.getInteger("tftp.poolSize", 5);
+    static final int MAX_POOL_SIZE = Math.max(POOL_SIZE, Integer.getInteger("tftp.maxPoolSize", 20));
+    static final int QUEUE_CAPACITY = Integer.getInteger("tftp.queueCapacity", 50);
+    static final long KEEP_ALIVE_SECONDS = Long.getLong("tftp.keepAliveSeconds", 60);
+    // Connections in flight (running or queued) for the thread and virtual modes, which have no pool to bound them
+    static final int MAX_CONNECTIONS = Integer.getInteger("tftp.maxConnections", Integer.MAX_VALUE);
+
+    private TransferExecutors() {
+    }
+
+    /**
+     * @return A new executor for the configured mode.
+     */
+    static ExecutorService create() {
+        switch (MODE) {
+            case "pool":
+                // A zero capacity hands each connection straight to a thread, growing to the maximum before refusing
+                BlockingQueue<Runnable> queue = QUEUE_CAPACITY > 0 ? new ArrayBlockingQueue<>(QUEUE_CAPACITY) : new SynchronousQueue<>();
+                return new ThreadPoolExecutor(POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                        queue, namedThreads(), SERVER_BUSY);
+            case "virtual":
+                ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+                if (virtualThreads != null) {
+                    return virtualThreads;
+                }
+                System.out.println("Virtual threads need Java 21 or later; running " + System.getProperty("java.version")
+                        + ", so each connection gets a platform thread instead");
+                return Executors.newCachedThreadPool(namedThreads());
+            case "thread":
+                return Executors.newCachedThreadPool(namedThreads());
+            default:
+                throw new IllegalArgumentException("Unknown tftp.executor '" + MODE + "', expected thread, pool or virtual");
+        }
+    }
+
+    /**
+     * @return How many connections the configured executor holds at once, running and queued.
+     */
+    static int capacity() {
+        if (MODE.equals("pool")) {
+            return MAX_POOL_SIZE + QUEUE_CAPACITY;
+        }
+        return MAX_CONNECTIONS;
+    }
+
+    /**
+     * Refuses a connection the executor has no room for by telling the client the server is busy, so it can retry
+     * or go elsewhere instead of waiting out its own timeout.
+     */
+    static final RejectedExecutionHandler SERVER_BUSY = (task, executor) -> {
+        if (task instanceof MTTCPServer.ClientHandler) {
+            ((MTTCPServer.ClientHandler) task).rejectBusy();
+        }
+    };
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedThreads() {
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, "tftp-tcp-" + count.incrementAndGet());
+    }
+}
@@ -0,0 +1,400 @@
+package mttcpserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Drives a ClientHandler over a loopback connection the way TCPClient speaks to the server, one framed session per test
+class MTTCPServerTest {
+    private static final byte OP_RRQ = 1;
+    private static final byte OP_WRQ = 2;
+    private static final byte OP_DATAPACKET = 3;
+    private static final byte OP_ACK = 4;
+    private static final byte OP_ERROR = 5;
+    private static final byte OP_OACK = 6;
+    private static final byte OP_DIGEST = 7;
+    private static final byte OP_SESSION = 10;
+    private static final int FLAG_CRC32C = 4;
+
+    @TempDir
+    Path directory;
+
+    private SocketChannel client;
+    private Thread handler;
+
+    @BeforeEach
+    void openSession() throws IOException {
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            client = SocketChannel.open(listener.getLocalAddress());
+            handler = new Thread(new MTTCPServer().new ClientHandler(listener.accept(), false), "tftp-tcp-test");
+        }
+        handler.start();
+        write(ByteBuffer.wrap(new byte[]{0, OP_SESSION}));
+    }
+
+    @AfterEach
+    void closeSession() throws IOException, InterruptedException {
+        client.close();
+        handler.join(10_000);
+    }
+
+    @Test
+    void framedReadGetsTheFileInOneDataFrame() throws IOException {
+        byte[] data = random(100_000, 1);
+        Path file = directory.resolve("read.bin");
+        Files.write(file, data);
+
+        sendRequest(OP_RRQ, file.toString());
+
+        Frame reply = readFrame();
+        assertEquals(OP_DATAPACKET, reply.opcode);
+        assertEquals(0, reply.flags);
+        assertArrayEquals(data, reply.payload);
+    }
+
+    @Test
+    void pipelinedRequestsAreAnsweredInOrder() throws IOException {
+        byte[] first = random(3000, 2);
+        byte[] second = random(70_000, 3);
+        Files.write(directory.resolve("first.bin"), first);
+        Files.write(directory.resolve("second.bin"), second);
+
+        sendRequest(OP_RRQ, directory.resolve("first.bin").toString());
+        sendRequest(OP_RRQ, directory.resolve("second.bin").toString());
+
+        assertArrayEquals(first, readFrame().payload);
+        assertArrayEquals(second, readFrame().payload);
+    }
+
+    @Test
+    void framedWriteIsStoredAndAcknowledged() throws IOException {
+        byte[] data = random(200_000, 4);
+        Path file = directory.resolve("write.bin");
+        Files.write(file, "old version".getBytes(StandardCharsets.US_ASCII));
+
+        sendRequest(OP_WRQ, file.toString());
+        write(header(0, OP_DATAPACKET, data.length), ByteBuffer.wrap(data));
+
+        Frame reply = readFrame();
+        assertEquals(OP_ACK, reply.opcode);
+        assertEquals(0, reply.payload.length);
+        assertArrayEquals(data, Files.readAllBytes(file));
+        assertFalse(Files.exists(directory.resolve(".write.bin.part")));
+    }
+
+    @Test
+    void missingFileGetsAnErrorFrameAndTheSessionGoesOn() throws IOException {
+        byte[] data = random(1000, 5);
+        Files.write(directory.resolve("present.bin"), data);
+
+        sendRequest(OP_RRQ, directory.resolve("absent.bin").toString());
+        sendRequest(OP_RRQ, directory.resolve("present.bin").toString());
+
+        assertError(1, "File not found", readFrame());
+        assertArrayEquals(data, readFrame().payload);
+    }
+
+    @Test
+    void frameThatIsNotARequestEndsTheSession() throws IOException {
+        write(header(0, OP_DATAPACKET, 4));
+
+        assertError(4, "Expected an RRQ or WRQ frame", readFrame());
+        assertThrows(EOFException.class, this::readFrame);
+    }
+
+    @Test
+    void unknownFlagsEndTheSession() throws IOException {
+        write(header(0x40, OP_RRQ, 8));
+
+        assertError(4, "Expected an RRQ or WRQ frame", readFrame());
+    }
+
+    @Test
+    void oversizedRequestEndsTheSession() throws IOException {
+        write(header(0, OP_RRQ, MTTCPServer.PACKET_SIZE + 1));
+
+        assertError(4, "Expected an RRQ or WRQ frame", readFrame());
+    }
+
+    @Test
+    void resumedReadStartsAfterAMatchingPrefix() throws IOException {
+        byte[] data = random(100_000, 6);
+        Path file = directory.resolve("resume.bin");
+        Files.write(file, data);
+
+        sendResume(OP_RRQ, 0, file.toString(), ByteBuffer.allocate(12).putLong(40_000).putInt(crc32c(data, 40_000)));
+
+        assertEquals(40_000, oackValues(readFrame(), 8).getLong());
+        assertArrayEquals(Arrays.copyOfRange(data, 40_000, data.length), readFrame().payload);
+    }
+
+    @Test
+    void resumedReadStartsOverWhenThePrefixDiffers() throws IOException {
+        byte[] data = random(50_000, 7);
+        Path file = directory.resolve("changed.bin");
+        Files.write(file, data);
+
+        sendResume(OP_RRQ, 0, file.toString(), ByteBuffer.allocate(12).putLong(20_000).putInt(crc32c(data, 20_000) + 1));
+        sendResume(OP_RRQ, 0, file.toString(), ByteBuffer.allocate(12).putLong(60_000).putInt(crc32c(data, data.length)));
+
+        assertEquals(0, oackValues(readFrame(), 8).getLong());
+        assertArrayEquals(data, readFrame().payload);
+        assertEquals(0, oackValues(readFrame(), 8).getLong());
+        assertArrayEquals(data, readFrame().payload);
+    }
+
+    @Test
+    void resumedReadOfTheWholeFileSendsAnEmptyDataFrameAndItsDigest() throws IOException {
+        byte[] data = random(10_000, 8);
+        Path file = directory.resolve("complete.bin");
+        Files.write(file, data);
+
+        sendResume(OP_RRQ, FLAG_CRC32C, file.toString(), ByteBuffer.allocate(12).putLong(data.length).putInt(crc32c(data, data.length)));
+
+        assertEquals(data.length, oackValues(readFrame(), 8).getLong());
+        assertEquals(0, readFrame().payload.length);
+        Frame digest = readFrame();
+        assertEquals(OP_DIGEST, digest.opcode);
+        assertEquals(String.format("crc32c:%08x", crc32c(data, data.length)), new String(digest.payload, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void malformedResumeRequestEndsTheSession() throws IOException {
+        sendResume(OP_RRQ, 0, directory.resolve("any.bin").toString(), ByteBuffer.allocate(8).putLong(0));
+
+        assertError(4, "Malformed resume request", readFrame());
+    }
+
+    @Test
+    void resumedWriteContinuesTheSidecar() throws IOException {
+        byte[] data = random(150_000, 9);
+        Path file = directory.resolve("upload.bin");
+        Path sidecar = directory.resolve(".upload.bin.part");
+        Files.write(sidecar, Arrays.copyOf(data, 60_000));
+
+        sendResume(OP_WRQ, FLAG_CRC32C, file.toString(), ByteBuffer.allocate(0));
+
+        ByteBuffer held = oackValues(readFrame(), 12);
+        assertEquals(60_000, held.getLong());
+        assertEquals(crc32c(data, 60_000), held.getInt());
+        byte[] digest = String.format("crc32c:%08x", crc32c(data, data.length)).getBytes(StandardCharsets.UTF_8);
+        write(header(0, OP_OACK, 8), ByteBuffer.allocate(8).putLong(60_000).flip(),
+                header(0, OP_DATAPACKET, data.length - 60_000), ByteBuffer.wrap(data, 60_000, data.length - 60_000),
+                header(0, OP_DIGEST, digest.length), ByteBuffer.wrap(digest));
+        assertEquals(OP_ACK, readFrame().opcode);
+        assertArrayEquals(data, Files.readAllBytes(file));
+        assertFalse(Files.exists(sidecar));
+    }
+
+    @Test
+    void resumedWriteWithNothingHeldStartsAtZero() throws IOException {
+        byte[] data = random(5000, 10);
+        Path file = directory.resolve("fresh.bin");
+
+        sendResume(OP_WRQ, 0, file.toString(), ByteBuffer.allocate(0));
+
+        ByteBuffer held = oackValues(readFrame(), 12);
+        assertEquals(0, held.getLong());
+        assertEquals(0, held.getInt());
+        write(header(0, OP_OACK, 8), ByteBuffer.allocate(8).putLong(0).flip(),
+                header(0, OP_DATAPACKET, data.length), ByteBuffer.wrap(data));
+        assertEquals(OP_ACK, readFrame().opcode);
+        assertArrayEquals(data, Files.readAllBytes(file));
+    }
+
+    @Test
+    void interruptedWriteLeavesTheFileAndKeepsTheSidecar() throws IOException, InterruptedException {
+        byte[] old = "old version".getBytes(StandardCharsets.US_ASCII);
+        Path file = directory.resolve("interrupted.bin");
+        Files.write(file, old);
+
+        sendRequest(OP_WRQ, file.toString());
+        write(header(0, OP_DATAPACKET, 100_000), ByteBuffer.wrap(random(30_000, 11)));
+        client.shutdownOutput();
+        handler.join(10_000);
+
+        assertArrayEquals(old, Files.readAllBytes(file));
+        assertEquals(30_000, Files.size(directory.resolve(".interrupted.bin.part")));
+    }
+
+    @Test
+    void writeWithAWrongDigestIsNotMovedIntoPlace() throws IOException {
+        byte[] old = "old version".getBytes(StandardCharsets.US_ASCII);
+        byte[] data = random(20_000, 12);
+        Path file = directory.resolve("corrupt.bin");
+        Files.write(file, old);
+        byte[] name = file.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] digest = "crc32c:00000000".getBytes(StandardCharsets.UTF_8);
+
+        write(header(FLAG_CRC32C, OP_WRQ, name.length), ByteBuffer.wrap(name),
+                header(0, OP_DATAPACKET, data.length), ByteBuffer.wrap(data),
+                header(0, OP_DIGEST, digest.length), ByteBuffer.wrap(digest));
+
+        assertError(0, "Digest mismatch", readFrame());
+        assertArrayEquals(old, Files.readAllBytes(file));
+        assertTrue(Files.exists(directory.resolve(".corrupt.bin.part")));
+    }
+
+    @Test
+    void rangeIsServedWithItsStartAndTheFileSize() throws IOException {
+        byte[] data = random(100_000, 13);
+        Path file = directory.resolve("range.bin");
+        Files.write(file, data);
+
+        sendRange(file, 30_000, 25_000);
+
+        ByteBuffer range = oackValues(readFrame(), 16);
+        assertEquals(30_000, range.getLong());
+        assertEquals(data.length, range.getLong());
+        assertArrayEquals(Arrays.copyOfRange(data, 30_000, 55_000), readFrame().payload);
+    }
+
+    @Test
+    void emptyRangeTellsTheSize() throws IOException {
+        Path file = directory.resolve("sized.bin");
+        Files.write(file, random(12_345, 14));
+
+        sendRange(file, 0, 0);
+
+        ByteBuffer range = oackValues(readFrame(), 16);
+        assertEquals(0, range.getLong());
+        assertEquals(12_345, range.getLong());
+        assertEquals(0, readFrame().payload.length);
+    }
+
+    @Test
+    void rangeIsClampedToTheFile() throws IOException {
+        byte[] data = random(10_000, 15);
+        Path file = directory.resolve("clamped.bin");
+        Files.write(file, data);
+
+        sendRange(file, 9000, 5000);
+        sendRange(file, 20_000, 100);
+        sendRange(file, -50, 100);
+        sendRange(file, 5, Long.MAX_VALUE);
+
+        assertEquals(9000, oackValues(readFrame(), 16).getLong());
+        assertArrayEquals(Arrays.copyOfRange(data, 9000, data.length), readFrame().payload);
+        assertEquals(data.length, oackValues(readFrame(), 16).getLong());
+        assertEquals(0, readFrame().payload.length);
+        assertEquals(0, oackValues(readFrame(), 16).getLong());
+        assertArrayEquals(Arrays.copyOf(data, 100), readFrame().payload);
+        assertEquals(5, oackValues(readFrame(), 16).getLong());
+        assertArrayEquals(Arrays.copyOfRange(data, 5, data.length), readFrame().payload);
+    }
+
+    @Test
+    void rangeOfAMissingFileGetsAnErrorFrame() throws IOException {
+        sendRange(directory.resolve("absent.bin"), 0, 10);
+
+        assertError(1, "File not found", readFrame());
+    }
+
+    @Test
+    void rangeWithADigestIsRefused() throws IOException {
+        sendResume(OP_RRQ, FLAG_CRC32C, directory.resolve("any.bin").toString(), ByteBuffer.allocate(16).putLong(0).putLong(10));
+
+        assertError(4, "Malformed resume request", readFrame());
+    }
+
+    private void sendRequest(byte opcode, String fileName) throws IOException {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        write(header(0, opcode, name.length), ByteBuffer.wrap(name));
+    }
+
+    // A request whose name is followed by a NUL and the resume fields
+    private void sendResume(byte opcode, int flags, String fileName, ByteBuffer fields) throws IOException {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer request = ByteBuffer.allocate(name.length + 1 + fields.flip().remaining()).put(name).put((byte) 0).put(fields);
+        write(header(flags, opcode, request.capacity()), request.flip());
+    }
+
+    private void sendRange(Path file, long start, long length) throws IOException {
+        sendResume(OP_RRQ, 0, file.toString(), ByteBuffer.allocate(16).putLong(start).putLong(length));
+    }
+
+    private void write(ByteBuffer... buffers) throws IOException {
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            client.write(buffers);
+        }
+    }
+
+    private Frame readFrame() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(10);
+        readFully(header);
+        ByteBuffer payload = ByteBuffer.allocate((int) header.getLong(2));
+        readFully(payload);
+        return new Frame(header.get(0), header.get(1), payload.array());
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (client.read(buffer) == -1) {
+                throw new EOFException("Server closed the session");
+            }
+        }
+    }
+
+    private static void assertError(int code, String message, Frame frame) {
+        assertEquals(OP_ERROR, frame.opcode);
+        ByteBuffer payload = ByteBuffer.wrap(frame.payload);
+        assertEquals(code, payload.getShort());
+        assertEquals(message, new String(frame.payload, 2, frame.payload.length - 2, StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer oackValues(Frame frame, int length) {
+        assertEquals(OP_OACK, frame.opcode);
+        assertEquals(length, frame.payload.length);
+        return ByteBuffer.wrap(frame.payload);
+    }
+
+    private static ByteBuffer header(int flags, byte opcode, long length) {
+        return ByteBuffer.allocate(10).put((byte) flags).put(opcode).putLong(length).flip();
+    }
+
+    private static int crc32c(byte[] data, int length) {
+        CRC32C checksum = new CRC32C();
+        checksum.update(data, 0, length);
+        return (int) checksum.getValue();
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static final class Frame {
+        private final byte flags;
+        private final byte opcode;
+        private final byte[] payload;
+
+        private Frame(byte flags, byte opcode, byte[] payload) {
+            this.flags = flags;
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+    }
+}
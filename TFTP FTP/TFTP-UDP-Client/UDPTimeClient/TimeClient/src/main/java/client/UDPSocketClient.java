@@ -1,18 +1,53 @@
 package client;
 
 
+import codec.FileDigest;
+import codec.IncomingFile;
+import codec.RetransmitTimer;
+import codec.TftpPacket;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.zip.DeflaterInputStream;
 
 
 public class UDPSocketClient {
-    private static final int BUFFER_SIZE = 512;
-    private static final byte OP_RRQ = 1;
-    private static final byte OP_WRQ = 2;
-    private static final byte OP_DATA = 3;
-    private static final byte OP_ACK = 4;
-    private static final byte OP_ERROR = 5;
+    private static final int BUFFER_SIZE = 512; // RFC 1350 block size, used when the server ignores the blksize option
+    // A 1428-byte block keeps DATA packets inside a typical Ethernet/VPN path MTU without IP fragmentation
+    private static final int REQUESTED_BLOCK_SIZE = Math.min(Integer.getInteger("tftp.blksize", 1428), TftpPacket.MAX_BLOCK_SIZE);
+    // Number of blocks in flight per ACK (RFC 7440); 1 is the RFC 1350 lock-step behaviour
+    private static final int REQUESTED_WINDOW_SIZE = Math.max(1, Math.min(Integer.getInteger("tftp.windowsize", 16), 65535));
+    // Fixed retransmission timeout in seconds (RFC 2349); 0 keeps the adaptive RTT-based timeout
+    private static final int REQUESTED_TIMEOUT = Math.min(Integer.getInteger("tftp.timeout", 0), 255);
+    // Ask to join the server's multicast session for the file on RRQ (RFC 2090); the server may still answer by unicast
+    private static final boolean REQUESTED_MULTICAST = Boolean.getBoolean("tftp.multicast");
+    // Ask for the file to travel as a zlib stream (compress=deflate); the server may still send it as is
+    private static final boolean REQUESTED_COMPRESSION = Boolean.getBoolean("tftp.compress");
+    // Check each file end to end with sha256 or crc32c: an RRQ asks for the server's digest, a WRQ sends ours
+    private static final String REQUESTED_DIGEST = FileDigest.isSupported(System.getProperty("tftp.digest")) ? System.getProperty("tftp.digest").toLowerCase(Locale.ROOT) : null;
+    // Interface to join the multicast group on; by default the one that routes to the server
+    private static final String MULTICAST_INTERFACE = System.getProperty("tftp.multicastInterface");
+    // A client runs one transfer at a time, so ACKs and outgoing DATA reuse one buffer and packet each instead of allocating
+    // per block; clients on different threads each have their own
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(TftpPacket.HEADER_SIZE);
+    private final DatagramPacket ackPacket = new DatagramPacket(ackBuffer.array(), TftpPacket.HEADER_SIZE);
+    private final DatagramPacket dataPacket = new DatagramPacket(new byte[0], 0);
+    private final InetAddress serverAddress;
+    private final int serverPort;
 
     // Main method to run the client
     public static void main(String[] args) throws IOException {
@@ -30,24 +65,144 @@ public class UDPSocketClient {
             System.out.print("Enter the file name: ");
             String fileName = scanner.nextLine();
        //     System.out.println("Client working directory: " + System.getProperty("user.dir"));
-            try (DatagramSocket clientSocket = new DatagramSocket()) {
-                if (operation.equals("1")) {
-                    sendWriteRequest(clientSocket, serverAddress, serverPort, fileName);
-                    receiveInAcknowledgments(clientSocket);
-                    sendFile(clientSocket, serverAddress, serverPort, fileName);
-                } else if (operation.equals("2")) {
-                    sendReadRequest(clientSocket, serverAddress, serverPort, fileName);
-                    receiveFile(clientSocket, fileName);
-                } else {
-                    System.out.println("Invalid operation.");
-                    return;
+            UDPSocketClient client = new UDPSocketClient(serverAddress, serverPort);
+            if (operation.equals("1")) {
+                client.writeFile(fileName);
+            } else if (operation.equals("2")) {
+                client.readFile(fileName);
+            } else {
+                System.out.println("Invalid operation.");
+            }
+        }
+    }
+
+    // Creates a client for one server; its transfers run one at a time on the calling thread
+    public UDPSocketClient(InetAddress serverAddress, int serverPort) {
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+    }
+
+    // Stores "Sending Files/<fileName>" on the server; true once the server has acknowledged the whole file
+    public boolean writeFile(String fileName) throws IOException {
+        try (DatagramSocket clientSocket = DatagramChannel.open().bind(null).socket()) {
+            Map<String, String> options = requestedOptions(clientSocket);
+            RetransmitTimer timer = new RetransmitTimer();
+            File file = new File(System.getProperty("user.dir") + File.separator + "Sending Files" + File.separator + fileName);
+            if (REQUESTED_DIGEST != null && file.isFile()) {
+                // The digest goes in the request, so the file is hashed before it is sent; the read warms the page cache for the send
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    options.put("digest", FileDigest.ofPrefix(channel, channel.size(), REQUESTED_DIGEST).finish());
                 }
             }
+            if (file.isFile()) {
+                // RFC 2349: announce the size, so a server without room refuses the file before any of it is sent
+                options.put("tsize", Long.toString(file.length()));
+            }
+            DatagramPacket requestPacket = sendWriteRequest(clientSocket, serverAddress, serverPort, fileName, options);
+            // The server answers from a new port (its TID); the rest of the transfer goes there
+            int transferPort = receiveInAcknowledgments(clientSocket, serverAddress, options, requestPacket, timer);
+            boolean sent = sendFile(clientSocket, serverAddress, transferPort, fileName, negotiatedBlockSize(options), negotiatedWindowSize(options), negotiatedTimer(options, timer), negotiatedCompression(options));
+            if (sent && negotiatedDigest(options) != null) {
+                System.out.println("The server verified " + fileName + " against " + options.get("digest"));
+            }
+            return sent;
+        }
+    }
+
+    // Retrieves a file from the server into "Receiving Files/<fileName>"; true once the whole file is in place
+    public boolean readFile(String fileName) throws IOException {
+        // Channel-backed so that a multicast RRQ can wait on this socket and the group together
+        try (DatagramSocket clientSocket = DatagramChannel.open().bind(null).socket()) {
+            Map<String, String> options = requestedOptions(clientSocket);
+            RetransmitTimer timer = new RetransmitTimer();
+            if (REQUESTED_MULTICAST) {
+                options.put("multicast", "");
+            }
+            if (REQUESTED_DIGEST != null) {
+                options.put("digest", REQUESTED_DIGEST);
+            }
+            options.put("tsize", "0"); // RFC 2349: ask for the file's size, to check there is room for it
+            DatagramPacket requestPacket = sendReadRequest(clientSocket, serverAddress, serverPort, fileName, options);
+            return receiveFile(clientSocket, serverAddress, fileName, options, requestPacket, timer);
+        }
+    }
+
+    // Options sent with every RRQ/WRQ (RFC 2347); servers that don't support them simply ignore them. The socket is
+    // sized for the window, which is only asked for as far as the buffers the OS grants can hold it
+    private static Map<String, String> requestedOptions(DatagramSocket clientSocket) throws SocketException {
+        int windowSize = TftpPacket.fitWindow(clientSocket, REQUESTED_BLOCK_SIZE, REQUESTED_WINDOW_SIZE);
+        Map<String, String> options = new LinkedHashMap<>();
+        if (REQUESTED_BLOCK_SIZE != BUFFER_SIZE) {
+            options.put("blksize", Integer.toString(REQUESTED_BLOCK_SIZE));
+        }
+        if (windowSize != 1) {
+            options.put("windowsize", Integer.toString(windowSize));
+        }
+        if (REQUESTED_TIMEOUT > 0) {
+            options.put("timeout", Integer.toString(REQUESTED_TIMEOUT));
+        }
+        if (REQUESTED_COMPRESSION) {
+            options.put("compress", "deflate");
+        }
+        return options;
+    }
+
+    // Block size agreed with the server, or the RFC 1350 default when it did not acknowledge the option
+    private static int negotiatedBlockSize(Map<String, String> options) {
+        String blockSize = options.get("blksize");
+        return blockSize != null ? Integer.parseInt(blockSize) : BUFFER_SIZE;
+    }
+
+    // Window size agreed with the server, or lock-step when it did not acknowledge the option
+    private static int negotiatedWindowSize(Map<String, String> options) {
+        String windowSize = options.get("windowsize");
+        return windowSize != null ? Integer.parseInt(windowSize) : 1;
+    }
+
+    // Whether the server agreed to carry the file as a zlib stream
+    private static boolean negotiatedCompression(Map<String, String> options) {
+        return "deflate".equalsIgnoreCase(options.get("compress"));
+    }
+
+    // The file's digest as the server sent or echoed it, algorithm:hex, or null if it did not take the option
+    private static String negotiatedDigest(Map<String, String> options) {
+        String digest = options.get("digest");
+        return digest != null && FileDigest.algorithmOf(digest) != null ? digest : null;
+    }
+
+    // The file's size as the server reported it, or -1 if it did not take the tsize option
+    private static long negotiatedTransferSize(Map<String, String> options) {
+        try {
+            return Long.parseLong(options.getOrDefault("tsize", "-1"));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Whether a file of the given size fits in the directory; true when either is unknown
+    private static boolean hasRoomFor(Path directory, long size) {
+        try {
+            return size <= 0 || size <= Files.getFileStore(directory).getUsableSpace();
+        } catch (IOException e) {
+            return true; // the transfer itself will report why the directory is unusable
+        }
+    }
+
+    // Fixed-timeout timer when the server accepted the timeout option, otherwise keeps the adaptive one
+    private static RetransmitTimer negotiatedTimer(Map<String, String> options, RetransmitTimer timer) {
+        String timeout = options.get("timeout");
+        return timeout != null ? new RetransmitTimer(Integer.parseInt(timeout) * 1000) : timer;
+    }
+
+    // Charges a timeout against the transfer's retry budget
+    private static void checkRetries(RetransmitTimer timer) throws IOException {
+        if (!timer.onTimeout()) {
+            throw new IOException("Transfer timed out after " + RetransmitTimer.MAX_RETRIES + " retries");
         }
     }
 
     // Sends a file to the server
-    private static void sendFile(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, String fileName) throws IOException {
+    private boolean sendFile(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, String fileName, int blockSize, int windowSize, RetransmitTimer timer, boolean compressed) throws IOException {
         String sendingFilesDirectory = "Sending Files"; // or "Upload Files"
         String filePath = System.getProperty("user.dir") + File.separator + sendingFilesDirectory + File.separator + fileName;
         File file = new File(filePath);
@@ -56,23 +211,82 @@ public class UDPSocketClient {
         if (file.exists()) {
             System.out.println("File exists: " + fileName);
 //            System.out.println("1File name to send: " + fileName);
-            try (FileInputStream fis = new FileInputStream(filePath)) {
-                short blockNumber = 1;
-                int bytesRead;
-                byte[] dataBuffer = new byte[BUFFER_SIZE];
+            // A compressed upload sends the file's zlib stream, deflated block by block as the window advances
+            try (FileInputStream fis = new FileInputStream(filePath);
+                 InputStream in = compressed ? new DeflaterInputStream(fis) : fis) {
+                // Each slot keeps room for the DATA header in front of the block, so blocks are sent without copying
+                ByteBuffer[] window = new ByteBuffer[windowSize];
+                for (int i = 0; i < windowSize; i++) {
+                    window[i] = ByteBuffer.allocate(blockSize + TftpPacket.HEADER_SIZE);
+                }
+                ByteBuffer ack = ByteBuffer.allocate(BUFFER_SIZE + TftpPacket.HEADER_SIZE);
+                DatagramPacket ackReceived = new DatagramPacket(ack.array(), ack.capacity());
+                int[] windowLengths = new int[windowSize];
+                int firstUnacked = 1; // oldest block the server has not acknowledged yet
+                int nextBlock = 1; // next block to put on the wire
+                int lastRead = 0; // highest block read from the file so far
+                int finalBlock = -1; // the short (possibly empty) block that ends the transfer, once read
+                long[] sentAt = new long[windowSize];
+                boolean[] resent = new boolean[windowSize];
+                int rewoundAt = -1; // firstUnacked value we already rewound to on a duplicate ACK
 
 //                System.out.println("2File name to send: " + fileName);
 
 
-                while ((bytesRead = fis.read(dataBuffer)) != -1) {
-                    sendData(clientSocket, serverAddress, serverPort, blockNumber, dataBuffer, bytesRead);
-                    receiveAcknowledgments(clientSocket, blockNumber);
+                // Keep up to windowSize blocks in flight (RFC 7440); an ACK for an earlier block than the last one sent rewinds to the gap
+                while (true) {
+                    while (nextBlock < firstUnacked + windowSize && (finalBlock == -1 || nextBlock <= finalBlock)) {
+                        int slot = nextBlock % windowSize;
+                        if (nextBlock > lastRead) {
+                            windowLengths[slot] = readBlock(in, window[slot].array(), TftpPacket.HEADER_SIZE, blockSize);
+                            lastRead = nextBlock;
+                            resent[slot] = false;
+                            if (windowLengths[slot] < blockSize) {
+                                finalBlock = nextBlock;
+                            }
+                        } else {
+                            resent[slot] = true;
+                        }
+                        sentAt[slot] = System.nanoTime();
+                        sendData(clientSocket, serverAddress, serverPort, nextBlock, window[slot], windowLengths[slot]);
+                        nextBlock++;
+                    }
 
-                    blockNumber++;
+                    int ackedBlock;
+                    try {
+                        ackedBlock = toBlockIndex(receiveAcknowledgments(clientSocket, ackReceived, ack, serverAddress, serverPort, timer), firstUnacked - 1, nextBlock - 1);
+                    } catch (SocketTimeoutException e) {
+                        checkRetries(timer);
+                        nextBlock = firstUnacked; // resend everything still unacknowledged
+                        continue;
+                    }
+                    if (ackedBlock < 0) {
+                        continue; // not for anything currently in flight
+                    }
+                    if (ackedBlock == firstUnacked - 1) {
+                        // A duplicate ACK. Answering each one with a resend would double every block from here on
+                        // (the Sorcerer's Apprentice bug), so lock-step ignores them and a window rewinds at most once per position
+                        if (windowSize > 1 && rewoundAt != firstUnacked) {
+                            rewoundAt = firstUnacked;
+                            nextBlock = firstUnacked;
+                        }
+                        continue;
+                    }
+                    int ackedSlot = ackedBlock % windowSize;
+                    if (!resent[ackedSlot]) {
+                        timer.onRttSample(System.nanoTime() - sentAt[ackedSlot]); // Karn's rule: retransmitted blocks give ambiguous samples
+                    }
+                    timer.onProgress();
+                    if (ackedBlock == finalBlock) {
+                        break;
+                    }
+                    firstUnacked = ackedBlock + 1;
+                    nextBlock = firstUnacked;
                   //  System.out.println("File name to send: " + fileName);
 
                 }
-                System.out.println("File transfer completed for " + fileName);
+                System.out.println("File transfer completed for " + fileName + (compressed ? ", deflated" : ""));
+                return true;
 
             } catch (IOException e) {
                 System.out.println("Error reading from file: " + e.getMessage());
@@ -80,143 +294,477 @@ public class UDPSocketClient {
         } else {
             System.out.println("File does not exist: " + fileName);
         }
+        return false;
     }
     // Receives a file from the server
-    private static void receiveFile(DatagramSocket clientSocket, String fileName) throws IOException {
+    private boolean receiveFile(DatagramSocket clientSocket, InetAddress serverAddress, String fileName, Map<String, String> options, DatagramPacket requestPacket, RetransmitTimer timer) throws IOException {
         String receivingFilesDirectory = "Receiving Files"; // or "Retrieve Files"
-        try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-             FileOutputStream fos = new FileOutputStream(System.getProperty("user.dir") + File.separator + receivingFilesDirectory + File.separator + fileName)) {
-            short blockNumber = 1;
+        Path directory = Paths.get(System.getProperty("user.dir"), receivingFilesDirectory);
+        try (IncomingFile incomingFile = new IncomingFile(directory.resolve(fileName))) {
+            int blockNumber = 1; // counts on past 65535 while the wire number rolls over to 0
             boolean done = false;
+            int transferPort = -1; // learned from the first reply
+            int blockSize = options.isEmpty() ? BUFFER_SIZE : REQUESTED_BLOCK_SIZE; // upper bound until the reply tells us
+            int windowSize = 1;
+            int blocksSinceAck = 0;
+            boolean gapAcked = false;
+            long windowAckedAt = 0; // when the last window was ACKed, for an RTT sample; 0 when the sample would be ambiguous
+            DatagramPacket lastSent = requestPacket; // repeated when the server goes quiet
+            // blockSize only shrinks once the server answers, so one buffer holds every packet of the transfer
+            ByteBuffer dataBuffer = ByteBuffer.allocate(blockSize + TftpPacket.HEADER_SIZE);
+            DatagramPacket dataPacket = new DatagramPacket(dataBuffer.array(), dataBuffer.capacity());
 
             while (!done) {
-                byte[] dataBuffer = new byte[BUFFER_SIZE + 4];
-                DatagramPacket dataPacket = new DatagramPacket(dataBuffer, dataBuffer.length);
-                clientSocket.receive(dataPacket);
-
-                short receivedOpcode = (short) (((dataPacket.getData()[0] & 0xFF) << 8) | (dataPacket.getData()[1] & 0xFF));
-
-                if (receivedOpcode == OP_DATA) {
-                    short receivedBlockNumber = (short) (((dataPacket.getData()[2] & 0xFF) << 8) | (dataPacket.getData()[3] & 0xFF));
-                    if (receivedBlockNumber == blockNumber) {
-                        int dataSize = dataPacket.getLength() - 4;
-                        byteArrayOutputStream.write(dataBuffer, 4, dataSize);
-                        sendAcknowledgments(clientSocket, dataPacket.getAddress(), dataPacket.getPort(), blockNumber);
-                        blockNumber++;
+                boolean firstReply = transferPort == -1;
+                try {
+                    if (firstReply) {
+                        receiveFirstReply(clientSocket, dataPacket, serverAddress, timer);
+                        transferPort = dataPacket.getPort();
+                    } else {
+                        receiveFromServer(clientSocket, dataPacket, serverAddress, transferPort, timer);
+                    }
+                } catch (SocketTimeoutException e) {
+                    checkRetries(timer);
+                    // Tell the server where we are: ACK the in-order blocks of a partial window, or repeat what we last sent
+                    if (blocksSinceAck > 0) {
+                        lastSent = sendAcknowledgments(clientSocket, serverAddress, transferPort, blockNumber - 1);
+                        blocksSinceAck = 0;
+                    } else {
+                        clientSocket.send(lastSent);
+                    }
+                    windowAckedAt = 0;
+                    continue;
+                }
+
+                dataBuffer.clear();
+                dataBuffer.limit(dataPacket.getLength());
+                int receivedOpcode = TftpPacket.opcode(dataBuffer);
+
+                if (firstReply && receivedOpcode != TftpPacket.OP_OACK && receivedOpcode != TftpPacket.OP_ERROR) {
+                    // No OACK: the server ignored our options, so fall back to the RFC 1350 defaults
+                    options.clear();
+                    blockSize = BUFFER_SIZE;
+                }
 
-                        if (dataSize < BUFFER_SIZE) {
+                if (receivedOpcode == TftpPacket.OP_OACK && firstReply) {
+                    parseOptionAck(dataBuffer, options);
+                    blockSize = negotiatedBlockSize(options);
+                    if (!hasRoomFor(directory, negotiatedTransferSize(options))) {
+                        System.out.println("No room for " + fileName + " (" + negotiatedTransferSize(options) + " bytes)");
+                        sendError(clientSocket, dataPacket.getAddress(), dataPacket.getPort(), TftpPacket.ERR_DISK_FULL, "Disk full or allocation exceeded");
+                        return false;
+                    }
+                    if (negotiatedCompression(options)) {
+                        incomingFile.inflate();
+                    }
+                    if (negotiatedDigest(options) != null && !options.containsKey("multicast")) {
+                        incomingFile.digest(FileDigest.algorithmOf(negotiatedDigest(options)));
+                    }
+                    if (options.containsKey("multicast")) {
+                        if (receiveMulticastFile(clientSocket, serverAddress, transferPort, blockSize, options.get("multicast"), incomingFile, timer)) {
+                            System.out.println("File received: " + fileName);
+                            return true;
+                        }
+                        return false;
+                    }
+                    windowSize = negotiatedWindowSize(options);
+                    timer = negotiatedTimer(options, timer);
+                    lastSent = sendAcknowledgments(clientSocket, dataPacket.getAddress(), dataPacket.getPort(), 0);
+                } else if (receivedOpcode == TftpPacket.OP_OACK && blockNumber == 1) {
+                    clientSocket.send(lastSent); // our ACK 0 was lost and the server repeated its OACK
+                } else if (receivedOpcode == TftpPacket.OP_DATA) {
+                    int receivedBlockNumber = TftpPacket.blockNumber(dataBuffer);
+                    if (receivedBlockNumber == (blockNumber & 0xFFFF)) {
+                        int dataSize = TftpPacket.payloadLength(dataBuffer);
+                        incomingFile.write(dataBuffer.array(), TftpPacket.HEADER_SIZE, dataSize);
+                        blocksSinceAck++;
+                        gapAcked = false;
+                        if (windowAckedAt != 0) {
+                            timer.onRttSample(System.nanoTime() - windowAckedAt);
+                            windowAckedAt = 0;
+                        }
+                        timer.onProgress();
+
+                        if (dataSize < blockSize) {
+                            String expected = negotiatedDigest(options);
+                            if (expected != null) {
+                                String digest = incomingFile.finishDigest();
+                                if (!digest.equalsIgnoreCase(expected)) {
+                                    System.out.println("Digest mismatch for " + fileName + ": expected " + expected + ", received " + digest);
+                                    sendError(clientSocket, dataPacket.getAddress(), dataPacket.getPort(), TftpPacket.ERR_NOT_DEFINED, "Digest mismatch");
+                                    return false; // the received file is discarded
+                                }
+                            }
+                            long expectedSize = negotiatedTransferSize(options);
+                            if (expectedSize >= 0 && incomingFile.size() != expectedSize) {
+                                System.out.println("Size mismatch for " + fileName + ": expected " + expectedSize + " bytes, received " + incomingFile.size());
+                                sendError(clientSocket, dataPacket.getAddress(), dataPacket.getPort(), TftpPacket.ERR_NOT_DEFINED, "File size does not match tsize");
+                                return false;
+                            }
                             done = true;
+                            incomingFile.commit(); // the final ACK only goes out once the file is in place
+                        }
+                        // ACK once per window (RFC 7440), and always for the final block
+                        if (done || blocksSinceAck == windowSize) {
+                            lastSent = sendAcknowledgments(clientSocket, dataPacket.getAddress(), dataPacket.getPort(), blockNumber);
+                            blocksSinceAck = 0;
+                            windowAckedAt = System.nanoTime();
                         }
+                        blockNumber++;
+                    } else if (isAhead(receivedBlockNumber, blockNumber) ? !gapAcked : windowSize == 1) {
+                        // A gap (once per gap), or a duplicate in lock-step: re-ACK the last in-order block so the server resumes after it.
+                        // Duplicates within a window go unanswered: the server would take the re-ACK for a loss and resend the next window,
+                        // whose duplicates would start it over. A lost window ACK is repeated by our own timeout instead
+                        lastSent = sendAcknowledgments(clientSocket, dataPacket.getAddress(), dataPacket.getPort(), blockNumber - 1);
+                        blocksSinceAck = 0;
+                        gapAcked = true;
+                        windowAckedAt = 0;
                     }
-                } else if (receivedOpcode == OP_ERROR) {
-                    short errorCode = (short) (((dataPacket.getData()[2] & 0xFF) << 8) | (dataPacket.getData()[3] & 0xFF));
-                    String errorMessage = new String(dataBuffer, 4, dataPacket.getLength() - 5);
-                    System.out.println("Error " + errorCode + ": " + errorMessage);
+                } else if (receivedOpcode == TftpPacket.OP_ERROR) {
+                    System.out.println("Error " + TftpPacket.errorCode(dataBuffer) + ": " + TftpPacket.errorMessage(dataBuffer));
                     break; // Stop receiving
                 }
             }
-            fos.write(byteArrayOutputStream.toByteArray());
             if (done) {
-                System.out.println("File received: " + fileName);
+                System.out.println("File received: " + fileName + (negotiatedCompression(options) ? ", deflated" : "")
+                        + (negotiatedDigest(options) != null ? ", " + negotiatedDigest(options) + " verified" : ""));
+                dally(clientSocket, dataPacket, serverAddress, transferPort, lastSent, timer);
             }
+            return done;
         } catch (IOException e) {
             System.out.println("Error writing to file: " + e.getMessage());
         }
+        return false;
+    }
+
+    // Fills a block from the stream; only the last block of the stream comes back short. A deflating stream returns
+    // whatever its current chunk holds, so a single read() could end the transfer early
+    private static int readBlock(InputStream in, byte[] block, int offset, int blockSize) throws IOException {
+        int length = 0;
+        while (length < blockSize) {
+            int read = in.read(block, offset + length, blockSize - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    // Receives a file from the server's RFC 2090 multicast session. DATA arrives on the group in any order and is written
+    // where it belongs; only while the server has made us the master client do we ACK, naming the highest block we hold
+    // contiguously so the server sends the next one we are missing. ACKing the final block tells the server we are done.
+    private boolean receiveMulticastFile(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, int blockSize, String multicastValue, IncomingFile incomingFile, RetransmitTimer timer) throws IOException {
+        String[] fields = multicastValue.split(",", -1);
+        if (fields.length != 3 || fields[0].isEmpty() || fields[1].isEmpty()) {
+            throw new IOException("Invalid multicast option: " + multicastValue);
+        }
+        InetAddress groupAddress = InetAddress.getByName(fields[0]);
+        InetSocketAddress server = new InetSocketAddress(serverAddress, serverPort);
+        boolean master = "1".equals(fields[2]);
+        DatagramChannel unicast = clientSocket.getChannel();
+
+        try (Selector selector = Selector.open();
+             DatagramChannel group = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            group.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            group.bind(new InetSocketAddress(Integer.parseInt(fields[1])));
+            group.join(groupAddress, multicastInterface(serverAddress));
+            group.configureBlocking(false);
+            group.register(selector, SelectionKey.OP_READ);
+            unicast.configureBlocking(false);
+            unicast.register(selector, SelectionKey.OP_READ);
+            System.out.println("Joined multicast group " + groupAddress.getHostAddress() + ":" + fields[1] + (master ? " as master client" : ""));
+
+            ByteBuffer packet = ByteBuffer.allocate(blockSize + TftpPacket.HEADER_SIZE);
+            BitSet received = new BitSet();
+            int contiguous = 0; // every block up to this one has been received
+            int finalBlock = -1; // the short block that ends the file, once seen
+            boolean done = false;
+            long lingerUntil = 0; // once done, how long to stay for a repeat of the final block (our ACK was lost)
+            long ackSentAt = 0;
+            boolean ackResent = false;
+            if (master) {
+                sendMulticastAck(unicast, server, contiguous);
+                ackSentAt = System.nanoTime();
+            }
+
+            while (true) {
+                long timeoutMillis = timer.getTimeoutMillis();
+                if (done) {
+                    timeoutMillis = (lingerUntil - System.nanoTime()) / 1_000_000;
+                    if (timeoutMillis <= 0) {
+                        return true; // no repeat of the final block, so the server got our final ACK
+                    }
+                }
+                if (selector.select(timeoutMillis) == 0) {
+                    if (done) {
+                        continue;
+                    }
+                    checkRetries(timer);
+                    if (master) {
+                        sendMulticastAck(unicast, server, contiguous);
+                        ackResent = true;
+                    }
+                    continue;
+                }
+                selector.selectedKeys().clear();
+                for (DatagramChannel channel : new DatagramChannel[] {unicast, group}) {
+                    SocketAddress source;
+                    while ((source = receive(channel, packet)) != null) {
+                        if (!server.equals(source)) {
+                            if (channel == unicast) {
+                                System.out.println("Rejected packet from unknown TID " + source);
+                                unicast.send(createError(TftpPacket.ERR_UNKNOWN_TID, "Unknown transfer ID"), source);
+                            }
+                            continue;
+                        }
+                        int opcode = TftpPacket.opcode(packet);
+                        if (opcode == TftpPacket.OP_ERROR) {
+                            System.out.println("Error " + TftpPacket.errorCode(packet) + ": " + TftpPacket.errorMessage(packet));
+                            return false;
+                        } else if (opcode == TftpPacket.OP_OACK && channel == unicast) {
+                            // The server names the next master client with a fresh OACK
+                            Map<String, String> oackOptions = new LinkedHashMap<>();
+                            parseOptionAck(packet, oackOptions);
+                            String value = oackOptions.get("multicast");
+                            master = value != null && value.endsWith(",1");
+                            if (master) {
+                                System.out.println("Now the multicast master client");
+                                sendMulticastAck(unicast, server, done ? finalBlock : contiguous);
+                                ackSentAt = System.nanoTime();
+                                ackResent = false;
+                            }
+                        } else if (opcode == TftpPacket.OP_DATA && channel == group) {
+                            int blockNumber = TftpPacket.blockNumber(packet);
+                            int dataSize = TftpPacket.payloadLength(packet);
+                            if (done) {
+                                if (master && blockNumber == finalBlock) {
+                                    sendMulticastAck(unicast, server, finalBlock); // our final ACK was lost
+                                    lingerUntil = System.nanoTime() + 2_000_000L * timer.getTimeoutMillis();
+                                }
+                                continue;
+                            }
+                            if (master && !ackResent && blockNumber == contiguous + 1) {
+                                timer.onRttSample(System.nanoTime() - ackSentAt);
+                            }
+                            timer.onProgress();
+                            int before = contiguous;
+                            if (blockNumber > 0 && !received.get(blockNumber)) {
+                                incomingFile.writeAt((long) (blockNumber - 1) * blockSize, packet.array(), TftpPacket.HEADER_SIZE, dataSize);
+                                received.set(blockNumber);
+                                if (dataSize < blockSize) {
+                                    finalBlock = blockNumber;
+                                }
+                                while (received.get(contiguous + 1)) {
+                                    contiguous++;
+                                }
+                            }
+                            if (contiguous == finalBlock) {
+                                incomingFile.commit(); // the final ACK only goes out once the file is in place
+                                sendMulticastAck(unicast, server, finalBlock);
+                                done = true;
+                                lingerUntil = System.nanoTime() + 2_000_000L * timer.getTimeoutMillis();
+                            } else if (master && contiguous > before) {
+                                // Only a block that moves us on is ACKed: re-ACKing duplicates would have the server send
+                                // every later block twice (Sorcerer's Apprentice); a lost block is recovered by our timeout
+                                sendMulticastAck(unicast, server, contiguous);
+                                ackSentAt = System.nanoTime();
+                                ackResent = false;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Receives the next datagram of at least 4 bytes from a non-blocking channel into the buffer, flipped; null when none is queued
+    private static SocketAddress receive(DatagramChannel channel, ByteBuffer packet) throws IOException {
+        while (true) {
+            packet.clear();
+            SocketAddress source = channel.receive(packet);
+            packet.flip();
+            if (source == null || packet.remaining() >= TftpPacket.HEADER_SIZE) {
+                return source;
+            }
+        }
+    }
+
+    // Sends an ACK from the non-blocking channel behind the client socket
+    private void sendMulticastAck(DatagramChannel unicast, InetSocketAddress server, int blockNumber) throws IOException {
+        unicast.send(TftpPacket.putAck(ackBuffer, blockNumber), server);
+    }
+
+    // The interface to join multicast groups on: the configured one, or the one whose address we use to reach the server
+    private static NetworkInterface multicastInterface(InetAddress serverAddress) throws IOException {
+        if (MULTICAST_INTERFACE != null) {
+            return NetworkInterface.getByName(MULTICAST_INTERFACE);
+        }
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.connect(serverAddress, 69);
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+            if (networkInterface == null) {
+                throw new IOException("No interface to join the multicast group on; set -Dtftp.multicastInterface");
+            }
+            return networkInterface;
+        }
     }
 
     // Sends a Read Request (RRQ) to the server
-    private static void sendReadRequest(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, String fileName) throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
-
-        dataOutputStream.writeShort(OP_RRQ); // Write the RRQ opcode (1)
-        dataOutputStream.writeBytes(fileName); // Write the file name
-        dataOutputStream.writeByte(0); // Write a null byte to separate the filename and mode
-        dataOutputStream.writeBytes("octet"); // Write the transfer mode (octet)
-        dataOutputStream.writeByte(0); // Write a null byte to terminate the mode
-
-        byte[] requestPacketData = byteArrayOutputStream.toByteArray();
-        DatagramPacket requestPacket = new DatagramPacket(requestPacketData, requestPacketData.length, serverAddress, serverPort);
-        clientSocket.send(requestPacket);
+    private static DatagramPacket sendReadRequest(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, String fileName, Map<String, String> options) throws IOException {
+        return sendRequest(clientSocket, serverAddress, serverPort, TftpPacket.OP_RRQ, fileName, options);
     }
 
     // Sends a Write Request (WRQ) to the server
-    private static void sendWriteRequest(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, String fileName) throws IOException {
-        byte[] wrqData = createRrqWrqData(OP_WRQ, fileName);
-        DatagramPacket wrqPacket = new DatagramPacket(wrqData, wrqData.length, serverAddress, serverPort);
-        clientSocket.send(wrqPacket);
-    }
-    // Creates the data for a Read Request (RRQ) or Write Request (WRQ)
-    private static byte[] createRrqWrqData(byte opcode, String fileName) {
-        byte[] fileNameBytes = fileName.getBytes();
-        byte[] data = new byte[2 + fileNameBytes.length + 1 + 4 + 1];
-
-        data[0] = 0;
-        data[1] = opcode;
-        System.arraycopy(fileNameBytes, 0, data, 2, fileNameBytes.length);
-        data[2 + fileNameBytes.length] = 0;
-        System.arraycopy("octet".getBytes(), 0, data, 3 + fileNameBytes.length, 5);
-        data[data.length - 1] = 0;
-
-        return data;
-    }
-    // Sends a DATA packet to the server
-    private static void sendData(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, short blockNumber, byte[] data, int dataLength) throws IOException {
-        byte[] sendData = new byte[dataLength + 4];
-        sendData[0] = 0;
-        sendData[1] = OP_DATA;
-        sendData[2] = (byte) (blockNumber >> 8);
-        sendData[3] = (byte) (blockNumber);
-        System.arraycopy(data, 0, sendData, 4, dataLength);
-
-        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, serverPort);
-        clientSocket.send(sendPacket);
-    }
-    // Receives an ACK packet from the server
-    private static void receiveAcknowledgments(DatagramSocket clientSocket, short blockNumber) throws IOException {
-        byte[] ackBuffer = new byte[4];
-        DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-        clientSocket.receive(ackPacket);
-
-        short receivedOpcode = (short) (((ackPacket.getData()[0] & 0xFF) << 8) | (ackPacket.getData()[1] & 0xFF));
-
-        if (receivedOpcode == OP_ACK) {
-            if ((((ackPacket.getData()[2] & 0xFF) << 8) | (ackPacket.getData()[3] & 0xFF)) != blockNumber) {
-                throw new IOException("Invalid ACK received");
-            }
-        } else if (receivedOpcode == OP_ERROR) {
-            short errorCode = (short) (((ackPacket.getData()[2] & 0xFF) << 8) | (ackPacket.getData()[3] & 0xFF));
-            String errorMessage = new String(ackBuffer, 4, ackPacket.getLength() - 5);
-            System.out.println("Error " + errorCode + ": " + errorMessage);
+    private static DatagramPacket sendWriteRequest(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, String fileName, Map<String, String> options) throws IOException {
+        return sendRequest(clientSocket, serverAddress, serverPort, TftpPacket.OP_WRQ, fileName, options);
+    }
+
+    // Sends an RRQ or WRQ in octet mode and returns it so it can be repeated
+    private static DatagramPacket sendRequest(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, byte opcode, String fileName, Map<String, String> options) throws IOException {
+        ByteBuffer request = TftpPacket.putRequest(ByteBuffer.allocate(TftpPacket.MAX_PACKET_SIZE), opcode, fileName, "octet", options);
+        DatagramPacket requestPacket = new DatagramPacket(request.array(), request.limit(), serverAddress, serverPort);
+        clientSocket.send(requestPacket);
+        return requestPacket;
+    }
+
+    // Replaces the requested options with the ones the server accepted in its OACK
+    private static void parseOptionAck(ByteBuffer oackPacket, Map<String, String> options) {
+        options.clear();
+        options.putAll(TftpPacket.parseOack(oackPacket));
+    }
+    // Sends a DATA packet to the server, writing its header in front of the block already in the window slot
+    private void sendData(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, int blockNumber, ByteBuffer slot, int dataLength) throws IOException {
+        TftpPacket.putData(slot, blockNumber, dataLength);
+        dataPacket.setData(slot.array(), 0, slot.limit());
+        dataPacket.setAddress(serverAddress);
+        dataPacket.setPort(serverPort);
+        clientSocket.send(dataPacket);
+    }
+    // Receives an ACK packet from the server and returns the acknowledged block number as sent on the wire (0-65535)
+    private static int receiveAcknowledgments(DatagramSocket clientSocket, DatagramPacket packet, ByteBuffer buffer, InetAddress serverAddress, int serverPort, RetransmitTimer timer) throws IOException {
+        receiveFromServer(clientSocket, packet, serverAddress, serverPort, timer);
+        buffer.clear();
+        buffer.limit(packet.getLength());
+
+        int receivedOpcode = TftpPacket.opcode(buffer);
+
+        if (receivedOpcode == TftpPacket.OP_ACK) {
+            return TftpPacket.blockNumber(buffer);
+        } else if (receivedOpcode == TftpPacket.OP_ERROR) {
+            String errorMessage = TftpPacket.errorMessage(buffer);
+            System.out.println("Error " + TftpPacket.errorCode(buffer) + ": " + errorMessage);
             throw new IOException("Error from server: " + errorMessage);
         }
+        throw new IOException("Invalid ACK received");
+    }
+
+    // Maps a 16-bit block number from the wire onto the sender's block counter within [low, high], or -1 if outside it
+    private static int toBlockIndex(int wireBlock, int low, int high) {
+        int candidate = low + ((wireBlock - low) & 0xFFFF);
+        return candidate <= high ? candidate : -1;
     }
 
+    // Tells whether a received block number lies ahead of the expected one (a gap) rather than behind it (a duplicate);
+    // only the low 16 bits of the expected block counter are compared
+    private static boolean isAhead(int receivedBlock, int expectedBlock) {
+        return ((receivedBlock - expectedBlock) & 0xFFFF) < 0x8000;
+    }
 
-    // Sends an ACK packet to the server
-    private static void sendAcknowledgments(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, short blockNumber) throws IOException {
-        byte[] ackData = new byte[4];
-        ackData[0] = 0;
-        ackData[1] = OP_ACK;
-        ackData[2] = (byte) (blockNumber >> 8);
-        ackData[3] = (byte) (blockNumber);
 
-        DatagramPacket ackPacket = new DatagramPacket(ackData, ackData.length, serverAddress, serverPort);
+    // Sends an ACK packet to the server and returns it so it can be repeated; the packet is reused by the next ACK
+    private DatagramPacket sendAcknowledgments(DatagramSocket clientSocket, InetAddress serverAddress, int serverPort, int blockNumber) throws IOException {
+        TftpPacket.putAck(ackBuffer, blockNumber);
+        ackPacket.setAddress(serverAddress);
+        ackPacket.setPort(serverPort);
         clientSocket.send(ackPacket);
+        return ackPacket;
     }
 
-    // Receives the initial ACK packet from the server after sending a Write Request (WRQ)
-    private static void receiveInAcknowledgments(DatagramSocket clientSocket) throws IOException {
-        byte[] ackBuffer = new byte[4];
-        DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-        clientSocket.receive(ackPacket);
+    // Receives the initial ACK (or OACK) from the server after sending a Write Request (WRQ) and returns the server's TID
+    private static int receiveInAcknowledgments(DatagramSocket clientSocket, InetAddress serverAddress, Map<String, String> options, DatagramPacket requestPacket, RetransmitTimer timer) throws IOException {
+        ByteBuffer reply = ByteBuffer.allocate(BUFFER_SIZE + TftpPacket.HEADER_SIZE);
+        DatagramPacket replyPacket = new DatagramPacket(reply.array(), reply.capacity());
+        long sentAt = System.nanoTime();
+        boolean resent = false;
+        while (true) {
+            try {
+                receiveFirstReply(clientSocket, replyPacket, serverAddress, timer);
+                break;
+            } catch (SocketTimeoutException e) {
+                checkRetries(timer);
+                clientSocket.send(requestPacket); // the WRQ or its answer was lost
+                resent = true;
+            }
+        }
+        if (!resent) {
+            timer.onRttSample(System.nanoTime() - sentAt);
+        }
+        timer.onProgress();
 
-        if (ackPacket.getData()[1] != OP_ACK || (((ackPacket.getData()[2] & 0xFF) << 8) | (ackPacket.getData()[3] & 0xFF)) != 0) {
+        reply.limit(replyPacket.getLength());
+        if (TftpPacket.opcode(reply) == TftpPacket.OP_OACK) {
+            parseOptionAck(reply, options);
+            return replyPacket.getPort();
+        }
+        if (TftpPacket.opcode(reply) == TftpPacket.OP_ERROR) {
+            // e.g. a server without room for the size we announced
+            System.out.println("Error " + TftpPacket.errorCode(reply) + ": " + TftpPacket.errorMessage(reply));
+            throw new IOException("Error from server: " + TftpPacket.errorMessage(reply));
+        }
+        // A plain ACK 0 means the server ignored our options
+        options.clear();
+        if (TftpPacket.opcode(reply) != TftpPacket.OP_ACK || TftpPacket.blockNumber(reply) != 0) {
             throw new IOException("Invalid initial ACK received");
         }
+        return replyPacket.getPort();
     }
-}
 
+    // Receives the first reply to a request, which may come from any port of the server (its new TID)
+    private static void receiveFirstReply(DatagramSocket clientSocket, DatagramPacket packet, InetAddress serverAddress, RetransmitTimer timer) throws IOException {
+        clientSocket.setSoTimeout(timer.getTimeoutMillis());
+        do {
+            packet.setLength(packet.getData().length);
+            clientSocket.receive(packet);
+        } while (!packet.getAddress().equals(serverAddress));
+    }
 
+    // Receives the next packet from the server's TID, rejecting datagrams from any other source; times out after the current RTO
+    private static void receiveFromServer(DatagramSocket clientSocket, DatagramPacket packet, InetAddress serverAddress, int serverPort, RetransmitTimer timer) throws IOException {
+        clientSocket.setSoTimeout(timer.getTimeoutMillis());
+        while (true) {
+            packet.setLength(packet.getData().length);
+            clientSocket.receive(packet);
+            if (packet.getAddress().equals(serverAddress) && packet.getPort() == serverPort) {
+                return;
+            }
+            System.out.println("Rejected packet from unknown TID " + packet.getAddress().getHostAddress() + ":" + packet.getPort());
+            sendError(clientSocket, packet.getAddress(), packet.getPort(), TftpPacket.ERR_UNKNOWN_TID, "Unknown transfer ID");
+        }
+    }
 
+    // Lingers after the final ACK so a retransmitted final block (our ACK was lost) is acknowledged again
+    private static void dally(DatagramSocket clientSocket, DatagramPacket packet, InetAddress serverAddress, int serverPort, DatagramPacket finalAck, RetransmitTimer timer) throws IOException {
+        try {
+            for (int i = 0; i < RetransmitTimer.MAX_RETRIES; i++) {
+                receiveFromServer(clientSocket, packet, serverAddress, serverPort, timer);
+                if (packet.getLength() >= 2 && packet.getData()[1] == TftpPacket.OP_DATA) {
+                    clientSocket.send(finalAck);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // The server has gone quiet, so it got our final ACK
+        }
+    }
 
+    // Sends an ERROR packet
+    private static void sendError(DatagramSocket clientSocket, InetAddress address, int port, short errorCode, String errorMessage) throws IOException {
+        ByteBuffer error = createError(errorCode, errorMessage);
+        clientSocket.send(new DatagramPacket(error.array(), error.limit(), address, port));
+    }
+
+    // Creates an ERROR packet
+    private static ByteBuffer createError(short errorCode, String errorMessage) {
+        return TftpPacket.putError(ByteBuffer.allocate(TftpPacket.HEADER_SIZE + errorMessage.length() + 1), errorCode, errorMessage);
+    }
+}
@@ -0,0 +1,318 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import codec.ReadAhead;
+
+/**
+ * Size-bounded cache of served file contents, shared by every RRQ.
+ * <p>
+ * Files are cached in fixed-size chunks held off-heap, keyed by path, modification time and size, so a file
+ * that changes is never served from stale chunks; the old version's chunks are dropped as soon as the new
+ * version is opened. The least recently used chunks are evicted once {@code -Dtftp.cacheSize} bytes are
+ * cached (default 64 MiB; 0 disables the cache). A chunk missing from the cache is read from disk once, by
+ * whichever transfer asks for it first, while concurrent transfers wanting the same chunk wait for that read.
+ * Lookups go through a concurrent map, so transfers of different chunks never wait for each other; only
+ * eviction, once per chunk added to a full cache, takes a lock.
+ * <p>
+ * Every block a transfer reads counts as one lookup: a hit if its chunk was cached (or already being loaded),
+ * a miss if the lookup had to start reading it. Chunks loaded ahead of any reader are counted as prefetches. A
+ * reader that must not wait for the disk, such as an event loop, checks {@link #isLoaded} first and has missing
+ * chunks loaded for it with {@link #load}; those lookups are counted too, so its blocks count twice.
+ * <p>
+ * A transfer entering a chunk also starts loading the chunks after it on the {@link ReadAhead} threads, as many
+ * as cover the configured read-ahead, so the disk is busy with them while the transfer waits for ACKs.
+ */
+class BlockCache {
+    static final long CACHE_SIZE = Long.getLong("tftp.cacheSize", 64L * 1024 * 1024);
+    static final int CHUNK_SIZE = 1024 * 1024;
+    static final BlockCache SHARED = new BlockCache(CACHE_SIZE, CHUNK_SIZE);
+    static final int READ_AHEAD_CHUNKS = ReadAhead.DEPTH > 0
+            ? Math.max(1, (int) ((long) ReadAhead.DEPTH * ReadAhead.CHUNK_SIZE / CHUNK_SIZE)) : 0;
+
+    private final long capacity;
+    private final int chunkSize;
+    private final Map<ChunkKey, Chunk> chunks = new ConcurrentHashMap<>();
+    private final Map<Path, ChunkKey> versions = new ConcurrentHashMap<>(); // version of each path last opened
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong(); // ticks once per lookup, to order chunks by last use
+    private final Object evictionLock = new Object();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong prefetches = new AtomicLong();
+
+    BlockCache(long capacity, int chunkSize) {
+        this.capacity = capacity;
+        this.chunkSize = chunkSize;
+    }
+
+    boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getPrefetches() {
+        return prefetches.get();
+    }
+
+    long getCachedBytes() {
+        return cachedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "block cache: " + getHits() + " hits, " + getMisses() + " misses, " + getPrefetches() + " chunks prefetched, "
+                + getCachedBytes() + " bytes cached";
+    }
+
+    /**
+     * Records the version of a file being opened, dropping the chunks of any other version of it.
+     *
+     * @param path The normalized path of the file.
+     * @param lastModified Its modification time.
+     * @param size Its size.
+     */
+    void validate(Path path, long lastModified, long size) {
+        ChunkKey version = new ChunkKey(path, lastModified, size, -1);
+        ChunkKey previous = versions.put(path, version);
+        if (previous == null || previous.sameVersion(version)) {
+            return;
+        }
+        for (Map.Entry<ChunkKey, Chunk> entry : chunks.entrySet()) {
+            if (entry.getKey().sameVersion(previous)) {
+                remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Fills the destination from the cached chunks of the file, loading missing chunks from disk.
+     *
+     * @param file The file being served.
+     * @param destination The buffer to fill up to its limit.
+     * @param position The file offset to read from.
+     * @return The number of bytes read; less than requested only at the end of the file.
+     * @throws IOException If a chunk cannot be read.
+     */
+    int read(ServedFile file, ByteBuffer destination, long position) throws IOException {
+        int total = 0;
+        while (destination.hasRemaining() && position < file.size()) {
+            long index = position / chunkSize;
+            Chunk chunk = chunk(file, index);
+            for (long next = index + 1; next <= index + READ_AHEAD_CHUNKS; next++) {
+                readAhead(file, next);
+            }
+            ByteBuffer data = chunk.load(file, index * chunkSize).duplicate();
+            int offset = (int) (position - index * chunkSize);
+            int count = Math.min(destination.remaining(), data.limit() - offset);
+            if (count <= 0) {
+                break; // the file shrank while being served
+            }
+            data.position(offset).limit(offset + count);
+            destination.put(data);
+            position += count;
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Whether the chunks holding a range are cached and loaded, so that {@link #read} would not touch the disk.
+     *
+     * @param file The file being served.
+     * @param position The file offset of the range.
+     * @param length The length of the range, which ends at the end of the file at the latest.
+     * @return True if reading the range would not wait for the disk.
+     */
+    boolean isLoaded(ServedFile file, long position, int length) {
+        long end = Math.min(position + length, file.size());
+        for (long index = position / chunkSize; index * chunkSize < end; index++) {
+            Chunk chunk = chunks.get(new ChunkKey(file.getPath(), file.lastModified(), file.size(), index));
+            if (chunk == null || !chunk.isLoaded()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Loads the chunks holding a range on the {@link ReadAhead} threads, or waits there for a load in progress.
+     *
+     * @param file The file being served.
+     * @param position The file offset of the range.
+     * @param length The length of the range, which ends at the end of the file at the latest.
+     * @param onLoaded Called on a read-ahead thread once the chunks are loaded, with null, or with the error that
+     *                 stopped it.
+     */
+    void load(ServedFile file, long position, int length, Consumer<IOException> onLoaded) {
+        ReadAhead.execute(() -> {
+            IOException failure = null;
+            try {
+                long end = Math.min(position + length, file.size());
+                for (long index = position / chunkSize; index * chunkSize < end; index++) {
+                    chunk(file, index).load(file, index * chunkSize);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            onLoaded.accept(failure);
+        });
+    }
+
+    private Chunk chunk(ServedFile file, long index) {
+        ChunkKey key = new ChunkKey(file.getPath(), file.lastModified(), file.size(), index);
+        Chunk chunk = chunks.get(key);
+        if (chunk == null) {
+            Chunk created = newChunk(file, index);
+            chunk = add(key, created);
+            if (chunk == created) {
+                misses.incrementAndGet();
+                return chunk;
+            }
+        }
+        hits.incrementAndGet();
+        chunk.lastUsed = clock.incrementAndGet();
+        return chunk;
+    }
+
+    // Starts loading a chunk in the background unless it is cached or being loaded already
+    private void readAhead(ServedFile file, long index) {
+        if (index * chunkSize >= file.size()) {
+            return;
+        }
+        ChunkKey key = new ChunkKey(file.getPath(), file.lastModified(), file.size(), index);
+        if (chunks.containsKey(key)) {
+            return;
+        }
+        Chunk chunk = newChunk(file, index);
+        if (add(key, chunk) != chunk) {
+            return; // another transfer added it first
+        }
+        prefetches.incrementAndGet();
+        ReadAhead.execute(() -> {
+            try {
+                chunk.load(file, index * chunkSize);
+            } catch (IOException e) {
+                // Left unloaded; the transfer that reaches it reads it itself and reports the error
+            }
+        });
+    }
+
+    private Chunk newChunk(ServedFile file, long index) {
+        return new Chunk((int) Math.min(chunkSize, file.size() - index * chunkSize));
+    }
+
+    // Caches the chunk unless one is cached under the key already; returns whichever is cached
+    private Chunk add(ChunkKey key, Chunk chunk) {
+        chunk.lastUsed = clock.incrementAndGet();
+        Chunk existing = chunks.putIfAbsent(key, chunk);
+        if (existing != null) {
+            return existing;
+        }
+        cachedBytes.addAndGet(chunk.length);
+        evict(key);
+        return chunk;
+    }
+
+    // Evicts least recently used chunks, but never the one just added: a reader is about to use it
+    private void evict(ChunkKey keep) {
+        if (cachedBytes.get() <= capacity) {
+            return;
+        }
+        synchronized (evictionLock) {
+            while (cachedBytes.get() > capacity && chunks.size() > 1) {
+                Map.Entry<ChunkKey, Chunk> eldest = null;
+                for (Map.Entry<ChunkKey, Chunk> entry : chunks.entrySet()) {
+                    if (!entry.getKey().equals(keep) && (eldest == null || entry.getValue().lastUsed < eldest.getValue().lastUsed)) {
+                        eldest = entry;
+                    }
+                }
+                if (eldest == null) {
+                    return;
+                }
+                remove(eldest.getKey(), eldest.getValue());
+            }
+        }
+    }
+
+    private void remove(ChunkKey key, Chunk chunk) {
+        if (chunks.remove(key, chunk)) {
+            cachedBytes.addAndGet(-chunk.length);
+        }
+    }
+
+    /**
+     * One chunk of a file, read from disk by the first reader that needs it.
+     */
+    private static final class Chunk {
+        private final int length;
+        private volatile long lastUsed; // clock tick of the latest lookup
+        private volatile ByteBuffer data; // null until loaded
+
+        private Chunk(int length) {
+            this.length = length;
+        }
+
+        private boolean isLoaded() {
+            return data != null;
+        }
+
+        private synchronized ByteBuffer load(ServedFile file, long position) throws IOException {
+            if (data == null) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+                file.readFromDisk(buffer, position);
+                buffer.flip();
+                data = buffer;
+            }
+            return data;
+        }
+    }
+
+    private static final class ChunkKey {
+        private final Path path;
+        private final long lastModified;
+        private final long size;
+        private final long index;
+
+        private ChunkKey(Path path, long lastModified, long size, long index) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.index = index;
+        }
+
+        private boolean sameVersion(ChunkKey other) {
+            return path.equals(other.path) && lastModified == other.lastModified && size == other.size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ChunkKey)) {
+                return false;
+            }
+            ChunkKey other = (ChunkKey) o;
+            return sameVersion(other) && index == other.index;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + Long.hashCode(lastModified);
+            result = 31 * result + Long.hashCode(size);
+            return 31 * result + Long.hashCode(index);
+        }
+    }
+}
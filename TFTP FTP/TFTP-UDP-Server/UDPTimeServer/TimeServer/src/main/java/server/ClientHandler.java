@@ -1,121 +1,283 @@
 package server;
 
+import codec.BufferPool;
+import codec.DigestIndex;
+import codec.IncomingFile;
+import codec.RetransmitTimer;
+import codec.TftpPacket;
+import metrics.Transfer;
+
 import java.io.*;
 import java.net.*;
-import java.util.Scanner;
-
-class ClientHandler extends Thread {
-    private DatagramSocket serverSocket;
-    private DatagramPacket receivedPacket;
-    private byte[] buffer;
-
-    private static final int BUFFER_SIZE = 512;
-    private static final byte OP_RRQ = 1;
-    private static final byte OP_WRQ = 2;
-    private static final byte OP_DATA = 3;
-    private static final byte OP_ACK = 4;
-    private static final byte OP_ERROR = 5;
-
-    public ClientHandler(DatagramSocket serverSocket, DatagramPacket receivedPacket, byte[] buffer) {
-        this.serverSocket = serverSocket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Serves a single RRQ or WRQ on its own ephemeral socket.
+ * <p>
+ * Following RFC 1350, every transfer is given a fresh transfer identifier (TID): the handler binds a new
+ * {@link DatagramSocket} on an ephemeral port and talks to the client only from there, so the well-known
+ * listen socket in {@link UDPSocketServer} is free to accept the next request straight away. Packets that
+ * arrive on the transfer socket from any address/port other than the requesting client are answered with
+ * an "Unknown transfer ID" error and otherwise ignored.
+ */
+class ClientHandler implements Runnable {
+    private final DatagramPacket receivedPacket;
+    private final InetAddress clientAddress;
+    private final int clientPort;
+    private DatagramSocket transferSocket;
+    private TransferOptions options;
+    private int blockSize;
+    private RetransmitTimer timer;
+    private Transfer transfer; // null until the request turns out to be a unicast RRQ or a WRQ
+    // Packet buffers come from the shared pool and are reused for every block, so a transfer allocates nothing per packet
+    private ByteBuffer receiveBuffer;
+    private final DatagramPacket receivePacket = new DatagramPacket(new byte[0], 0);
+    private ByteBuffer responseBuffer;
+    private ByteBuffer lastResponse; // last OACK/ACK sent, repeated when the client goes quiet
+    private final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+
+    public ClientHandler(DatagramPacket receivedPacket) {
         this.receivedPacket = receivedPacket;
-        this.buffer = buffer;
+        this.clientAddress = receivedPacket.getAddress();
+        this.clientPort = receivedPacket.getPort();
     }
 
     @Override
     public void run() {
-        try {
-            if (receivedPacket.getData()[1] == OP_RRQ) {
-                byte[] packetData = receivedPacket.getData();
-                int fileNameEndPos = 2;
-                for (; fileNameEndPos < receivedPacket.getLength(); fileNameEndPos++) {
-                    if (packetData[fileNameEndPos] == 0) {
-                        break;
-                    }
+        // A new socket bound to an ephemeral port is this transfer's TID
+        try (DatagramSocket socket = new DatagramSocket()) {
+            transferSocket = socket;
+            options = TransferOptions.parse(receivedPacket);
+            options.fitWindowTo(socket);
+            blockSize = options.getBlockSize();
+            timer = options.createRetransmitTimer();
+            receiveBuffer = BufferPool.SHARED.acquire(blockSize + TftpPacket.HEADER_SIZE);
+            responseBuffer = BufferPool.SHARED.acquire(TransferOptions.DEFAULT_BLOCK_SIZE);
+            if (receivedPacket.getData()[1] == TftpPacket.OP_RRQ) {
+                if (options.isMulticastRequested() && MulticastSession.join(options, new InetSocketAddress(clientAddress, clientPort))) {
+                    return; // the file's multicast session serves this client from its own TID
                 }
-                String fileName = new String(packetData, 2, fileNameEndPos - 2);
-                sendFile(serverSocket, receivedPacket.getAddress(), receivedPacket.getPort(), fileName);
-            } else if (receivedPacket.getData()[1] == OP_WRQ) {
-                byte[] packetData = receivedPacket.getData();
-                int fileNameEndPos = 2;
-                for (; fileNameEndPos < receivedPacket.getLength(); fileNameEndPos++) {
-                    if (packetData[fileNameEndPos] == 0) {
-                        break;
-                    }
+                transfer = UDPSocketServer.STATS.start(TftpPacket.OP_RRQ);
+                sendFile(options.getFileName());
+            } else if (receivedPacket.getData()[1] == TftpPacket.OP_WRQ) {
+                transfer = UDPSocketServer.STATS.start(TftpPacket.OP_WRQ);
+                if (!hasRoomFor(options.getTransferSize())) {
+                    System.out.println("No room for " + options.getFileName() + " (" + options.getTransferSize() + " bytes)");
+                    sendError(clientAddress, clientPort, TftpPacket.ERR_DISK_FULL, "Disk full or allocation exceeded");
+                    return;
                 }
-                String fileName = new String(packetData, 2, fileNameEndPos - 2);
-                sendInitialAck(serverSocket, receivedPacket.getAddress(), receivedPacket.getPort());
-                receiveFile(serverSocket, fileName);
+                // Clients that asked for options get an OACK in place of ACK 0
+                if (options.hasAcceptedOptions()) {
+                    sendOptionAck();
+                } else {
+                    sendInitialAck();
+                }
+                receiveFile(options.getFileName());
             } else {
                 System.out.println("Invalid opcode received: " + receivedPacket.getData()[1]);
             }
         } catch (IOException e) {
             System.err.println("Error while handling the client request: " + e.getMessage());
+        } finally {
+            if (transfer != null) {
+                transfer.finish();
+            }
+            BufferPool.SHARED.release(receiveBuffer);
+            BufferPool.SHARED.release(responseBuffer);
         }
     }
 
     /**
      * Sends a file to the client using TFTP protocol.
      *
-     * @param serverSocket The server socket used for communication.
-     * @param clientAddress The client's InetAddress.
-     * @param clientPort The client's port number.
      * @param fileName The name of the file to send.
      * @throws IOException If an I/O error occurs.
      */
 
-    private static void sendFile(DatagramSocket serverSocket, InetAddress clientAddress, int clientPort, String fileName) throws IOException {
+    private void sendFile(String fileName) throws IOException {
         String sendingFilesDirectory = "Sending Files"; // or "Retrieve Files"
         String filePath = System.getProperty("user.dir") + File.separator + sendingFilesDirectory + File.separator + fileName;
         File file = new File(filePath);
         //  System.out.println("File path: " + filePath);
 
         if (file.exists()) {
-            try (FileInputStream fis = new FileInputStream(filePath)) {
-                short blockNumber = 1;
-                int bytesRead;
-                byte[] dataBuffer = new byte[BUFFER_SIZE];
+            Path served = file.toPath();
+            if (options.getDigestAlgorithm() != null) {
+                // The digest of the file itself, not of a compressed variant: the client checks what it stores. As on
+                // the NIO engine, a file not in the index is hashed in the background and goes out without a digest this
+                // time, rather than keeping the client waiting for its OACK while the whole file is read
+                String digest = DigestIndex.SHARED.digestOf(served, options.getDigestAlgorithm(), false);
+                if (digest != null) {
+                    options.acceptDigest(digest);
+                }
+            }
+            if (options.getTransferSize() >= 0) {
+                options.acceptTransferSize(Files.size(served));
+            }
+            if (options.isCompressionRequested()) {
+                Path variant = CompressedVariants.SHARED.variantOf(served, true);
+                if (variant != null) {
+                    options.acceptCompression();
+                    served = variant;
+                }
+            }
+            int windowSize = options.getWindowSize();
+            // Each slot keeps room for the DATA header in front of the block, so blocks are sent without copying
+            ByteBuffer[] window = new ByteBuffer[windowSize];
+            for (int i = 0; i < windowSize; i++) {
+                window[i] = BufferPool.SHARED.acquire(blockSize + TftpPacket.HEADER_SIZE);
+            }
+            try (ServedFile source = new ServedFile(served)) {
+                if (options.hasAcceptedOptions()) {
+                    // The client confirms the OACK with ACK 0 before DATA 1 is sent
+                    sendOptionAck();
+                    awaitOptionAckConfirmation();
+                }
 
-                while ((bytesRead = fis.read(dataBuffer)) != -1) {
-                    sendData(serverSocket, clientAddress, clientPort, blockNumber, dataBuffer, bytesRead);
-                    receiveAcknowledgments(serverSocket, blockNumber);
+                int[] windowLengths = new int[windowSize];
+                int firstUnacked = 1; // oldest block the client has not acknowledged yet
+                int nextBlock = 1; // next block to put on the wire
+                int lastRead = 0; // highest block read from the file so far
+                int finalBlock = -1; // the short (possibly empty) block that ends the transfer, once read
+                long[] sentAt = new long[windowSize];
+                boolean[] resent = new boolean[windowSize];
+                int rewoundAt = -1; // firstUnacked value we already rewound to on a duplicate ACK
+
+                // Keep up to windowSize blocks in flight (RFC 7440); an ACK for an earlier block than the last one sent rewinds to the gap
+                while (true) {
+                    while (nextBlock < firstUnacked + windowSize && (finalBlock == -1 || nextBlock <= finalBlock)) {
+                        int slot = nextBlock % windowSize;
+                        if (nextBlock > lastRead) {
+                            windowLengths[slot] = source.read(TftpPacket.payload(window[slot], blockSize), (long) (nextBlock - 1) * blockSize);
+                            lastRead = nextBlock;
+                            resent[slot] = false;
+                            if (windowLengths[slot] < blockSize) {
+                                finalBlock = nextBlock;
+                            }
+                        } else {
+                            resent[slot] = true;
+                        }
+                        sentAt[slot] = System.nanoTime();
+                        sendData(window[slot], nextBlock, windowLengths[slot], resent[slot]);
+                        nextBlock++;
+                    }
 
-                    blockNumber++;
+                    int ackedBlock;
+                    try {
+                        ackedBlock = toBlockIndex(receiveAcknowledgments(), firstUnacked - 1, nextBlock - 1);
+                    } catch (SocketTimeoutException e) {
+                        checkRetries();
+                        nextBlock = firstUnacked; // resend everything still unacknowledged
+                        continue;
+                    }
+                    if (ackedBlock < 0) {
+                        continue; // not for anything currently in flight
+                    }
+                    if (ackedBlock == firstUnacked - 1) {
+                        // A duplicate ACK. Answering each one with a resend would double every block from here on
+                        // (the Sorcerer's Apprentice bug), so lock-step ignores them and a window rewinds at most once per position
+                        if (windowSize > 1 && rewoundAt != firstUnacked) {
+                            rewoundAt = firstUnacked;
+                            nextBlock = firstUnacked;
+                        }
+                        continue;
+                    }
+                    int ackedSlot = ackedBlock % windowSize;
+                    if (!resent[ackedSlot]) {
+                        onRttSample(System.nanoTime() - sentAt[ackedSlot]); // Karn's rule: retransmitted blocks give ambiguous samples
+                    }
+                    timer.onProgress();
+                    if (ackedBlock == finalBlock) {
+                        break;
+                    }
+                    firstUnacked = ackedBlock + 1;
+                    nextBlock = firstUnacked;
+                }
+                transfer.complete();
+                System.out.println("File transfer completed for " + fileName + (options.isCompressed() ? ", deflated" : "") + " (" + transfer + ")");
+                if (BlockCache.SHARED.isEnabled()) {
+                    System.out.println(BlockCache.SHARED);
                 }
-                System.out.println("File transfer completed for " + fileName);
 
             } catch (IOException e) {
                 System.out.println("Error reading from file: " + e.getMessage());
+            } finally {
+                for (ByteBuffer slot : window) {
+                    BufferPool.SHARED.release(slot);
+                }
             }
         } else {
             System.out.println("File does not exist: " + fileName);
             short errorCode = 1; // File not found error
             String errorMessage = "File not found: " + fileName;
-            sendError(serverSocket, clientAddress, clientPort, errorCode, errorMessage);
+            sendError(clientAddress, clientPort, errorCode, errorMessage);
         }
     }
     /**
-     * Sends an error message to the client using TFTP protocol.
+     * Sends an error message using TFTP protocol.
      *
-     * @param serverSocket The server socket used for communication.
-     * @param clientAddress The client's InetAddress.
-     * @param clientPort The client's port number.
+     * @param address The destination InetAddress.
+     * @param port The destination port number.
      * @param errorCode The error code corresponding to the error message.
-     * @param errorMessage The error message to send to the client.
+     * @param errorMessage The error message to send.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void sendError(InetAddress address, int port, short errorCode, String errorMessage) throws IOException {
+        transfer.error(errorCode);
+        ByteBuffer errorPacket = BufferPool.SHARED.acquire(TftpPacket.HEADER_SIZE + errorMessage.length() + 1);
+        try {
+            send(TftpPacket.putError(errorPacket, errorCode, errorMessage), address, port);
+        } finally {
+            BufferPool.SHARED.release(errorPacket);
+        }
+    }
+
+    /**
+     * Sends a packet to the client.
+     *
+     * @param packet The packet, from index 0 to its limit.
      * @throws IOException If an I/O error occurs.
      */
-    private static void sendError(DatagramSocket serverSocket, InetAddress clientAddress, int clientPort, short errorCode, String errorMessage) throws IOException {
-        byte[] errorData = errorMessage.getBytes();
-        byte[] errorPacketData = new byte[4 + errorData.length + 1];
-        errorPacketData[0] = 0;
-        errorPacketData[1] = OP_ERROR;
-        errorPacketData[2] = (byte) (errorCode >> 8);
-        errorPacketData[3] = (byte) (errorCode);
-        System.arraycopy(errorData, 0, errorPacketData, 4, errorData.length);
-        errorPacketData[errorPacketData.length - 1] = 0;
-
-        DatagramPacket errorPacket = new DatagramPacket(errorPacketData, errorPacketData.length, clientAddress, clientPort);
-        serverSocket.send(errorPacket);
+    private void send(ByteBuffer packet) throws IOException {
+        send(packet, clientAddress, clientPort);
+    }
+
+    private void send(ByteBuffer packet, InetAddress address, int port) throws IOException {
+        sendPacket.setData(packet.array(), 0, packet.limit());
+        sendPacket.setAddress(address);
+        sendPacket.setPort(port);
+        transferSocket.send(sendPacket);
+    }
+
+    /**
+     * Receives the next packet from the client's TID.
+     * <p>
+     * Datagrams from any other source are answered with an "Unknown transfer ID" error without disturbing
+     * the transfer, as required by RFC 1350, and datagrams shorter than a TFTP header are dropped.
+     *
+     * @return The transfer's receive buffer holding the packet, valid until the next receive.
+     * @throws SocketTimeoutException If nothing arrives from the client within the current retransmission timeout.
+     * @throws IOException If an I/O error occurs.
+     */
+    private ByteBuffer receiveFromClient() throws IOException {
+        transferSocket.setSoTimeout(timer.getTimeoutMillis());
+        while (true) {
+            receivePacket.setData(receiveBuffer.array(), 0, receiveBuffer.capacity());
+            transferSocket.receive(receivePacket);
+            if (receivePacket.getAddress().equals(clientAddress) && receivePacket.getPort() == clientPort) {
+                if (receivePacket.getLength() < TftpPacket.HEADER_SIZE) {
+                    continue; // too short to be a TFTP packet, like the NIO engine drops it
+                }
+                receiveBuffer.clear();
+                receiveBuffer.limit(receivePacket.getLength());
+                return receiveBuffer;
+            }
+            System.out.println("Rejected packet from unknown TID " + receivePacket.getAddress().getHostAddress() + ":" + receivePacket.getPort());
+            sendError(receivePacket.getAddress(), receivePacket.getPort(), TftpPacket.ERR_UNKNOWN_TID, "Unknown transfer ID");
+        }
     }
 
 
@@ -178,41 +340,108 @@ class ClientHandler extends Thread {
     /**
      * Receives a file from the client using TFTP protocol.
      *
-     * @param serverSocket The server socket used for communication.
      * @param fileName The name of the file to receive.
      * @throws IOException If an I/O error occurs.
      */
-    private static void receiveFile(DatagramSocket serverSocket, String fileName) throws IOException {
+    private void receiveFile(String fileName) throws IOException {
         String receivingFilesDirectory = "Receiving Files"; // or "Upload Files"
-        try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-             FileOutputStream fos = new FileOutputStream(System.getProperty("user.dir") + File.separator + receivingFilesDirectory + File.separator + fileName)) {
-            short blockNumber = 1;
+        Path target = Paths.get(System.getProperty("user.dir"), receivingFilesDirectory, fileName);
+        try (IncomingFile incomingFile = new IncomingFile(target)) {
+            if (options.isCompressed()) {
+                incomingFile.inflate();
+            }
+            if (options.getDigestAlgorithm() != null) {
+                incomingFile.digest(options.getDigestAlgorithm());
+            }
+            int blockNumber = 1; // counts on past 65535 while the wire number rolls over to 0
             boolean done = false;
+            int windowSize = options.getWindowSize();
+            int blocksSinceAck = 0;
+            boolean gapAcked = false;
+            long windowAckedAt = 0; // when the last window was ACKed, for an RTT sample; 0 when the sample would be ambiguous
 
             while (!done) {
-                byte[] dataBuffer = new byte[BUFFER_SIZE + 4];
-                DatagramPacket dataPacket = new DatagramPacket(dataBuffer, dataBuffer.length);
-                serverSocket.receive(dataPacket);
-
-                if (dataPacket.getData()[1] == OP_DATA) {
-                    short receivedBlockNumber = (short) (((dataPacket.getData()[2] & 0xFF) << 8) | (dataPacket.getData()[3] & 0xFF));
-                    if (receivedBlockNumber == blockNumber) {
-                        int dataSize = dataPacket.getLength() - 4;
-                        byteArrayOutputStream.write(dataBuffer, 4, dataSize);
-                        sendAcknowledgments(serverSocket, dataPacket.getAddress(), dataPacket.getPort(), blockNumber);
-                        blockNumber++;
+                ByteBuffer dataPacket;
+                try {
+                    dataPacket = receiveFromClient();
+                } catch (SocketTimeoutException e) {
+                    checkRetries();
+                    // Tell the client where we are: ACK the in-order blocks of a partial window, or repeat the last response
+                    if (blocksSinceAck > 0) {
+                        sendAcknowledgments(blockNumber - 1);
+                        blocksSinceAck = 0;
+                    } else {
+                        resendLastResponse();
+                    }
+                    windowAckedAt = 0;
+                    continue;
+                }
+
+                int receivedOpcode = TftpPacket.opcode(dataPacket);
 
-                        if (dataSize < BUFFER_SIZE) {
+                if (receivedOpcode == TftpPacket.OP_DATA) {
+                    int receivedBlockNumber = TftpPacket.blockNumber(dataPacket);
+                    if (receivedBlockNumber == (blockNumber & 0xFFFF)) {
+                        int dataSize = TftpPacket.payloadLength(dataPacket);
+                        incomingFile.write(dataPacket.array(), TftpPacket.HEADER_SIZE, dataSize);
+                        transfer.blockReceived(dataSize);
+                        blocksSinceAck++;
+                        gapAcked = false;
+                        if (windowAckedAt != 0) {
+                            onRttSample(System.nanoTime() - windowAckedAt);
+                            windowAckedAt = 0;
+                        }
+                        timer.onProgress();
+
+                        if (dataSize < blockSize) {
+                            String digest = options.getDigestAlgorithm() != null ? incomingFile.finishDigest() : null;
+                            if (!options.matchesExpectedDigest(digest)) {
+                                System.out.println("Digest mismatch for " + fileName + ": expected " + options.getExpectedDigest() + ", received " + digest);
+                                sendError(clientAddress, clientPort, TftpPacket.ERR_NOT_DEFINED, "Digest mismatch");
+                                break; // the received file is discarded
+                            }
+                            if (!options.matchesTransferSize(incomingFile.size())) {
+                                System.out.println("Size mismatch for " + fileName + ": announced " + options.getTransferSize() + " bytes, received " + incomingFile.size());
+                                sendError(clientAddress, clientPort, TftpPacket.ERR_NOT_DEFINED, "File size does not match tsize");
+                                break;
+                            }
                             done = true;
+                            incomingFile.commit(); // the final ACK only goes out once the file is in place
+                            transfer.complete();
+                            if (digest != null) {
+                                DigestIndex.SHARED.put(target, digest); // hashed on the way in, so an RRQ for it will not hash it again
+                            }
                         }
+                        // ACK once per window (RFC 7440), and always for the final block
+                        if (done || blocksSinceAck == windowSize) {
+                            sendAcknowledgments(blockNumber);
+                            blocksSinceAck = 0;
+                            windowAckedAt = System.nanoTime();
+                        }
+                        blockNumber++;
+                    } else if (isAhead(receivedBlockNumber, blockNumber) ? !gapAcked : windowSize == 1) {
+                        // A gap (once per gap), or a duplicate in lock-step: re-ACK the last in-order block so the sender resumes after it.
+                        // Duplicates within a window go unanswered: the sender would take the re-ACK for a loss and resend the next window,
+                        // whose duplicates would start it over. A lost window ACK is repeated by our own timeout instead
+                        sendAcknowledgments(blockNumber - 1);
+                        blocksSinceAck = 0;
+                        gapAcked = true;
+                        windowAckedAt = 0;
                     }
+                } else if (receivedOpcode == TftpPacket.OP_ERROR) {
+                    transfer.error(TftpPacket.errorCode(dataPacket));
+                    System.out.println("Error " + TftpPacket.errorCode(dataPacket) + ": " + TftpPacket.errorMessage(dataPacket));
+                    break; // Stop receiving
                 } else {
-                    System.out.println("Invalid opcode received: " + dataPacket.getData()[1]);
+                    System.out.println("Invalid opcode received: " + receivedOpcode);
                     break;
                 }
             }
-            fos.write(byteArrayOutputStream.toByteArray());
-            System.out.println("File received: " + fileName);
+            if (done) {
+                System.out.println("File received: " + fileName + (options.isCompressed() ? ", deflated" : "")
+                        + (options.getExpectedDigest() != null ? ", " + options.getDigestAlgorithm() + " verified" : "") + " (" + transfer + ")");
+                dally();
+            }
         } catch (IOException e) {
             System.out.println("Error writing to file: " + e.getMessage());
         }
@@ -221,82 +450,187 @@ class ClientHandler extends Thread {
     /**
      * Sends data to the client using TFTP protocol.
      *
-     * @param serverSocket The server socket used for communication.
-     * @param clientAddress The client's InetAddress.
-     * @param clientPort The client's port number.
+     * @param slot The window slot holding the block after room for the header.
      * @param blockNumber The current block number.
-     * @param data The data to send.
      * @param dataLength The length of the data to send.
+     * @param retransmission Whether the block was sent before.
      * @throws IOException If an I/O error occurs.
      */
-    private static void sendData(DatagramSocket serverSocket, InetAddress clientAddress, int clientPort, short blockNumber, byte[] data, int dataLength) throws IOException {
-        byte[] sendData = new byte[dataLength + 4];
-        sendData[0] = 0;
-        sendData[1] = OP_DATA;
-        sendData[2] = (byte) (blockNumber >> 8);
-        sendData[3] = (byte) (blockNumber);
-        System.arraycopy(data, 0, sendData, 4, dataLength);
-
-        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, clientAddress, clientPort);
-        serverSocket.send(sendPacket);
+    private void sendData(ByteBuffer slot, int blockNumber, int dataLength, boolean retransmission) throws IOException {
+        send(TftpPacket.putData(slot, blockNumber, dataLength));
+        transfer.blockSent(dataLength, retransmission);
     }
     /**
      * Receives acknowledgments from the client using TFTP protocol.
      *
-     * @param serverSocket The server socket used for communication.
-     * @param blockNumber The expected block number.
+     * @return The acknowledged block number as sent on the wire (0-65535).
      * @throws IOException If an I/O error occurs or an invalid ACK is received.
      */
 
-    private static void receiveAcknowledgments(DatagramSocket serverSocket, short blockNumber) throws IOException {
-        byte[] ackBuffer = new byte[4];
-        DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
-        serverSocket.receive(ackPacket);
+    private int receiveAcknowledgments() throws IOException {
+        ByteBuffer ackPacket = receiveFromClient();
 
-        if (ackPacket.getData()[1] != OP_ACK || (((ackPacket.getData()[2] & 0xFF) << 8) | (ackPacket.getData()[3] & 0xFF)) != blockNumber) {
+        if (TftpPacket.opcode(ackPacket) == TftpPacket.OP_ERROR) {
+            // e.g. a client rejecting our OACK with error 8
+            transfer.error(TftpPacket.errorCode(ackPacket));
+            throw new IOException("Error from client: " + TftpPacket.errorMessage(ackPacket));
+        }
+        if (TftpPacket.opcode(ackPacket) != TftpPacket.OP_ACK) {
             throw new IOException("Invalid ACK received");
         }
+        return TftpPacket.blockNumber(ackPacket);
+    }
+
+    /**
+     * Maps a 16-bit block number from the wire onto the sender's block counter.
+     *
+     * @param wireBlock The block number carried by the packet.
+     * @param low The lowest counter value the packet may refer to.
+     * @param high The highest counter value the packet may refer to.
+     * @return The matching counter value, or -1 if the block lies outside [low, high].
+     */
+    static int toBlockIndex(int wireBlock, int low, int high) {
+        int candidate = low + ((wireBlock - low) & 0xFFFF);
+        return candidate <= high ? candidate : -1;
+    }
+
+    /**
+     * Tells whether a received block number lies ahead of the expected one (a gap) rather than behind it (a duplicate).
+     *
+     * @param receivedBlock The block number carried by the packet.
+     * @param expectedBlock The next in-order block number; only its low 16 bits are compared.
+     * @return True if blocks were skipped.
+     */
+    static boolean isAhead(int receivedBlock, int expectedBlock) {
+        return ((receivedBlock - expectedBlock) & 0xFFFF) < 0x8000;
+    }
+
+    /**
+     * Tells whether a WRQ's announced size (RFC 2349 tsize) fits where uploads are stored, so a file that cannot
+     * is refused before any of it is sent rather than when the disk runs out.
+     *
+     * @param size The announced size, or -1 if the client did not send one.
+     * @return False only if the size is known and exceeds the usable space.
+     */
+    static boolean hasRoomFor(long size) {
+        if (size <= 0) {
+            return true;
+        }
+        try {
+            return size <= Files.getFileStore(Paths.get(System.getProperty("user.dir"), "Receiving Files")).getUsableSpace();
+        } catch (IOException e) {
+            return true; // the upload itself will report why the directory is unusable
+        }
     }
 
 
     /**
      * Sends acknowledgments to the client using TFTP protocol.
      *
-     * @param serverSocket The server socket used for communication.
-     * @param clientAddress The client's InetAddress.
-     * @param clientPort The client's port number.
      * @param blockNumber The block number being acknowledged.
      * @throws IOException If an I/O error occurs.
      */
 
-    private static void sendAcknowledgments(DatagramSocket serverSocket, InetAddress clientAddress, int clientPort, short blockNumber) throws IOException {
-        byte[] ackData = new byte[4];
-        ackData[0] = 0;
-        ackData[1] = OP_ACK;
-        ackData[2] = (byte) (blockNumber >> 8);
-        ackData[3] = (byte) (blockNumber);
-
-        DatagramPacket ackPacket = new DatagramPacket(ackData, ackData.length, clientAddress, clientPort);
-        serverSocket.send(ackPacket);
+    private void sendAcknowledgments(int blockNumber) throws IOException {
+        lastResponse = TftpPacket.putAck(responseBuffer, blockNumber);
+        send(lastResponse);
     }
 
     /**
      * Sends the initial ACK for a write request (WRQ) using TFTP protocol.
      *
-     * @param serverSocket The server socket used for communication.
-     * @param clientAddress The client's InetAddress.
-     * @param clientPort The client's port number.
      * @throws IOException If an I/O error occurs.
      */
 
-    private static void sendInitialAck(DatagramSocket serverSocket, InetAddress clientAddress, int clientPort) throws IOException {
-        byte[] ackData = new byte[4];
-        ackData[0] = 0;
-        ackData[1] = OP_ACK;
-        ackData[2] = 0;
-        ackData[3] = 0;
+    private void sendInitialAck() throws IOException {
+        sendAcknowledgments(0);
+    }
+
+    /**
+     * Sends an option acknowledgment (OACK) listing the negotiated options, as described in RFC 2347.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+
+    private void sendOptionAck() throws IOException {
+        lastResponse = options.putOack(responseBuffer);
+        send(lastResponse);
+    }
+
+    /**
+     * Waits for the ACK 0 that confirms an OACK on a read request, repeating the OACK on timeout.
+     *
+     * @throws IOException If an I/O error occurs, the client answers with an error or the retries run out.
+     */
+    private void awaitOptionAckConfirmation() throws IOException {
+        long sentAt = System.nanoTime();
+        boolean resent = false;
+        while (true) {
+            try {
+                if (receiveAcknowledgments() == 0) {
+                    if (!resent) {
+                        onRttSample(System.nanoTime() - sentAt);
+                    }
+                    timer.onProgress();
+                    return;
+                }
+            } catch (SocketTimeoutException e) {
+                checkRetries();
+                resendLastResponse();
+                resent = true;
+            }
+        }
+    }
+
+    /**
+     * Repeats the last OACK/ACK sent to the client.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    private void resendLastResponse() throws IOException {
+        if (lastResponse != null) {
+            send(lastResponse);
+            transfer.retransmit();
+        }
+    }
+
+    /**
+     * Feeds a round-trip measurement to the retransmission timer and the server's RTT histogram.
+     *
+     * @param rttNanos The time between sending a packet that was not retransmitted and receiving its response.
+     */
+    private void onRttSample(long rttNanos) {
+        timer.onRttSample(rttNanos);
+        transfer.rtt(rttNanos);
+    }
+
+    /**
+     * Charges a timeout against the transfer's retry budget.
+     *
+     * @throws IOException If the retry budget is exhausted.
+     */
+    private void checkRetries() throws IOException {
+        if (!timer.onTimeout()) {
+            transfer.timedOut();
+            throw new IOException("Transfer timed out after " + RetransmitTimer.MAX_RETRIES + " retries");
+        }
+    }
 
-        DatagramPacket ackPacket = new DatagramPacket(ackData, ackData.length, clientAddress, clientPort);
-        serverSocket.send(ackPacket);
+    /**
+     * Lingers after the final ACK of an upload so that, if it was lost, the client's retransmitted final block
+     * is acknowledged again instead of leaving the client to time out.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    private void dally() throws IOException {
+        try {
+            for (int i = 0; i < RetransmitTimer.MAX_RETRIES; i++) {
+                if (TftpPacket.opcode(receiveFromClient()) == TftpPacket.OP_DATA) {
+                    resendLastResponse();
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // The client has gone quiet, so it got our final ACK
+        }
     }
 }
@@ -0,0 +1,147 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Deflated copies of served files, for RRQs that negotiated {@code compress=deflate}.
+ * <p>
+ * A compressed transfer sends the zlib stream of the file rather than the file itself. The stream is written to
+ * {@code -Dtftp.compressCacheDir} once per version of the file (default {@code tftp-deflate} in the temporary
+ * directory) and then served like any other file: by offset, through the {@link BlockCache} or mappings, with
+ * retransmissions re-reading it. A hot file is therefore compressed once, not once per client.
+ * <p>
+ * Files up to {@code -Dtftp.compressInlineLimit} bytes (default 4 MiB) are compressed while the requesting handler
+ * waits, unless it runs on an event loop. Larger files are compressed on a background thread; until that finishes,
+ * their RRQs are served uncompressed. A file that deflates to more than 90% of its size is always served as is.
+ * The variant of an older version of a file is replaced when the new version is first requested.
+ */
+class CompressedVariants {
+    static final CompressedVariants SHARED = new CompressedVariants(
+            Paths.get(System.getProperty("tftp.compressCacheDir", Paths.get(System.getProperty("java.io.tmpdir"), "tftp-deflate").toString())),
+            Long.getLong("tftp.compressInlineLimit", 4L << 20));
+    private static final double MAX_RATIO = 0.9;
+
+    private final Path directory;
+    private final long inlineLimit;
+    private final ConcurrentMap<Path, Variant> variants = new ConcurrentHashMap<>();
+    private final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tftp-deflate");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    CompressedVariants(Path directory, long inlineLimit) {
+        this.directory = directory;
+        this.inlineLimit = inlineLimit;
+    }
+
+    /**
+     * Finds or starts the compressed variant of the current version of a file.
+     *
+     * @param source The file to serve.
+     * @param mayBlock Whether the caller can wait for a small file to be compressed; false on an event loop.
+     * @return The variant to serve instead of the file, or null to serve the file uncompressed.
+     * @throws IOException If the file cannot be read.
+     */
+    Path variantOf(Path source, boolean mayBlock) throws IOException {
+        Path path = source.toAbsolutePath().normalize();
+        long size = Files.size(path);
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+
+        Variant created = new Variant(size, lastModified);
+        Variant variant = variants.compute(path, (key, existing) ->
+                existing != null && existing.size == size && existing.lastModified == lastModified ? existing : created);
+        if (variant == created) {
+            if (mayBlock && size <= inlineLimit) {
+                build(path, created);
+            } else {
+                background.execute(() -> build(path, created));
+            }
+        }
+        return variant.file.isDone() && !variant.file.isCompletedExceptionally() ? variant.file.join() : null;
+    }
+
+    // Writes the variant, or reuses one left by an earlier run, and completes the future with it (null if not worth serving)
+    private void build(Path path, Variant variant) {
+        try {
+            String prefix = UUID.nameUUIDFromBytes(path.toString().getBytes(StandardCharsets.UTF_8)) + "-";
+            Path target = directory.resolve(prefix + variant.size + "-" + variant.lastModified + ".deflate");
+            if (!Files.exists(target)) {
+                Files.createDirectories(directory);
+                deleteOlderVersions(prefix);
+                Path temporary = directory.resolve("." + target.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".part");
+                try {
+                    deflate(path, temporary);
+                    try {
+                        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } finally {
+                    Files.deleteIfExists(temporary);
+                }
+            }
+            long compressedSize = Files.size(target);
+            if (compressedSize > variant.size * MAX_RATIO) {
+                System.out.println("Serving " + path.getFileName() + " uncompressed: it deflates to " + compressedSize + " of " + variant.size + " bytes");
+                variant.file.complete(null);
+            } else {
+                System.out.println("Compressed variant of " + path.getFileName() + ": " + compressedSize + " of " + variant.size + " bytes");
+                variant.file.complete(target);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to compress " + path + ": " + e.getMessage());
+            variant.file.completeExceptionally(e);
+        }
+    }
+
+    private static void deflate(Path source, Path target) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = new DeflaterOutputStream(Files.newOutputStream(target), deflater, 64 * 1024)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void deleteOlderVersions(String prefix) throws IOException {
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, prefix + "*.deflate")) {
+            for (Path file : stale) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static final class Variant {
+        final long size;
+        final long lastModified;
+        final CompletableFuture<Path> file = new CompletableFuture<>();
+
+        Variant(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package server;
+
+import codec.RetransmitTimer;
+import codec.TftpPacket;
+import metrics.Transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One RFC 2090 multicast transfer of a file, shared by every client that reads it at the same time.
+ * <p>
+ * DATA goes to a multicast group rather than to each client. The clients queue up in the order they joined,
+ * and only the one at the head (the master client) ACKs. Each ACK names the highest block the master holds
+ * contiguously from the start, and the server answers with the next block, which every member of the group
+ * receives. Once the master has the whole file it ACKs the final block and leaves. The next client in the queue
+ * is then told with an OACK that it is the master, and it ACKs its way through the blocks it missed. A file
+ * that 400 clients request together thus crosses the network roughly once, plus whatever the late joiners
+ * missed.
+ * <p>
+ * The multicast value in each OACK is {@code address,port,mc}, where {@code mc} is 1 for the master client.
+ * Any client, master or not, that ACKs the final block is finished and leaves the queue. A master that stops
+ * answering is dropped once its retries are exhausted, and the session ends when the queue is empty.
+ * Multicast is offered only when {@code -Dtftp.multicastAddress} is set. Sessions use that group address and
+ * the ones after it, one group per concurrent session, on port {@code -Dtftp.multicastPort} (default 1758).
+ * Transfers are lock-step, use 16-bit block numbers, and are limited to 65535 blocks; larger files are served
+ * by unicast.
+ */
+class MulticastSession implements Runnable {
+    static final String GROUP_ADDRESS = System.getProperty("tftp.multicastAddress");
+    static final int GROUP_PORT = Integer.getInteger("tftp.multicastPort", 1758);
+    static final int GROUP_TTL = Integer.getInteger("tftp.multicastTtl", 1);
+    static final String GROUP_INTERFACE = System.getProperty("tftp.multicastInterface");
+    static final boolean ENABLED = GROUP_ADDRESS != null;
+    private static final int MAX_BLOCKS = 0xFFFF;
+
+    // Active sessions by file name and block size; clients only share a session when their blocks match
+    private static final Map<String, MulticastSession> SESSIONS = new HashMap<>();
+
+    private final String key;
+    private final ServedFile file;
+    private final int blockSize;
+    private final int finalBlock;
+    private final InetAddress groupAddress;
+    private final InetSocketAddress groupDestination;
+    private final MulticastSocket socket;
+    private final RetransmitTimer timer = new RetransmitTimer();
+    private Transfer transfer; // the whole session counts as one transfer, since its DATA reaches every member at once
+    private final Queue<InetSocketAddress> joins = new ConcurrentLinkedQueue<>();
+    private final LinkedList<InetSocketAddress> clients = new LinkedList<>(); // the head is the master client
+    private final ByteBuffer sendBuffer; // reused for every DATA, OACK and ERROR the session sends
+    private final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+    private InetSocketAddress master; // null until the head of the queue has been told it is the master
+    private int lastSentBlock = -1; // block last sent to the group, or -1 while the master has not ACKed yet
+    private long sentAt;
+    private boolean resent;
+
+    private MulticastSession(String key, ServedFile file, int blockSize, InetAddress groupAddress) throws IOException {
+        this.key = key;
+        this.file = file;
+        this.blockSize = blockSize;
+        this.finalBlock = (int) (file.size() / blockSize) + 1;
+        this.groupAddress = groupAddress;
+        this.groupDestination = new InetSocketAddress(groupAddress, GROUP_PORT);
+        this.sendBuffer = ByteBuffer.allocate(Math.max(blockSize, TransferOptions.DEFAULT_BLOCK_SIZE) + TftpPacket.HEADER_SIZE);
+        // The session socket is the server's TID for every client in the session
+        this.socket = new MulticastSocket();
+        socket.setTimeToLive(GROUP_TTL);
+        if (GROUP_INTERFACE != null) {
+            socket.setNetworkInterface(NetworkInterface.getByName(GROUP_INTERFACE));
+        }
+    }
+
+    /**
+     * Adds a client to the multicast session for its file, starting one if none is running.
+     *
+     * @param options The client's RRQ, which asked for the multicast option.
+     * @param client The client's TID.
+     * @return False if the file cannot be multicast (it does not exist or is too large), in which case the caller
+     * serves it by unicast.
+     * @throws IOException If a new session cannot be started.
+     */
+    static boolean join(TransferOptions options, InetSocketAddress client) throws IOException {
+        String sendingFilesDirectory = "Sending Files"; // or "Retrieve Files"
+        File source = new File(System.getProperty("user.dir") + File.separator + sendingFilesDirectory + File.separator + options.getFileName());
+        if (!source.exists() || source.length() / options.getBlockSize() + 1 > MAX_BLOCKS) {
+            return false;
+        }
+        String key = options.getFileName() + "/" + options.getBlockSize();
+        synchronized (SESSIONS) {
+            MulticastSession session = SESSIONS.get(key);
+            if (session == null) {
+                ServedFile file = new ServedFile(source.toPath());
+                try {
+                    session = new MulticastSession(key, file, options.getBlockSize(), nextGroupAddress());
+                } catch (IOException e) {
+                    file.close();
+                    throw e;
+                }
+                SESSIONS.put(key, session);
+                Thread thread = new Thread(session, "tftp-multicast-" + key);
+                thread.setDaemon(true);
+                thread.start();
+                System.out.println("Multicasting " + options.getFileName() + " to " + session.groupAddress.getHostAddress() + ":" + GROUP_PORT);
+            }
+            session.joins.add(client);
+        }
+        return true;
+    }
+
+    // The configured group address, or the first one after it that no running session is using
+    private static InetAddress nextGroupAddress() throws IOException {
+        byte[] address = InetAddress.getByName(GROUP_ADDRESS).getAddress();
+        for (int offset = 0; offset < 256; offset++) {
+            byte[] candidate = address.clone();
+            candidate[candidate.length - 1] += offset;
+            InetAddress groupAddress = InetAddress.getByAddress(candidate);
+            boolean inUse = false;
+            for (MulticastSession session : SESSIONS.values()) {
+                inUse |= session.groupAddress.equals(groupAddress);
+            }
+            if (!inUse) {
+                return groupAddress;
+            }
+        }
+        throw new IOException("No free multicast group address after " + GROUP_ADDRESS);
+    }
+
+    @Override
+    public void run() {
+        transfer = UDPSocketServer.STATS.start(TftpPacket.OP_RRQ);
+        try {
+            ByteBuffer receiveBuffer = ByteBuffer.allocate(TftpPacket.MAX_PACKET_SIZE);
+            DatagramPacket packet = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
+            while (true) {
+                acceptJoins();
+                if (clients.isEmpty()) {
+                    synchronized (SESSIONS) {
+                        if (joins.isEmpty()) {
+                            SESSIONS.remove(key);
+                            break;
+                        }
+                    }
+                    continue;
+                }
+                if (master == null) {
+                    promoteNextMaster();
+                }
+
+                socket.setSoTimeout(timer.getTimeoutMillis());
+                try {
+                    packet.setLength(receiveBuffer.capacity());
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    onTimeout();
+                    continue;
+                }
+                receiveBuffer.clear();
+                receiveBuffer.limit(packet.getLength());
+                onPacket((InetSocketAddress) packet.getSocketAddress(), receiveBuffer);
+            }
+            transfer.complete();
+            System.out.println("Multicast session finished for " + key + " (" + transfer + ")");
+        } catch (IOException e) {
+            System.err.println("Multicast session failed for " + key + ": " + e.getMessage());
+            synchronized (SESSIONS) {
+                SESSIONS.remove(key);
+            }
+        } finally {
+            transfer.finish();
+            socket.close();
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close " + key + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Queues clients that joined since the last packet, answering repeated RRQs with their OACK again
+    private void acceptJoins() throws IOException {
+        InetSocketAddress client;
+        while ((client = joins.poll()) != null) {
+            if (!clients.contains(client)) {
+                clients.add(client);
+                System.out.println("Multicast client " + client + " joined " + key + " (" + clients.size() + " waiting)");
+            }
+            if (client.equals(master)) {
+                sendOptionAck(client, true);
+            } else if (master != null) {
+                sendOptionAck(client, false);
+            }
+        }
+    }
+
+    private void promoteNextMaster() throws IOException {
+        master = clients.getFirst();
+        lastSentBlock = -1;
+        timer.onProgress();
+        sendOptionAck(master, true);
+    }
+
+    private void onPacket(InetSocketAddress source, ByteBuffer packet) throws IOException {
+        if (!clients.contains(source)) {
+            System.out.println("Rejected packet from unknown TID " + source);
+            sendError(source, TftpPacket.ERR_UNKNOWN_TID, "Unknown transfer ID");
+            return;
+        }
+        if (packet.limit() < TftpPacket.HEADER_SIZE) {
+            return;
+        }
+        int opcode = TftpPacket.opcode(packet);
+        if (opcode == TftpPacket.OP_ERROR) {
+            transfer.error(TftpPacket.errorCode(packet));
+            System.out.println("Multicast client " + source + " left " + key + ": " + TftpPacket.errorMessage(packet));
+            leave(source);
+            return;
+        }
+        if (opcode != TftpPacket.OP_ACK) {
+            return;
+        }
+        int ackedBlock = TftpPacket.blockNumber(packet);
+        if (ackedBlock == finalBlock) {
+            leave(source); // this client has the whole file
+            return;
+        }
+        if (!source.equals(master) || ackedBlock > finalBlock) {
+            return; // only the master client asks for blocks
+        }
+        if (lastSentBlock >= 0 && ackedBlock < lastSentBlock) {
+            return; // a delayed or duplicate ACK: answering it would send every later block twice (Sorcerer's Apprentice)
+        }
+        if (ackedBlock == lastSentBlock && !resent) {
+            long rttNanos = System.nanoTime() - sentAt; // Karn's rule: only blocks sent once give a sample
+            timer.onRttSample(rttNanos);
+            transfer.rtt(rttNanos);
+        }
+        timer.onProgress();
+        sendData(ackedBlock + 1, false);
+    }
+
+    private void onTimeout() throws IOException {
+        if (!timer.onTimeout()) {
+            System.out.println("Multicast master " + master + " timed out after " + RetransmitTimer.MAX_RETRIES + " retries");
+            transfer.timedOut();
+            leave(master);
+            return;
+        }
+        if (lastSentBlock < 0) {
+            sendOptionAck(master, true);
+            transfer.retransmit();
+        } else {
+            sendData(lastSentBlock, true);
+        }
+    }
+
+    private void leave(InetSocketAddress client) {
+        clients.remove(client);
+        if (client.equals(master)) {
+            master = null;
+        }
+    }
+
+    private void sendData(int blockNumber, boolean retransmission) throws IOException {
+        int length = file.read(TftpPacket.payload(sendBuffer, blockSize), (long) (blockNumber - 1) * blockSize);
+        send(TftpPacket.putData(sendBuffer, blockNumber, length), groupDestination);
+        transfer.blockSent(length, retransmission);
+        lastSentBlock = blockNumber;
+        sentAt = System.nanoTime();
+        resent = retransmission;
+    }
+
+    private void sendOptionAck(InetSocketAddress client, boolean masterClient) throws IOException {
+        String value = groupAddress.getHostAddress() + "," + GROUP_PORT + "," + (masterClient ? 1 : 0);
+        send(TransferOptions.putMulticastOack(sendBuffer, blockSize, value), client);
+    }
+
+    private void sendError(InetSocketAddress destination, short errorCode, String errorMessage) throws IOException {
+        transfer.error(errorCode);
+        send(TftpPacket.putError(sendBuffer, errorCode, errorMessage), destination);
+    }
+
+    private void send(ByteBuffer packet, InetSocketAddress destination) throws IOException {
+        sendPacket.setData(packet.array(), 0, packet.limit());
+        sendPacket.setSocketAddress(destination);
+        socket.send(sendPacket);
+    }
+}
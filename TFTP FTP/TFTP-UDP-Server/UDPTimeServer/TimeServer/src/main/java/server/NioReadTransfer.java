@@ -0,0 +1,267 @@
+package server;
+
+import codec.DigestIndex;
+import codec.ReadAhead;
+import codec.TftpPacket;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Serves an RRQ on an event loop, with the same windowing and retransmission rules as {@link ClientHandler}.
+ * <p>
+ * Blocks are read from the {@link ServedFile} at their offset each time they are sent, so a rewind costs a
+ * positional (usually cached) read rather than a per-transfer window of buffers; idle transfers hold no block
+ * data at all.
+ * <p>
+ * The loop never waits for the disk. The file is looked up and opened on the {@link ReadAhead} threads, and the
+ * OACK or first window goes out from the loop once it is open. A block whose {@link BlockCache} chunk is not
+ * loaded yet holds the rest of the window back while the chunk is loaded on those threads, and the window carries
+ * on from the loop when it is in.
+ */
+class NioReadTransfer extends NioTransfer {
+    private ServedFile file;
+    private int finalBlock; // the short (possibly empty) block that ends the transfer
+    private int firstUnacked = 1; // oldest block the client has not acknowledged yet
+    private int nextBlock = 1; // next block to put on the wire
+    private int highestSent; // highest block sent so far; anything at or below it is a retransmission
+    private int rewoundAt = -1; // firstUnacked value we already rewound to on a duplicate ACK
+    private long[] sentAt;
+    private boolean[] resent;
+    private boolean awaitingOptionAck;
+    private long optionAckSentAt;
+    private boolean optionAckResent;
+    private boolean loading; // a block is being loaded into the cache; the window waits for it
+    private long loadedPosition = -1; // offset of the block loaded last, sent even if the cache has dropped it again
+
+    NioReadTransfer(DatagramChannel channel, InetSocketAddress clientAddress, TransferOptions options, NioServer.EventLoop loop) {
+        super(channel, clientAddress, options, loop, TftpPacket.OP_RRQ);
+    }
+
+    @Override
+    void start() {
+        ReadAhead.execute(() -> {
+            ServedFile opened = null;
+            Exception failure = null;
+            try {
+                opened = open();
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+            ServedFile result = opened;
+            Exception error = failure;
+            loop.execute(() -> onOpened(result, error));
+        });
+    }
+
+    // Runs off the loop. Settles the options that depend on the file and opens it; null if there is no such file
+    private ServedFile open() throws IOException {
+        String sendingFilesDirectory = "Sending Files"; // or "Retrieve Files"
+        File source = new File(System.getProperty("user.dir") + File.separator + sendingFilesDirectory + File.separator + options.getFileName());
+        if (!source.exists()) {
+            return null;
+        }
+        Path served = source.toPath();
+        if (options.getDigestAlgorithm() != null) {
+            // Hashing is left to a background thread of its own: a file not in the index goes out without a digest this time
+            String digest = DigestIndex.SHARED.digestOf(served, options.getDigestAlgorithm(), false);
+            if (digest != null) {
+                options.acceptDigest(digest);
+            }
+        }
+        if (options.getTransferSize() >= 0) {
+            options.acceptTransferSize(Files.size(served));
+        }
+        if (options.isCompressionRequested()) {
+            // Never compresses here either: a file without a ready variant goes out uncompressed while one is built
+            Path variant = CompressedVariants.SHARED.variantOf(served, false);
+            if (variant != null) {
+                options.acceptCompression();
+                served = variant;
+            }
+        }
+        return new ServedFile(served);
+    }
+
+    private void onOpened(ServedFile opened, Exception error) {
+        if (isClosed()) {
+            closeQuietly(opened); // the client gave up while the file was being opened
+            return;
+        }
+        if (error != null) {
+            loop.fail(this, error);
+            return;
+        }
+        try {
+            if (opened == null) {
+                System.out.println("File does not exist: " + options.getFileName());
+                sendError(clientAddress, (short) 1, "File not found: " + options.getFileName());
+                close();
+                return;
+            }
+            file = opened;
+            finalBlock = (int) (file.size() / blockSize) + 1;
+            sentAt = new long[options.getWindowSize()];
+            resent = new boolean[options.getWindowSize()];
+
+            if (options.hasAcceptedOptions()) {
+                // The client confirms the OACK with ACK 0 before DATA 1 is sent
+                awaitingOptionAck = true;
+                optionAckSentAt = System.nanoTime();
+                sendOptionAck();
+                armTimer();
+            } else {
+                sendWindow();
+            }
+        } catch (IOException e) {
+            loop.fail(this, e);
+        }
+    }
+
+    private static void closeQuietly(ServedFile opened) {
+        if (opened == null) {
+            return;
+        }
+        try {
+            opened.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close " + opened.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    void onPacket(ByteBuffer packet) throws IOException {
+        int opcode = TftpPacket.opcode(packet);
+        if (opcode == TftpPacket.OP_ERROR) {
+            onClientError(packet);
+            return;
+        }
+        if (opcode != TftpPacket.OP_ACK || file == null) {
+            return; // nothing has been sent while the file is being opened
+        }
+        int wireBlock = TftpPacket.blockNumber(packet);
+
+        if (awaitingOptionAck) {
+            if (wireBlock == 0) {
+                if (!optionAckResent) {
+                    onRttSample(System.nanoTime() - optionAckSentAt);
+                }
+                timer.onProgress();
+                awaitingOptionAck = false;
+                sendWindow();
+            }
+            return;
+        }
+
+        int windowSize = options.getWindowSize();
+        int ackedBlock = ClientHandler.toBlockIndex(wireBlock, firstUnacked - 1, nextBlock - 1);
+        if (ackedBlock < 0) {
+            return; // not for anything currently in flight
+        }
+        if (ackedBlock == firstUnacked - 1) {
+            // Duplicate ACK: only a window rewinds, and at most once per position (Sorcerer's Apprentice)
+            if (windowSize > 1 && rewoundAt != firstUnacked) {
+                rewoundAt = firstUnacked;
+                nextBlock = firstUnacked;
+                sendWindow();
+            }
+            return;
+        }
+        int ackedSlot = ackedBlock % windowSize;
+        if (!resent[ackedSlot]) {
+            onRttSample(System.nanoTime() - sentAt[ackedSlot]);
+        }
+        timer.onProgress();
+        if (ackedBlock == finalBlock) {
+            transfer.complete();
+            System.out.println("File transfer completed for " + options.getFileName() + (options.isCompressed() ? ", deflated" : "") + " (" + transfer + ")");
+            if (BlockCache.SHARED.isEnabled()) {
+                System.out.println(BlockCache.SHARED);
+            }
+            close();
+            return;
+        }
+        firstUnacked = ackedBlock + 1;
+        nextBlock = firstUnacked;
+        sendWindow();
+    }
+
+    @Override
+    void onTimeout() throws IOException {
+        if (loading) {
+            armTimer(); // the window is waiting for the disk, not for the client
+            return;
+        }
+        if (!checkRetries()) {
+            return;
+        }
+        if (awaitingOptionAck) {
+            optionAckResent = true;
+            sendOptionAck();
+            transfer.retransmit();
+            armTimer();
+        } else {
+            nextBlock = firstUnacked; // resend everything still unacknowledged
+            sendWindow();
+        }
+    }
+
+    @Override
+    void release() throws IOException {
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    private void sendWindow() throws IOException {
+        int windowSize = options.getWindowSize();
+        while (nextBlock < firstUnacked + windowSize && nextBlock <= finalBlock) {
+            long position = (long) (nextBlock - 1) * blockSize;
+            // Only a block just loaded may be read from disk here, if the cache had to evict it for another
+            // transfer; loading it again could repeat forever in a cache too small for both chunks of the block
+            if (position != loadedPosition && !file.isReady(position, blockSize)) {
+                if (!loading) {
+                    loading = true;
+                    file.load(position, blockSize, error -> loop.execute(() -> onLoaded(position, error)));
+                }
+                break;
+            }
+            int slot = nextBlock % windowSize;
+            resent[slot] = nextBlock <= highestSent;
+            highestSent = Math.max(highestSent, nextBlock);
+            sentAt[slot] = System.nanoTime();
+            sendData(nextBlock, resent[slot]);
+            nextBlock++;
+        }
+        armTimer();
+    }
+
+    private void onLoaded(long position, IOException error) {
+        loading = false;
+        loadedPosition = position;
+        if (isClosed()) {
+            return;
+        }
+        if (error != null) {
+            loop.fail(this, error);
+            return;
+        }
+        try {
+            sendWindow();
+        } catch (IOException e) {
+            loop.fail(this, e);
+        }
+    }
+
+    private void sendData(int blockNumber, boolean retransmission) throws IOException {
+        ByteBuffer packet = loop.sendBuffer();
+        int length = file.read(TftpPacket.payload(packet, blockSize), (long) (blockNumber - 1) * blockSize);
+        send(TftpPacket.putData(packet, blockNumber, length));
+        transfer.blockSent(length, retransmission);
+    }
+}
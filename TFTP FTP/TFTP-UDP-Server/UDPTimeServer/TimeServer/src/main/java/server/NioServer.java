@@ -0,0 +1,254 @@
+package server;
+
+import codec.TftpPacket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector-based alternative to the thread-per-transfer server.
+ * <p>
+ * A fixed number of event loops each multiplex many transfers over one {@link Selector}, with retransmission
+ * deadlines kept in a {@link TimerWheel} rather than in blocking socket timeouts. The listen socket is served by
+ * the first loop, which hands every new transfer to the loops in turn. The protocol is the same as
+ * {@link ClientHandler}'s, so clients cannot tell the engines apart.
+ */
+class NioServer {
+    static final int EVENT_LOOPS = Integer.getInteger("tftp.eventLoops", Runtime.getRuntime().availableProcessors());
+    private static final int MAX_PACKET_SIZE = 65536;
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SLOTS = 1024;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private int nextLoop;
+
+    NioServer(int port, int loopCount) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(loopCount, 1)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    /**
+     * Binds the listen socket and runs the event loops; the first loop runs on the calling thread.
+     *
+     * @throws IOException If the listen socket cannot be opened.
+     */
+    void run() throws IOException {
+        DatagramChannel listenChannel = DatagramChannel.open();
+        listenChannel.bind(new InetSocketAddress(port));
+        listenChannel.configureBlocking(false);
+        listenChannel.register(loops[0].selector, SelectionKey.OP_READ);
+        System.out.println("NIO engine listening on port " + port + " with " + loops.length + " event loop(s)");
+
+        for (int i = 1; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "tftp-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        loops[0].run();
+    }
+
+    /**
+     * Reads every pending request from the listen socket and starts a transfer for each RRQ/WRQ.
+     */
+    private void accept(DatagramChannel listenChannel, ByteBuffer receiveBuffer) throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress source = listenChannel.receive(receiveBuffer);
+            if (source == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            if (receiveBuffer.remaining() < 2) {
+                continue;
+            }
+            int opcode = TftpPacket.opcode(receiveBuffer);
+            if (opcode != TftpPacket.OP_RRQ && opcode != TftpPacket.OP_WRQ) {
+                UDPSocketServer.STATS.error(opcode, TftpPacket.ERR_ILLEGAL_OPERATION);
+                System.out.println("Invalid opcode received: " + opcode);
+                continue;
+            }
+
+            TransferOptions options = TransferOptions.parse(receiveBuffer);
+            InetSocketAddress clientAddress = (InetSocketAddress) source;
+            System.out.println((opcode == TftpPacket.OP_RRQ ? "RRQ" : "WRQ") + " from " + clientAddress + " for " + options.getFileName());
+
+            if (options.isMulticastRequested() && MulticastSession.join(options, clientAddress)) {
+                continue; // the file's multicast session serves this client from its own TID
+            }
+
+            // Each transfer still gets its own ephemeral channel (TID)
+            DatagramChannel channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(0));
+            channel.configureBlocking(false);
+            options.fitWindowTo(channel.socket());
+
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            NioTransfer transfer = opcode == TftpPacket.OP_RRQ
+                    ? new NioReadTransfer(channel, clientAddress, options, loop)
+                    : new NioWriteTransfer(channel, clientAddress, options, loop);
+            loop.submit(transfer);
+        }
+    }
+
+    /**
+     * One selector thread and the transfers registered with it.
+     */
+    final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final TimerWheel wheel;
+        private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        private final ByteBuffer sendBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        private final Queue<NioTransfer> incoming = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final List<NioTransfer> expired = new ArrayList<>();
+
+        private EventLoop() throws IOException {
+            this.selector = Selector.open();
+            this.wheel = new TimerWheel(TICK_MILLIS, WHEEL_SLOTS, System.currentTimeMillis());
+        }
+
+        /**
+         * Hands a transfer to this loop; safe to call from any thread.
+         */
+        void submit(NioTransfer transfer) {
+            incoming.add(transfer);
+            selector.wakeup();
+        }
+
+        /**
+         * Runs a task on this loop, such as the completion of work a transfer handed to another thread; safe to
+         * call from any thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * @return The loop's send buffer, cleared; only valid until the next send on this loop.
+         */
+        ByteBuffer sendBuffer() {
+            sendBuffer.clear();
+            return sendBuffer;
+        }
+
+        void schedule(NioTransfer transfer, long delayMillis) {
+            wheel.schedule(transfer, delayMillis, System.currentTimeMillis());
+        }
+
+        void cancel(NioTransfer transfer) {
+            wheel.cancel(transfer);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    long timeout = wheel.millisUntilNextTick(System.currentTimeMillis());
+                    if (timeout == 0) {
+                        selector.select();
+                    } else {
+                        selector.select(timeout);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Selector failed: " + e.getMessage());
+                    return;
+                }
+                startIncoming();
+                runTasks();
+                dispatchSelected();
+                expireTimers();
+            }
+        }
+
+        private void startIncoming() {
+            NioTransfer transfer;
+            while ((transfer = incoming.poll()) != null) {
+                try {
+                    transfer.register(selector);
+                    transfer.start();
+                } catch (IOException | RuntimeException e) {
+                    fail(transfer, e);
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Task failed: " + e);
+                }
+            }
+        }
+
+        private void dispatchSelected() {
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                Object attachment = key.attachment();
+                if (attachment instanceof NioTransfer) {
+                    NioTransfer transfer = (NioTransfer) attachment;
+                    try {
+                        transfer.onReadable(receiveBuffer);
+                    } catch (IOException | RuntimeException e) {
+                        fail(transfer, e);
+                    }
+                } else {
+                    try {
+                        accept((DatagramChannel) key.channel(), receiveBuffer);
+                    } catch (IOException | RuntimeException e) {
+                        System.out.println("Failed to accept request: " + e);
+                    }
+                }
+            }
+        }
+
+        private void expireTimers() {
+            wheel.expire(System.currentTimeMillis(), expired);
+            for (NioTransfer transfer : expired) {
+                if (transfer.isClosed()) {
+                    continue;
+                }
+                try {
+                    transfer.onTimeout();
+                } catch (IOException | RuntimeException e) {
+                    fail(transfer, e);
+                }
+            }
+            expired.clear();
+        }
+
+        // Ends one transfer on any failure, a bug included, so the rest of the loop and the listen socket carry on
+        void fail(NioTransfer transfer, Exception e) {
+            System.out.println("Transfer failed for " + transfer.options.getFileName() + ": "
+                    + (e instanceof IOException ? e.getMessage() : e.toString()));
+            try {
+                transfer.close();
+            } catch (IOException | RuntimeException closeError) {
+                System.out.println("Failed to close transfer: " + closeError.getMessage());
+            }
+        }
+    }
+}
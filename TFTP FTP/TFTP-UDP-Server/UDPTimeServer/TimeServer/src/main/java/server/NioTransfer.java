@@ -0,0 +1,190 @@
+package server;
+
+import codec.RetransmitTimer;
+import codec.TftpPacket;
+import metrics.Transfer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * One transfer driven by a {@link NioServer} event loop.
+ * <p>
+ * A transfer is a small state machine: the loop calls {@link #start()} once, {@link #onPacket(ByteBuffer)} for
+ * every datagram from the client's TID and {@link #onTimeout()} when its retransmission deadline passes. All
+ * calls happen on the owning loop's thread, so no locking is needed. Like {@link ClientHandler}, each transfer
+ * has its own ephemeral channel (RFC 1350 TID) and answers strangers with "Unknown transfer ID".
+ */
+abstract class NioTransfer {
+    final DatagramChannel channel;
+    final InetSocketAddress clientAddress;
+    final TransferOptions options;
+    final int blockSize;
+    final RetransmitTimer timer;
+    final NioServer.EventLoop loop;
+    final Transfer transfer;
+    long deadlineTick = -1; // owned by the loop's TimerWheel
+    private SelectionKey key;
+    private boolean closed;
+
+    NioTransfer(DatagramChannel channel, InetSocketAddress clientAddress, TransferOptions options, NioServer.EventLoop loop, int opcode) {
+        this.channel = channel;
+        this.clientAddress = clientAddress;
+        this.options = options;
+        this.blockSize = options.getBlockSize();
+        this.timer = options.createRetransmitTimer();
+        this.loop = loop;
+        this.transfer = UDPSocketServer.STATS.start(opcode);
+    }
+
+    /**
+     * Sends the first packet of the transfer, or starts the work off the loop after which it is sent.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    abstract void start() throws IOException;
+
+    /**
+     * Handles a datagram from the client; the buffer is flipped and only valid during the call.
+     *
+     * @param packet The received packet.
+     * @throws IOException If an I/O error occurs.
+     */
+    abstract void onPacket(ByteBuffer packet) throws IOException;
+
+    /**
+     * Handles the expiry of the retransmission deadline.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    abstract void onTimeout() throws IOException;
+
+    /**
+     * Releases per-transfer resources other than the channel.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    void release() throws IOException {
+    }
+
+    final void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Drains every datagram queued on the channel.
+     *
+     * @param receiveBuffer The loop's shared receive buffer.
+     * @throws IOException If an I/O error occurs.
+     */
+    final void onReadable(ByteBuffer receiveBuffer) throws IOException {
+        while (!closed) {
+            receiveBuffer.clear();
+            SocketAddress source = channel.receive(receiveBuffer);
+            if (source == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            if (!clientAddress.equals(source)) {
+                System.out.println("Rejected packet from unknown TID " + source);
+                sendError(source, TftpPacket.ERR_UNKNOWN_TID, "Unknown transfer ID");
+                continue;
+            }
+            if (receiveBuffer.remaining() >= TftpPacket.HEADER_SIZE) {
+                onPacket(receiveBuffer);
+            }
+        }
+    }
+
+    /**
+     * Sends the packet in the loop's send buffer to the client. A full socket buffer drops the datagram, which
+     * the retransmission timer then treats like any other loss.
+     *
+     * @param packet The flipped packet.
+     * @throws IOException If an I/O error occurs.
+     */
+    final void send(ByteBuffer packet) throws IOException {
+        channel.send(packet, clientAddress);
+    }
+
+    final void sendAck(int blockNumber) throws IOException {
+        send(TftpPacket.putAck(loop.sendBuffer(), blockNumber));
+    }
+
+    final void sendOptionAck() throws IOException {
+        send(options.putOack(loop.sendBuffer()));
+    }
+
+    final void sendError(SocketAddress destination, short errorCode, String errorMessage) throws IOException {
+        transfer.error(errorCode);
+        channel.send(TftpPacket.putError(loop.sendBuffer(), errorCode, errorMessage), destination);
+    }
+
+    /**
+     * Logs an ERROR packet from the client and ends the transfer.
+     *
+     * @param packet The ERROR packet.
+     * @throws IOException If an I/O error occurs.
+     */
+    final void onClientError(ByteBuffer packet) throws IOException {
+        transfer.error(TftpPacket.errorCode(packet));
+        System.out.println("Error " + TftpPacket.errorCode(packet) + ": " + TftpPacket.errorMessage(packet));
+        close();
+    }
+
+    /**
+     * Feeds a round-trip measurement to the retransmission timer and the server's RTT histogram.
+     *
+     * @param rttNanos The time between sending a packet that was not retransmitted and receiving its response.
+     */
+    final void onRttSample(long rttNanos) {
+        timer.onRttSample(rttNanos);
+        transfer.rtt(rttNanos);
+    }
+
+    final void armTimer() {
+        loop.schedule(this, timer.getTimeoutMillis());
+    }
+
+    /**
+     * Charges a timeout against the retry budget, closing the transfer when it is exhausted.
+     *
+     * @return True if the transfer should retransmit.
+     * @throws IOException If an I/O error occurs.
+     */
+    final boolean checkRetries() throws IOException {
+        if (timer.onTimeout()) {
+            return true;
+        }
+        System.out.println("Transfer timed out after " + RetransmitTimer.MAX_RETRIES + " retries: " + options.getFileName());
+        transfer.timedOut();
+        close();
+        return false;
+    }
+
+    final boolean isClosed() {
+        return closed;
+    }
+
+    final void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        loop.cancel(this);
+        if (key != null) {
+            key.cancel();
+        }
+        transfer.finish();
+        try {
+            release();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package server;
+
+import codec.DigestIndex;
+import codec.IncomingFile;
+import codec.TftpPacket;
+import codec.WriteBehind;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Serves a WRQ on an event loop, with the same windowing and retransmission rules as {@link ClientHandler}.
+ * <p>
+ * The loop never waits for the disk. Blocks go to the file's {@link WriteBehind} queue, and while that queue is
+ * full an in-order block is dropped as if it were lost, so the client backs off and sends it again. Committing
+ * the file, which waits for the queue to drain and for any sync, runs on another thread, and the final ACK is
+ * sent back on the loop once it is done.
+ */
+class NioWriteTransfer extends NioTransfer {
+    private Path target;
+    private IncomingFile incomingFile;
+    private int expectedBlock = 1; // next in-order block; counts on past 65535 while the wire number rolls over to 0
+    private int blocksSinceAck;
+    private boolean gapAcked;
+    private long windowAckedAt; // when the last window was ACKed, for an RTT sample; 0 when the sample would be ambiguous
+    private int lastAckedBlock = -1; // block of the last ACK sent, or -1 while the last response is the OACK
+    private boolean committing; // final block received; the file is being committed on another thread
+    private boolean done; // final block received and committed; dallying for a retransmission of it
+
+    NioWriteTransfer(DatagramChannel channel, InetSocketAddress clientAddress, TransferOptions options, NioServer.EventLoop loop) {
+        super(channel, clientAddress, options, loop, TftpPacket.OP_WRQ);
+    }
+
+    @Override
+    void start() throws IOException {
+        if (!ClientHandler.hasRoomFor(options.getTransferSize())) {
+            System.out.println("No room for " + options.getFileName() + " (" + options.getTransferSize() + " bytes)");
+            sendError(clientAddress, TftpPacket.ERR_DISK_FULL, "Disk full or allocation exceeded");
+            close();
+            return;
+        }
+        String receivingFilesDirectory = "Receiving Files"; // or "Upload Files"
+        target = Paths.get(System.getProperty("user.dir"), receivingFilesDirectory, options.getFileName());
+        incomingFile = new IncomingFile(target, false);
+        if (options.isCompressed()) {
+            incomingFile.inflate();
+        }
+        if (options.getDigestAlgorithm() != null) {
+            incomingFile.digest(options.getDigestAlgorithm());
+        }
+        // Clients that asked for options get an OACK in place of ACK 0
+        if (options.hasAcceptedOptions()) {
+            sendOptionAck();
+        } else {
+            acknowledge(0);
+        }
+        armTimer();
+    }
+
+    @Override
+    void onPacket(ByteBuffer packet) throws IOException {
+        if (committing) {
+            return; // the final ACK follows the commit; a retransmitted final block is answered by it too
+        }
+        int opcode = TftpPacket.opcode(packet);
+        if (opcode == TftpPacket.OP_ERROR) {
+            onClientError(packet);
+            return;
+        }
+        if (opcode != TftpPacket.OP_DATA) {
+            System.out.println("Invalid opcode received: " + opcode);
+            close();
+            return;
+        }
+        if (done) {
+            resendLastResponse(); // our final ACK was lost
+            return;
+        }
+
+        int receivedBlock = TftpPacket.blockNumber(packet);
+        if (receivedBlock == (expectedBlock & 0xFFFF)) {
+            if (incomingFile.isBacklogged()) {
+                return; // the disk is behind: treat the block as lost, which the client's retransmission recovers
+            }
+            int dataSize = TftpPacket.payloadLength(packet);
+            incomingFile.write(packet.array(), TftpPacket.HEADER_SIZE, dataSize);
+            transfer.blockReceived(dataSize);
+            blocksSinceAck++;
+            gapAcked = false;
+            if (windowAckedAt != 0) {
+                onRttSample(System.nanoTime() - windowAckedAt);
+                windowAckedAt = 0;
+            }
+            timer.onProgress();
+
+            if (dataSize < blockSize) {
+                String digest = options.getDigestAlgorithm() != null ? incomingFile.finishDigest() : null;
+                if (!options.matchesExpectedDigest(digest)) {
+                    System.out.println("Digest mismatch for " + options.getFileName() + ": expected " + options.getExpectedDigest() + ", received " + digest);
+                    sendError(clientAddress, TftpPacket.ERR_NOT_DEFINED, "Digest mismatch");
+                    close(); // the received file is discarded
+                    return;
+                }
+                if (!options.matchesTransferSize(incomingFile.size())) {
+                    System.out.println("Size mismatch for " + options.getFileName() + ": announced " + options.getTransferSize() + " bytes, received " + incomingFile.size());
+                    sendError(clientAddress, TftpPacket.ERR_NOT_DEFINED, "File size does not match tsize");
+                    close();
+                    return;
+                }
+                commit(digest);
+                return;
+            }
+            // ACK once per window (RFC 7440)
+            if (blocksSinceAck == options.getWindowSize()) {
+                acknowledge(expectedBlock);
+                blocksSinceAck = 0;
+                windowAckedAt = System.nanoTime();
+            }
+            expectedBlock++;
+            armTimer();
+        } else if (ClientHandler.isAhead(receivedBlock, expectedBlock) ? !gapAcked : options.getWindowSize() == 1) {
+            // A gap (once per gap), or a duplicate in lock-step: re-ACK the last in-order block so the sender resumes after it.
+            // Duplicates within a window go unanswered, as in ClientHandler.receiveFile
+            acknowledge(expectedBlock - 1);
+            blocksSinceAck = 0;
+            gapAcked = true;
+            windowAckedAt = 0;
+        }
+    }
+
+    @Override
+    void onTimeout() throws IOException {
+        if (done) {
+            close(); // the client has gone quiet, so it got our final ACK
+            return;
+        }
+        if (!checkRetries()) {
+            return;
+        }
+        // Tell the client where we are: ACK the in-order blocks of a partial window, or repeat the last response
+        if (blocksSinceAck > 0) {
+            acknowledge(expectedBlock - 1);
+            blocksSinceAck = 0;
+        } else {
+            resendLastResponse();
+        }
+        windowAckedAt = 0;
+        armTimer();
+    }
+
+    @Override
+    void release() {
+        IncomingFile file = incomingFile;
+        if (file != null) {
+            // Deletes the partial file unless it was committed, after waiting for a write in progress
+            WriteBehind.executeBlocking(() -> {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    System.out.println("Failed to close " + options.getFileName() + ": " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    // Moves the file into place off the loop, then sends the final ACK from the loop: it only goes out once the file is in place
+    private void commit(String digest) {
+        committing = true;
+        loop.cancel(this);
+        WriteBehind.executeBlocking(() -> {
+            IOException failure = null;
+            try {
+                incomingFile.commit();
+                if (digest != null) {
+                    DigestIndex.SHARED.put(target, digest);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            IOException error = failure;
+            loop.execute(() -> onCommitted(error));
+        });
+    }
+
+    private void onCommitted(IOException error) {
+        committing = false;
+        if (error != null) {
+            loop.fail(this, error);
+            return;
+        }
+        done = true;
+        transfer.complete();
+        try {
+            acknowledge(expectedBlock);
+        } catch (IOException e) {
+            loop.fail(this, e);
+            return;
+        }
+        System.out.println("File received: " + options.getFileName() + (options.isCompressed() ? ", deflated" : "")
+                + (options.getExpectedDigest() != null ? ", " + options.getDigestAlgorithm() + " verified" : "") + " (" + transfer + ")");
+        armTimer(); // dally so a retransmitted final block is acknowledged again
+    }
+
+    private void acknowledge(int blockNumber) throws IOException {
+        lastAckedBlock = blockNumber;
+        sendAck(blockNumber);
+    }
+
+    private void resendLastResponse() throws IOException {
+        transfer.retransmit();
+        if (lastAckedBlock < 0) {
+            sendOptionAck();
+        } else {
+            sendAck(lastAckedBlock);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+import codec.ReadAhead;
+
+/**
+ * Source of an outgoing transfer.
+ * <p>
+ * Blocks are read by offset rather than sequentially, so a window can be resent without keeping its blocks
+ * around, and reads go through the shared {@link BlockCache} when it is enabled. The size and modification
+ * time are captured when the file is opened and identify the version of the file being served.
+ * <p>
+ * With {@code -Dtftp.mmap=true} blocks are instead copied straight out of read-only mappings of the file, so a
+ * block costs a memory copy from the page cache rather than a read() call, and concurrent transfers of one
+ * image share its pages. A single mapping is limited to 2 GB, so larger files are mapped in regions of
+ * {@code -Dtftp.mapRegionSize} bytes (default 1 GiB) as the transfer reaches them.
+ * <p>
+ * With the cache disabled, blocks come from a {@link ReadAhead} ring instead, so the next blocks are being read
+ * while the current window waits for its ACKs; {@code -Dtftp.readAhead=0} reads each block when it is sent.
+ */
+class ServedFile implements Closeable {
+    static final boolean MAPPED_READS = Boolean.getBoolean("tftp.mmap");
+    static final int MAP_REGION_SIZE = Integer.getInteger("tftp.mapRegionSize", 1 << 30);
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long size;
+    private final long lastModified;
+    private MappedByteBuffer[] regions; // mapped on first use, only in mapped mode
+    private ReadAhead readAhead; // created on first use, only when reading straight from disk
+
+    /**
+     * Opens the file for reading.
+     *
+     * @param path The file to serve.
+     * @throws IOException If the file cannot be opened.
+     */
+    ServedFile(Path path) throws IOException {
+        this.path = path.toAbsolutePath().normalize();
+        this.channel = FileChannel.open(this.path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.lastModified = Files.getLastModifiedTime(this.path).toMillis();
+        BlockCache.SHARED.validate(this.path, lastModified, size);
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long size() {
+        return size;
+    }
+
+    long lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Fills the destination from the given offset, stopping early only at the end of the file.
+     *
+     * @param destination The buffer to fill up to its limit.
+     * @param position The file offset to read from.
+     * @return The number of bytes read; less than requested only at the end of the file.
+     * @throws IOException If an I/O error occurs.
+     */
+    int read(ByteBuffer destination, long position) throws IOException {
+        if (MAPPED_READS) {
+            return readMapped(destination, position);
+        }
+        if (BlockCache.SHARED.isEnabled()) {
+            return BlockCache.SHARED.read(this, destination, position);
+        }
+        if (ReadAhead.DEPTH > 0) {
+            if (readAhead == null) {
+                readAhead = new ReadAhead(channel, size);
+            }
+            return readAhead.read(destination, position);
+        }
+        return readFromDisk(destination, position);
+    }
+
+    /**
+     * Whether {@link #read} of a range would return without waiting for the disk. Only reads through the block
+     * cache are told apart; mapped and read-ahead reads always count as ready.
+     *
+     * @param position The file offset of the range.
+     * @param length The length of the range.
+     * @return False if a chunk of the range has yet to be loaded into the cache.
+     */
+    boolean isReady(long position, int length) {
+        return MAPPED_READS || !BlockCache.SHARED.isEnabled() || BlockCache.SHARED.isLoaded(this, position, length);
+    }
+
+    /**
+     * Loads a range into the block cache on the {@link ReadAhead} threads, for a reader that must not wait for the
+     * disk itself.
+     *
+     * @param position The file offset of the range.
+     * @param length The length of the range.
+     * @param onLoaded Called on a read-ahead thread once the range is loaded, with null, or with the error that
+     *                 stopped it.
+     */
+    void load(long position, int length, Consumer<IOException> onLoaded) {
+        BlockCache.SHARED.load(this, position, length, onLoaded);
+    }
+
+    /**
+     * Reads straight from the file, bypassing the cache.
+     *
+     * @param destination The buffer to fill up to its limit.
+     * @param position The file offset to read from.
+     * @return The number of bytes read; less than requested only at the end of the file.
+     * @throws IOException If an I/O error occurs.
+     */
+    int readFromDisk(ByteBuffer destination, long position) throws IOException {
+        int total = 0;
+        while (destination.hasRemaining()) {
+            int read = channel.read(destination, position + total);
+            if (read <= 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private int readMapped(ByteBuffer destination, long position) throws IOException {
+        int total = 0;
+        while (destination.hasRemaining() && position < size) {
+            int index = (int) (position / MAP_REGION_SIZE);
+            MappedByteBuffer region = region(index);
+            int offset = (int) (position - (long) index * MAP_REGION_SIZE);
+            int count = Math.min(destination.remaining(), region.capacity() - offset);
+            region.clear();
+            region.position(offset).limit(offset + count);
+            destination.put(region);
+            position += count;
+            total += count;
+        }
+        return total;
+    }
+
+    private MappedByteBuffer region(int index) throws IOException {
+        if (regions == null) {
+            regions = new MappedByteBuffer[(int) ((size + MAP_REGION_SIZE - 1) / MAP_REGION_SIZE)];
+        }
+        if (regions[index] == null) {
+            long start = (long) index * MAP_REGION_SIZE;
+            regions[index] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_REGION_SIZE, size - start));
+        }
+        return regions[index];
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (readAhead != null) {
+            readAhead.close();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,103 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timer wheel holding the retransmission deadline of every transfer on one {@link NioServer} event loop.
+ * <p>
+ * Scheduling and rescheduling are O(1): a transfer keeps a single deadline tick, and entries left behind in
+ * other slots by a reschedule are recognised as stale and dropped when their slot comes round. Deadlines more
+ * than one rotation away simply stay in their slot until the right round. Not thread-safe; each event loop owns
+ * its wheel.
+ */
+class TimerWheel {
+    private final long tickMillis;
+    private final List<NioTransfer>[] slots;
+    private long currentTick; // next tick to be processed
+    private int entries;
+
+    @SuppressWarnings("unchecked")
+    TimerWheel(long tickMillis, int slotCount, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.slots = new List[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * Sets the transfer's deadline, replacing any earlier one.
+     *
+     * @param transfer The transfer to time out.
+     * @param delayMillis Time from now until the deadline.
+     * @param nowMillis The current time.
+     */
+    void schedule(NioTransfer transfer, long delayMillis, long nowMillis) {
+        long tick = Math.max((nowMillis + delayMillis + tickMillis - 1) / tickMillis, currentTick);
+        if (transfer.deadlineTick == tick) {
+            return;
+        }
+        transfer.deadlineTick = tick;
+        slots[(int) (tick % slots.length)].add(transfer);
+        entries++;
+    }
+
+    /**
+     * Clears the transfer's deadline; its wheel entry is dropped lazily.
+     *
+     * @param transfer The transfer that no longer needs a timeout.
+     */
+    void cancel(NioTransfer transfer) {
+        transfer.deadlineTick = -1;
+    }
+
+    /**
+     * Tells the event loop how long it may block in select().
+     *
+     * @param nowMillis The current time.
+     * @return Milliseconds until the next tick, or 0 to block indefinitely when nothing is scheduled.
+     */
+    long millisUntilNextTick(long nowMillis) {
+        if (entries == 0) {
+            return 0;
+        }
+        return Math.max(currentTick * tickMillis - nowMillis, 1);
+    }
+
+    /**
+     * Advances the wheel to the current time.
+     *
+     * @param nowMillis The current time.
+     * @param expired Receives every transfer whose deadline has passed; their deadlines are cleared.
+     */
+    void expire(long nowMillis, List<NioTransfer> expired) {
+        long nowTick = nowMillis / tickMillis;
+        if (nowTick < currentTick) {
+            return;
+        }
+        long steps = Math.min(nowTick - currentTick + 1, slots.length);
+        for (long step = 0; step < steps; step++) {
+            int index = (int) ((currentTick + step) % slots.length);
+            List<NioTransfer> slot = slots[index];
+            int kept = 0;
+            for (int i = 0; i < slot.size(); i++) {
+                NioTransfer transfer = slot.get(i);
+                long deadline = transfer.deadlineTick;
+                if (deadline < 0 || deadline % slots.length != index) {
+                    continue; // cancelled, or rescheduled into another slot
+                }
+                if (deadline <= nowTick) {
+                    transfer.deadlineTick = -1;
+                    expired.add(transfer);
+                } else {
+                    slot.set(kept++, transfer); // due in a later rotation
+                }
+            }
+            entries -= slot.size() - kept;
+            slot.subList(kept, slot.size()).clear();
+        }
+        currentTick = nowTick + 1;
+    }
+}
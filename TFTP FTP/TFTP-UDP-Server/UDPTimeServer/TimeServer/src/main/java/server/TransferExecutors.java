@@ -0,0 +1,60 @@
+package server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executor that runs {@link ClientHandler}s, chosen at startup with {@code -Dtftp.executor}:
+ * <ul>
+ *     <li>{@code thread} (default): a platform thread for every concurrent transfer, reused once idle.</li>
+ *     <li>{@code pool}: a fixed pool of {@code -Dtftp.poolSize} platform threads; further transfers queue.</li>
+ *     <li>{@code virtual}: a new virtual thread for every transfer, so thousands of blocking transfers cost
+ *     kilobytes each rather than a platform stack each.</li>
+ * </ul>
+ * Virtual threads need a Java 21 runtime. The module still targets Java 8, so the virtual-thread executor is
+ * looked up reflectively; on an older runtime the server says so and falls back to {@code thread}.
+ */
+final class TransferExecutors {
+    static final String MODE = System.getProperty("tftp.executor", "thread");
+    static final int POOL_SIZE = Integer.getInteger("tftp.poolSize", Runtime.getRuntime().availableProcessors() * 4);
+
+    private TransferExecutors() {
+    }
+
+    /**
+     * @return A new executor for the configured mode.
+     */
+    static ExecutorService create() {
+        switch (MODE) {
+            case "pool":
+                return Executors.newFixedThreadPool(POOL_SIZE, namedThreads());
+            case "virtual":
+                ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+                if (virtualThreads != null) {
+                    return virtualThreads;
+                }
+                System.out.println("Virtual threads need Java 21 or later; running " + System.getProperty("java.version")
+                        + ", so each transfer gets a platform thread instead");
+                return Executors.newCachedThreadPool(namedThreads());
+            case "thread":
+                return Executors.newCachedThreadPool(namedThreads());
+            default:
+                throw new IllegalArgumentException("Unknown tftp.executor '" + MODE + "', expected thread, pool or virtual");
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedThreads() {
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, "tftp-transfer-" + count.incrementAndGet());
+    }
+}
@@ -0,0 +1,284 @@
+package server;
+
+import codec.FileDigest;
+import codec.RetransmitTimer;
+import codec.TftpPacket;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The file name, mode and negotiated RFC 2347 options of an RRQ/WRQ packet.
+ * <p>
+ * Options the server does not understand, or whose values are out of range, are silently dropped; only the
+ * accepted ones are echoed back in the OACK. A request that carries no acceptable option gets the plain
+ * RFC 1350 behaviour, which is also how clients that never send options keep working.
+ */
+class TransferOptions {
+    static final int DEFAULT_BLOCK_SIZE = 512;
+    static final int MIN_BLOCK_SIZE = 8;
+    static final int MAX_BLOCK_SIZE = TftpPacket.MAX_BLOCK_SIZE;
+    static final int DEFAULT_WINDOW_SIZE = 1;
+    // RFC 7440 allows up to 65535, but every in-flight block is buffered so the server caps what it grants
+    static final int MAX_WINDOW_SIZE = 64;
+    static final int MIN_TIMEOUT_SECONDS = 1;
+    static final int MAX_TIMEOUT_SECONDS = 255;
+    // The only codec of the compress option; -Dtftp.compress=false refuses it in both directions
+    static final String COMPRESSION = "deflate";
+    static final boolean COMPRESSION_ENABLED = Boolean.parseBoolean(System.getProperty("tftp.compress", "true"));
+
+    private final String fileName;
+    private final Map<String, String> accepted = new LinkedHashMap<>();
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private int timeoutSeconds; // 0 unless the RFC 2349 timeout option was accepted
+    private boolean multicastRequested; // RFC 2090; answered per client by MulticastSession, not through accepted
+    private boolean compressionRequested;
+    private boolean compressed; // the DATA payloads carry a zlib stream of the file rather than the file
+    private String digestAlgorithm; // null unless the client asked for the file's digest
+    private String expectedDigest; // a WRQ's digest of the file it is about to send, algorithm:hex
+    private long transferSize = -1; // RFC 2349 tsize: the size a WRQ announces, 0 on an RRQ asking for it, -1 if absent
+
+    private TransferOptions(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Parses a request packet and negotiates the options it carries.
+     *
+     * @param requestPacket The RRQ/WRQ packet received on the listen socket.
+     * @return The parsed request.
+     */
+    static TransferOptions parse(DatagramPacket requestPacket) {
+        return parse(ByteBuffer.wrap(requestPacket.getData(), 0, requestPacket.getLength()));
+    }
+
+    /**
+     * Parses a request held in a buffer and negotiates the options it carries.
+     *
+     * @param packet The RRQ/WRQ packet, from index 0 to the buffer's limit.
+     * @return The parsed request.
+     */
+    static TransferOptions parse(ByteBuffer packet) {
+        List<String> fields = TftpPacket.parseFields(packet);
+        TransferOptions options = new TransferOptions(fields.isEmpty() ? "" : fields.get(0));
+        // fields.get(1) is the transfer mode; options follow as name/value pairs
+        for (Map.Entry<String, String> option : TftpPacket.toOptions(fields, 2).entrySet()) {
+            options.negotiate(option.getKey(), option.getValue());
+        }
+        // Multicast only makes sense for reads, and only when the server has a group to send to
+        options.multicastRequested &= TftpPacket.opcode(packet) == TftpPacket.OP_RRQ && MulticastSession.ENABLED;
+        // A WRQ's data is inflated as it arrives; an RRQ is only compressed if the reader finds a variant to serve
+        if (options.compressionRequested && TftpPacket.opcode(packet) == TftpPacket.OP_WRQ) {
+            options.acceptCompression();
+        }
+        // A WRQ's digest is echoed to say it will be checked; an RRQ's is answered by the reader with the file's digest
+        if (options.expectedDigest != null && TftpPacket.opcode(packet) == TftpPacket.OP_WRQ) {
+            options.accepted.put("digest", options.expectedDigest);
+        }
+        // Likewise a WRQ's size is echoed, once the handler has checked that it fits; an RRQ's is answered with the file's
+        if (options.transferSize >= 0 && TftpPacket.opcode(packet) == TftpPacket.OP_WRQ) {
+            options.accepted.put("tsize", Long.toString(options.transferSize));
+        }
+        return options;
+    }
+
+    private void negotiate(String name, String value) {
+        if ("blksize".equals(name)) {
+            int requested = parseValue(value);
+            if (requested >= MIN_BLOCK_SIZE) {
+                blockSize = Math.min(requested, MAX_BLOCK_SIZE);
+                accepted.put(name, Integer.toString(blockSize));
+            }
+        } else if ("windowsize".equals(name)) {
+            int requested = parseValue(value);
+            if (requested >= 1 && requested <= 65535) {
+                windowSize = Math.min(requested, MAX_WINDOW_SIZE);
+                accepted.put(name, Integer.toString(windowSize));
+            }
+        } else if ("timeout".equals(name)) {
+            int requested = parseValue(value);
+            if (requested >= MIN_TIMEOUT_SECONDS && requested <= MAX_TIMEOUT_SECONDS) {
+                timeoutSeconds = requested;
+                accepted.put(name, Integer.toString(timeoutSeconds));
+            }
+        } else if ("multicast".equals(name)) {
+            multicastRequested = true;
+        } else if ("digest".equals(name)) {
+            // An RRQ names the algorithm; a WRQ sends the digest of its file, algorithm:hex
+            String algorithm = value.indexOf(':') >= 0 ? FileDigest.algorithmOf(value) : value.trim();
+            if (algorithm != null && FileDigest.isSupported(algorithm)) {
+                digestAlgorithm = algorithm.toLowerCase(Locale.ROOT);
+                expectedDigest = value.indexOf(':') >= 0 ? value.trim().toLowerCase(Locale.ROOT) : null;
+            }
+        } else if ("tsize".equals(name)) {
+            try {
+                transferSize = Math.max(-1, Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                transferSize = -1;
+            }
+        } else if ("compress".equals(name)) {
+            // The value lists the codecs the client can handle, most preferred first
+            for (String codec : value.split(",")) {
+                compressionRequested |= COMPRESSION_ENABLED && COMPRESSION.equalsIgnoreCase(codec.trim());
+            }
+        }
+    }
+
+    private static int parseValue(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Sizes the transfer's socket for the negotiated window and, if the OS would not grant buffers that large, shrinks
+     * the window (and the OACK's windowsize) to what fits. Must be called before the OACK is built.
+     *
+     * @param socket The transfer's socket.
+     * @throws SocketException If the buffer sizes cannot be set or read.
+     */
+    void fitWindowTo(DatagramSocket socket) throws SocketException {
+        int fitted = TftpPacket.fitWindow(socket, blockSize, windowSize);
+        if (fitted < windowSize) {
+            windowSize = fitted;
+            accepted.put("windowsize", Integer.toString(windowSize));
+        }
+    }
+
+    int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    /**
+     * Creates the retransmission timer for this transfer: fixed when the timeout option was accepted, adaptive otherwise.
+     *
+     * @return A new timer.
+     */
+    RetransmitTimer createRetransmitTimer() {
+        return timeoutSeconds > 0 ? new RetransmitTimer(timeoutSeconds * 1000) : new RetransmitTimer();
+    }
+
+    boolean isMulticastRequested() {
+        return multicastRequested;
+    }
+
+    boolean isCompressionRequested() {
+        return compressionRequested;
+    }
+
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Agrees to compress this transfer: its DATA payloads carry one zlib stream instead of the file itself, and
+     * the OACK says so with {@code compress=deflate}.
+     */
+    void acceptCompression() {
+        compressed = true;
+        accepted.put("compress", COMPRESSION);
+    }
+
+    String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    String getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    /**
+     * @param digest The digest of the file a WRQ delivered, or null if it was not hashed.
+     * @return False only if the client sent a digest and the file does not match it.
+     */
+    boolean matchesExpectedDigest(String digest) {
+        return expectedDigest == null || expectedDigest.equals(digest);
+    }
+
+    /**
+     * Answers an RRQ's digest option with the digest of the file it will receive, sent in the OACK.
+     *
+     * @param digest The file's digest, {@code algorithm:hex}.
+     */
+    void acceptDigest(String digest) {
+        accepted.put("digest", digest);
+    }
+
+    /**
+     * @return The size a WRQ announced, 0 if an RRQ asked for the file's size, or -1 without the tsize option.
+     */
+    long getTransferSize() {
+        return transferSize;
+    }
+
+    /**
+     * @param size The number of bytes a WRQ delivered, after any inflating.
+     * @return False only if the client announced a different size.
+     */
+    boolean matchesTransferSize(long size) {
+        return transferSize < 0 || transferSize == size;
+    }
+
+    /**
+     * Answers an RRQ's tsize option with the size of the file, sent in the OACK. A compressed transfer still
+     * reports the size of the file itself, which is what the client stores.
+     *
+     * @param size The file's size in bytes.
+     */
+    void acceptTransferSize(long size) {
+        accepted.put("tsize", Long.toString(size));
+    }
+
+    boolean hasAcceptedOptions() {
+        return !accepted.isEmpty();
+    }
+
+    /**
+     * Writes the OACK listing every accepted option and its final value.
+     *
+     * @param packet The buffer to build the OACK in.
+     * @return The OACK packet, ready to send.
+     */
+    ByteBuffer putOack(ByteBuffer packet) {
+        return TftpPacket.putOack(packet, accepted);
+    }
+
+    /**
+     * Writes the OACK of a multicast session: the session's block size unless it is the default, and the
+     * client's multicast address, port and master flag.
+     *
+     * @param packet The buffer to build the OACK in.
+     * @param blockSize The block size of the session.
+     * @param multicastValue The RFC 2090 {@code address,port,mc} value.
+     * @return The OACK packet, ready to send.
+     */
+    static ByteBuffer putMulticastOack(ByteBuffer packet, int blockSize, String multicastValue) {
+        Map<String, String> options = new LinkedHashMap<>();
+        if (blockSize != DEFAULT_BLOCK_SIZE) {
+            options.put("blksize", Integer.toString(blockSize));
+        }
+        options.put("multicast", multicastValue);
+        return TftpPacket.putOack(packet, options);
+    }
+}
@@ -0,0 +1,56 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClientHandlerTest {
+
+    @Test
+    void wireBlockMapsOntoTheCounterBeforeTheRollover() {
+        assertEquals(5, ClientHandler.toBlockIndex(5, 3, 10));
+        assertEquals(3, ClientHandler.toBlockIndex(3, 3, 10));
+        assertEquals(10, ClientHandler.toBlockIndex(10, 3, 10));
+    }
+
+    @Test
+    void blocksOutsideTheWindowAreRejected() {
+        assertEquals(-1, ClientHandler.toBlockIndex(11, 3, 10));
+        assertEquals(-1, ClientHandler.toBlockIndex(2, 3, 10));
+    }
+
+    @Test
+    void wireBlockMapsOntoTheCounterAcrossTheRollover() {
+        // Blocks 65534..65540 of a file travel as 65534, 65535, 0, 1, 2, 3, 4
+        int low = 65534;
+        int high = 65540;
+
+        assertEquals(65535, ClientHandler.toBlockIndex(65535, low, high));
+        assertEquals(65536, ClientHandler.toBlockIndex(0, low, high));
+        assertEquals(65540, ClientHandler.toBlockIndex(4, low, high));
+        assertEquals(-1, ClientHandler.toBlockIndex(5, low, high));
+    }
+
+    @Test
+    void counterKeepsGoingPastSeveralRollovers() {
+        int low = 3 * 65536 + 100;
+
+        assertEquals(low + 7, ClientHandler.toBlockIndex(107, low, low + 16));
+        assertEquals(-1, ClientHandler.toBlockIndex(99, low, low + 16));
+    }
+
+    @Test
+    void aheadAndBehindAcrossTheRollover() {
+        assertTrue(ClientHandler.isAhead(7, 5));
+        assertFalse(ClientHandler.isAhead(4, 5));
+        // Expecting block 65535: block 0 (65536) and 2 are ahead, 65534 is a duplicate
+        assertTrue(ClientHandler.isAhead(0, 65535));
+        assertTrue(ClientHandler.isAhead(2, 65535));
+        assertFalse(ClientHandler.isAhead(65534, 65535));
+        // Expecting the counter's 65537, which travels as 1: 65535 is behind it
+        assertFalse(ClientHandler.isAhead(65535, 65537));
+        assertTrue(ClientHandler.isAhead(3, 65537));
+    }
+}
@@ -0,0 +1,119 @@
+package server;
+
+import codec.TftpPacket;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimerWheelTest {
+    private static final long TICK = 10;
+    private static final int SLOTS = 8;
+    private static final long START = 1_000_000;
+
+    private final TimerWheel wheel = new TimerWheel(TICK, SLOTS, START);
+
+    @Test
+    void emptyWheelLetsTheLoopBlock() {
+        assertEquals(0, wheel.millisUntilNextTick(START));
+    }
+
+    @Test
+    void transferExpiresAtItsDeadlineAndNotBefore() {
+        NioTransfer transfer = new IdleTransfer();
+        wheel.schedule(transfer, 35, START);
+
+        assertTrue(expire(START + 30).isEmpty());
+        assertEquals(Collections.singletonList(transfer), expire(START + 40));
+        assertEquals(-1, transfer.deadlineTick);
+        assertTrue(expire(START + 200).isEmpty());
+        assertEquals(0, wheel.millisUntilNextTick(START + 200));
+    }
+
+    @Test
+    void nextTickIsReportedWhileSomethingIsScheduled() {
+        wheel.schedule(new IdleTransfer(), 50, START);
+
+        expire(START + 5);
+
+        assertEquals(5, wheel.millisUntilNextTick(START + 5));
+    }
+
+    @Test
+    void reschedulingReplacesTheEarlierDeadline() {
+        NioTransfer transfer = new IdleTransfer();
+        wheel.schedule(transfer, 20, START);
+        wheel.schedule(transfer, 60, START);
+
+        assertTrue(expire(START + 30).isEmpty());
+        assertEquals(Collections.singletonList(transfer), expire(START + 60));
+    }
+
+    @Test
+    void cancelledTransferNeverExpires() {
+        NioTransfer transfer = new IdleTransfer();
+        wheel.schedule(transfer, 20, START);
+
+        wheel.cancel(transfer);
+
+        assertTrue(expire(START + 100).isEmpty());
+    }
+
+    @Test
+    void deadlinesBeyondOneRotationWaitForTheirRound() {
+        NioTransfer transfer = new IdleTransfer();
+        wheel.schedule(transfer, TICK * SLOTS * 2 + 5, START);
+
+        for (long now = START + TICK; now < START + TICK * SLOTS * 2; now += TICK) {
+            assertTrue(expire(now).isEmpty());
+        }
+        assertEquals(Collections.singletonList(transfer), expire(START + TICK * (SLOTS * 2 + 1)));
+    }
+
+    @Test
+    void lateLoopExpiresEverythingOverdueAtOnce() {
+        NioTransfer first = new IdleTransfer();
+        NioTransfer second = new IdleTransfer();
+        NioTransfer later = new IdleTransfer();
+        wheel.schedule(first, 10, START);
+        wheel.schedule(second, 45, START);
+        wheel.schedule(later, 500, START);
+
+        List<NioTransfer> expired = expire(START + 1000);
+
+        assertEquals(3, expired.size());
+        assertTrue(expired.containsAll(Arrays.asList(first, second, later)));
+    }
+
+    private List<NioTransfer> expire(long now) {
+        List<NioTransfer> expired = new ArrayList<>();
+        wheel.expire(now, expired);
+        return expired;
+    }
+
+    // A transfer that only exists to be scheduled; it has no channel or loop
+    private static final class IdleTransfer extends NioTransfer {
+        private IdleTransfer() {
+            super(null, null, TransferOptions.parse(TftpPacket.putRequest(ByteBuffer.allocate(64), TftpPacket.OP_RRQ,
+                    "idle.bin", "octet", Collections.emptyMap())), null, TftpPacket.OP_RRQ);
+        }
+
+        @Override
+        void start() {
+        }
+
+        @Override
+        void onPacket(ByteBuffer packet) {
+        }
+
+        @Override
+        void onTimeout() {
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package server;
+
+import codec.TftpPacket;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class TransferOptionsTest {
+
+    @Test
+    void requestWithoutOptionsGetsRfc1350Defaults() {
+        TransferOptions options = parse(TftpPacket.OP_RRQ, Collections.emptyMap());
+
+        assertEquals("file.bin", options.getFileName());
+        assertEquals(TransferOptions.DEFAULT_BLOCK_SIZE, options.getBlockSize());
+        assertEquals(TransferOptions.DEFAULT_WINDOW_SIZE, options.getWindowSize());
+        assertFalse(options.hasAcceptedOptions());
+    }
+
+    @Test
+    void acceptedOptionsAreEchoedInRequestOrder() {
+        TransferOptions options = parse(TftpPacket.OP_RRQ, options("windowsize", "8", "blksize", "1428", "timeout", "3"));
+
+        assertEquals(1428, options.getBlockSize());
+        assertEquals(8, options.getWindowSize());
+        assertEquals(3, options.getTimeoutSeconds());
+        assertEquals(options("windowsize", "8", "blksize", "1428", "timeout", "3"), oack(options));
+    }
+
+    @Test
+    void oversizedValuesAreClampedToWhatTheServerGrants() {
+        TransferOptions options = parse(TftpPacket.OP_WRQ, options("blksize", "100000", "windowsize", "65535"));
+
+        assertEquals(TransferOptions.MAX_BLOCK_SIZE, options.getBlockSize());
+        assertEquals(TransferOptions.MAX_WINDOW_SIZE, options.getWindowSize());
+        assertEquals(options("blksize", Integer.toString(TransferOptions.MAX_BLOCK_SIZE),
+                "windowsize", Integer.toString(TransferOptions.MAX_WINDOW_SIZE)), oack(options));
+    }
+
+    @Test
+    void outOfRangeAndMalformedValuesAreDropped() {
+        TransferOptions options = parse(TftpPacket.OP_RRQ, options("blksize", "7", "windowsize", "0", "timeout", "256", "tsize", "x"));
+
+        assertEquals(TransferOptions.DEFAULT_BLOCK_SIZE, options.getBlockSize());
+        assertEquals(TransferOptions.DEFAULT_WINDOW_SIZE, options.getWindowSize());
+        assertEquals(0, options.getTimeoutSeconds());
+        assertEquals(-1, options.getTransferSize());
+        assertFalse(options.hasAcceptedOptions());
+    }
+
+    @Test
+    void writeRequestSizeIsEchoed() {
+        TransferOptions options = parse(TftpPacket.OP_WRQ, options("tsize", "123456"));
+
+        assertEquals(123456, options.getTransferSize());
+        assertEquals(options("tsize", "123456"), oack(options));
+    }
+
+    @Test
+    void windowThatFitsTheSocketIsKept() throws SocketException {
+        TransferOptions options = parse(TftpPacket.OP_RRQ, options("blksize", "1024", "windowsize", "16"));
+
+        try (CappedSocket socket = new CappedSocket(1 << 20)) {
+            options.fitWindowTo(socket);
+
+            assertEquals(16 * (1024 + TftpPacket.HEADER_SIZE), socket.getReceiveBufferSize());
+        }
+        assertEquals(16, options.getWindowSize());
+        assertEquals("16", oack(options).get("windowsize"));
+    }
+
+    @Test
+    void windowIsShrunkToWhatTheOsGrants() throws SocketException {
+        TransferOptions options = parse(TftpPacket.OP_RRQ, options("blksize", "8192", "windowsize", "64"));
+
+        try (CappedSocket socket = new CappedSocket(5 * (8192 + TftpPacket.HEADER_SIZE) + 100)) {
+            options.fitWindowTo(socket);
+        }
+
+        assertEquals(5, options.getWindowSize());
+        assertEquals("5", oack(options).get("windowsize"));
+    }
+
+    @Test
+    void windowNeverShrinksBelowOneBlock() throws SocketException {
+        TransferOptions options = parse(TftpPacket.OP_RRQ, options("blksize", "65464", "windowsize", "4"));
+
+        try (CappedSocket socket = new CappedSocket(4096)) {
+            options.fitWindowTo(socket);
+        }
+
+        assertEquals(1, options.getWindowSize());
+    }
+
+    private static TransferOptions parse(byte opcode, Map<String, String> options) {
+        return TransferOptions.parse(TftpPacket.putRequest(ByteBuffer.allocate(512), opcode, "file.bin", "octet", options));
+    }
+
+    private static Map<String, String> oack(TransferOptions options) {
+        return TftpPacket.toOptions(TftpPacket.parseFields(options.putOack(ByteBuffer.allocate(512))), 0);
+    }
+
+    private static Map<String, String> options(String... namesAndValues) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            options.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return options;
+    }
+
+    // An unbound socket whose buffers start small and are granted up to a limit, like an OS capping SO_RCVBUF/SO_SNDBUF
+    private static final class CappedSocket extends DatagramSocket {
+        private final int limit;
+        private int receiveBufferSize = 2048;
+        private int sendBufferSize = 2048;
+
+        private CappedSocket(int limit) throws SocketException {
+            super((SocketAddress) null);
+            this.limit = limit;
+        }
+
+        @Override
+        public synchronized int getReceiveBufferSize() {
+            return receiveBufferSize;
+        }
+
+        @Override
+        public synchronized void setReceiveBufferSize(int size) {
+            receiveBufferSize = Math.min(size, limit);
+        }
+
+        @Override
+        public synchronized int getSendBufferSize() {
+            return sendBufferSize;
+        }
+
+        @Override
+        public synchronized void setSendBufferSize(int size) {
+            sendBufferSize = Math.min(size, limit);
+        }
+    }
+}